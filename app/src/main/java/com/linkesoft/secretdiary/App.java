@@ -12,6 +12,17 @@ import androidx.biometric.BiometricManager;
 import androidx.biometric.BiometricPrompt;
 import androidx.fragment.app.FragmentActivity;
 
+import com.linkesoft.secretdiary.data.AndroidEnvironment;
+import com.linkesoft.secretdiary.data.CryptoSession;
+import com.linkesoft.secretdiary.data.Diary;
+import com.linkesoft.secretdiary.data.DiaryIO;
+import com.linkesoft.secretdiary.data.EntryCompression;
+import com.linkesoft.secretdiary.data.EntryWriter;
+import com.linkesoft.secretdiary.data.SearchIndex;
+import com.linkesoft.secretdiary.data.Startup;
+import com.linkesoft.secretdiary.data.TextCache;
+import com.linkesoft.secretdiary.data.Thumbnails;
+
 public class App extends Application implements Application.ActivityLifecycleCallbacks {
     private static App instance;
     private int countStarted = 0;
@@ -24,6 +35,8 @@ public class App extends Application implements Application.ActivityLifecycleCal
         super.onCreate();
         instance = this;
         registerActivityLifecycleCallbacks(this);
+        Diary.configure(new AndroidEnvironment(this));
+        Startup.begin(); // Schlüssel laden, während der Biometrie-Dialog angezeigt wird
     }
 
     public static Context appContext() {
@@ -35,10 +48,14 @@ public class App extends Application implements Application.ActivityLifecycleCal
     }
 
     void onAppForeground(Activity activity) {
+        Startup.mark("foreground");
+        Startup.warmUp(); // nach dem Sperren ist die Sitzung geschlossen
         if (hasBiometricProtection() && activity instanceof FragmentActivity)
             showBiometricPrompt((FragmentActivity) activity);
         else {
             isLocked = false;
+            CryptoSession.unlock();
+            Startup.mark("unlocked");
             unlock(activity);
         }
     }
@@ -55,6 +72,16 @@ public class App extends Application implements Application.ActivityLifecycleCal
 
     void onAppBackground(Activity activity) {
         isLocked = true;
+        Diary.pauseKeyRotation(); // wird nach dem Entsperren fortgesetzt
+        DiaryIO.cancelPending();
+        TextCache.clear(); // kein Klartext mehr im Speicher
+        EntryCompression.clear();
+        Thumbnails.clear();
+        // Schlüssel-Handles verwerfen, sobald ausstehende Speichervorgänge erledigt sind; Aufräumen danach ohne Schlüssel
+        CryptoSession.lock();
+        EntryWriter.afterPendingWrites(SearchIndex::close);
+        EntryWriter.afterPendingWrites(Diary::compactStore);
+        EntryWriter.afterPendingWrites(Diary::saveManifest);
         if (activity instanceof ILockableActivity)
             ((ILockableActivity) activity).lock();
     }
@@ -67,6 +94,8 @@ public class App extends Application implements Application.ActivityLifecycleCal
             @Override
             public void onAuthenticationSucceeded(@NonNull BiometricPrompt.AuthenticationResult result) {
                 App.instance.isLocked = false;
+                CryptoSession.unlock();
+                Startup.mark("unlocked");
                 App.instance.unlock(activity);
             }
 
@@ -79,6 +108,7 @@ public class App extends Application implements Application.ActivityLifecycleCal
         int authenticators = BiometricManager.Authenticators.DEVICE_CREDENTIAL | BiometricManager.Authenticators.BIOMETRIC_WEAK;
         BiometricPrompt.PromptInfo promptInfo = new BiometricPrompt.PromptInfo.Builder().setTitle(activity.getString(R.string.biometricAuthentificationRequired)).setAllowedAuthenticators(authenticators).build();
         prompt.authenticate(promptInfo);
+        Startup.mark("prompt");
     }
 
     @Override
@@ -1,5 +1,6 @@
 package com.linkesoft.secretdiary;
 
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
@@ -8,6 +9,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
@@ -15,15 +17,16 @@ import androidx.core.content.FileProvider;
 
 import com.linkesoft.secretdiary.data.Diary;
 import com.linkesoft.secretdiary.data.DiaryEntry;
+import com.linkesoft.secretdiary.data.Thumbnails;
 import com.linkesoft.secretdiary.databinding.ActivityItemDetailBinding;
 
 import java.io.File;
-import java.io.FileWriter;
 
 /**
  * An activity representing a single Item detail screen.
  */
 public class ItemDetailActivity extends AppCompatActivity implements ILockableActivity {
+    private static final int requestAttach = 1;
     private ActivityItemDetailBinding binding;
 
     @Override
@@ -65,6 +68,7 @@ public class ItemDetailActivity extends AppCompatActivity implements ILockableAc
                     .add(R.id.item_detail_container, fragment)
                     .commit();
         }
+        Diary.prepareSigning(); // Signatur-Export ohne Warten auf den Keystore
     }
 
     @Override
@@ -75,6 +79,9 @@ public class ItemDetailActivity extends AppCompatActivity implements ILockableAc
     @Override
     public void unlock() {
         binding.lock.setVisibility(View.GONE);
+        ItemDetailFragment fragment = fragment();
+        if (fragment != null)
+            fragment.onUnlocked();
     }
 
     private ItemDetailFragment fragment() {
@@ -116,6 +123,12 @@ public class ItemDetailActivity extends AppCompatActivity implements ILockableAc
             confirmation.setTitle(R.string.delete);
             confirmation.setButton(AlertDialog.BUTTON_NEGATIVE, getString(android.R.string.ok), (dialog, which) -> delete());
             confirmation.show();
+        } else if (id == R.id.attach) {
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("*/*");
+            intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{"image/*", "audio/*"});
+            startActivityForResult(intent, requestAttach);
         } else if (id == R.id.exportSignature) {
             exportSignature();
         } else if (id == R.id.exportPlainText) {
@@ -126,45 +139,50 @@ public class ItemDetailActivity extends AppCompatActivity implements ILockableAc
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null)
+            return;
+        if (requestCode == requestAttach)
+            fragment().attach(data.getData());
+    }
+
     private void delete() {
-        currentEntry().delete();
+        DiaryEntry entry = currentEntry();
+        entry.delete();
+        Thumbnails.removeAll(entry.key());
         fragment().diaryEntry = null;
         finish();
     }
 
     private void exportSignature() {
-        String text = fragment().getText();
-        File file = currentEntry().getSignatureFile(text);
-        startActivity(Intent.createChooser(intentToSend(file), getString(R.string.exportSignature)));
+        fragment().save(); // Signatur über den gespeicherten Stand
+        currentEntry().signatureFileAsync(file ->
+                startActivity(Intent.createChooser(intentToSend(this, file, "text/plain"), getString(R.string.exportSignature))));
     }
 
     private void exportPublicKey() {
         File file = Diary.getPublicKeyFile();
-        startActivity(Intent.createChooser(intentToSend(file), getString(R.string.exportPublicKey)));
+        startActivity(Intent.createChooser(intentToSend(this, file, "text/plain"), getString(R.string.exportPublicKey)));
     }
 
     private void exportPlainText() {
-        String text = fragment().getText();
         File file = new File(App.appContext().getCacheDir(), currentEntry().fileName());
         file.delete();
-        try {
-            FileWriter out = new FileWriter(file);
-            out.write(text);
-            out.close();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        file.deleteOnExit();
-        startActivity(Intent.createChooser(intentToSend(file), getString(R.string.exportPlainText)));
+        fragment().exportText(file, result -> {
+            result.deleteOnExit();
+            startActivity(Intent.createChooser(intentToSend(this, result, "text/plain"), getString(R.string.exportPlainText)));
+        });
     }
 
-    private Intent intentToSend(File file) {
+    static Intent intentToSend(Context context, File file, String type) {
         Intent intent = new Intent(android.content.Intent.ACTION_SEND);
-        intent.setType("text/plain");
+        intent.setType(type);
         intent.putExtra(Intent.EXTRA_TITLE, file.getName());
         intent.putExtra(Intent.EXTRA_SUBJECT, file.getName());
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            Uri contentUri = FileProvider.getUriForFile(this, getApplicationContext().getPackageName() + ".fileprovider", file);
+            Uri contentUri = FileProvider.getUriForFile(context, context.getApplicationContext().getPackageName() + ".fileprovider", file);
             intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
             intent.putExtra(Intent.EXTRA_STREAM, contentUri);
         } else {
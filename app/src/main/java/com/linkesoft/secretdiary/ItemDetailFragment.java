@@ -1,20 +1,48 @@
 package com.linkesoft.secretdiary;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.net.Uri;
 import android.os.Bundle;
-import android.security.keystore.UserNotAuthenticatedException;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.webkit.MimeTypeMap;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.appbar.CollapsingToolbarLayout;
+import com.linkesoft.secretdiary.data.Attachments;
 import com.linkesoft.secretdiary.data.Diary;
 import com.linkesoft.secretdiary.data.DiaryEntry;
+import com.linkesoft.secretdiary.data.DiaryIO;
+import com.linkesoft.secretdiary.data.EntryWindow;
+import com.linkesoft.secretdiary.data.Thumbnails;
 import com.linkesoft.secretdiary.databinding.ItemDetailBinding;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * A fragment representing a single Item detail screen.
  * This fragment is contained in a {@link ItemDetailActivity}
@@ -26,8 +54,39 @@ public class ItemDetailFragment extends Fragment {
      * represents.
      */
     public static final String ARG_ITEM_ID = "item_id";
+    private static final long autosaveDelayMillis = 2000;
+    // Abschnitte, die beim Scrollen vorab entschlüsselt werden
+    private static final int readAhead = 2;
+    private static final long retryDelayMillis = 100;
     private ItemDetailBinding binding;
     DiaryEntry diaryEntry;
+    private Future<CharSequence> loading;
+    private Future<EntryWindow> opening;
+    // nur bei sehr langen Einträgen, sonst steht der ganze Text in binding.text
+    private EntryWindow window;
+    private View container; // Container des Fragments, begrenzt die Höhe der Abschnittsliste
+    private boolean loaded;
+    private final AttachmentAdapter attachmentAdapter = new AttachmentAdapter();
+    private MediaPlayer player;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable autosave = this::save;
+    // Autosave erst, wenn eine Weile nicht getippt wurde
+    private final TextWatcher autosaveWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            handler.removeCallbacks(autosave);
+            handler.postDelayed(autosave, autosaveDelayMillis);
+        }
+    };
 
     /**
      * Mandatory empty constructor for the fragment manager to instantiate the
@@ -41,7 +100,7 @@ public class ItemDetailFragment extends Fragment {
         super.onCreate(savedInstanceState);
 
         if (getArguments().containsKey(ARG_ITEM_ID)) {
-            diaryEntry = Diary.entryMap.get(getArguments().getString(ARG_ITEM_ID));
+            diaryEntry = Diary.entry(getArguments().getString(ARG_ITEM_ID));
 
             Activity activity = this.getActivity();
             CollapsingToolbarLayout appBarLayout = (CollapsingToolbarLayout) activity.findViewById(R.id.toolbar_layout);
@@ -57,27 +116,463 @@ public class ItemDetailFragment extends Fragment {
         binding = ItemDetailBinding.inflate(inflater, container, false);
         View rootView = binding.getRoot();
         if (diaryEntry != null) {
-            try {
-                String text = diaryEntry.getText();
+            // erst nach dem Laden bearbeiten, sonst würde ein leerer Text gespeichert
+            binding.text.setEnabled(false);
+            if (diaryEntry.isLarge())
+                openWindow();
+            else
+                loadText();
+            binding.attachments.setAdapter(attachmentAdapter);
+            showAttachments();
+            Diary.prefetchAround(diaryEntry);
+        }
+        return rootView;
+    }
+
+    private void loadText() {
+        loading = diaryEntry.loadTextAsync(new DiaryIO.Callback<CharSequence>() {
+            @Override
+            public void onResult(CharSequence text) {
+                loading = null;
+                if (binding == null)
+                    return;
                 binding.text.setText(text);
-            } catch (UserNotAuthenticatedException e) {
-                // TODO
+                binding.text.setEnabled(true);
+                binding.text.addTextChangedListener(autosaveWatcher);
+                loaded = true;
+            }
+
+            @Override
+            public void onError(Exception e) {
+                // der Editor bleibt gesperrt, sonst überschriebe das Autosave den Eintrag; onUnlocked() lädt erneut
+                loading = null;
+                Log.e(getClass().getSimpleName(), "Could not load entry", e);
+            }
+        });
+    }
+
+    // Laden während der Sperre schlägt fehl (z.B. Fragment nach Prozessende wiederhergestellt)
+    void onUnlocked() {
+        if (diaryEntry == null || binding == null)
+            return;
+        if (!loaded && loading == null && opening == null) {
+            if (diaryEntry.isLarge())
+                openWindow();
+            else
+                loadText();
+        }
+        showAttachments();
+    }
+
+    // sehr lange Einträge abschnittsweise, sonst wie bisher komplett laden
+    private void openWindow() {
+        opening = diaryEntry.openWindowAsync(new DiaryIO.Callback<EntryWindow>() {
+            @Override
+            public void onResult(EntryWindow result) {
+                opening = null;
+                if (binding == null) {
+                    if (result != null)
+                        result.close();
+                    return;
+                }
+                if (result == null) {
+                    loadText();
+                    return;
+                }
+                window = result;
+                binding.text.setVisibility(View.GONE);
+                binding.blocks.setVisibility(View.VISIBLE);
+                boundSegments();
+                loaded = true;
+            }
+
+            @Override
+            public void onError(Exception e) {
+                opening = null;
+                Log.e(getClass().getSimpleName(), "Could not open entry", e);
             }
+        });
+    }
 
+    // in der NestedScrollView des Containers hätte die Liste keine Höhenbegrenzung und würde alle Abschnitte
+    // auf einmal anlegen: der Adapter kommt erst, wenn die Höhe des Containers feststeht, die Liste folgt ihr
+    private void boundSegments() {
+        if (binding == null || window == null)
+            return;
+        if (container == null) {
+            container = (View) binding.getRoot().getParent();
+            if (container == null) {
+                binding.getRoot().post(this::boundSegments); // noch nicht angehängt
+                return;
+            }
+            container.addOnLayoutChangeListener(containerLayout);
         }
-        return rootView;
+        if (container.getHeight() == 0)
+            return; // nach dem ersten Layout, siehe containerLayout
+        ViewGroup.LayoutParams params = binding.blocks.getLayoutParams();
+        if (params.height != container.getHeight()) {
+            params.height = container.getHeight();
+            binding.blocks.setLayoutParams(params);
+        }
+        if (binding.blocks.getAdapter() == null)
+            binding.blocks.setAdapter(new SegmentAdapter(window));
     }
 
+    private final View.OnLayoutChangeListener containerLayout = (view, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
+        if (bottom - top != oldBottom - oldTop)
+            view.post(this::boundSegments); // nicht während des Layouts
+    };
+
     @Override
     public void onPause() {
         super.onPause();
-        if (diaryEntry != null) {
-            String text = getText();
-            diaryEntry.setText(text);
+        handler.removeCallbacks(autosave);
+        save();
+        stopPlaying();
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        handler.removeCallbacks(autosave);
+        if (loading != null) {
+            loading.cancel(false);
+            loading = null;
+        }
+        if (opening != null) {
+            opening.cancel(false);
+            opening = null;
+        }
+        binding.text.removeTextChangedListener(autosaveWatcher);
+        binding.blocks.setAdapter(null);
+        binding.attachments.setAdapter(null);
+        if (container != null) {
+            container.removeOnLayoutChangeListener(containerLayout);
+            container = null;
+        }
+        if (window != null) {
+            window.close(); // nach dem Speichern aus onPause
+            window = null;
+        }
+        binding = null;
+        loaded = false;
+    }
+
+    // nur geänderten Text speichern, verschlüsselt wird im Hintergrund
+    void save() {
+        if (diaryEntry != null && binding != null && loaded) {
+            if (window != null) {
+                window.saveAsync();
+                return;
+            }
+            Editable text = binding.text.getText();
+            if (diaryEntry.isModified(text))
+                diaryEntry.saveTextAsync(text);
         }
     }
 
-    public String getText() {
-        return binding.text.getText().toString();
+    /**
+     * Schreibt den angezeigten Text nach {@code file}; abschnittsweise angezeigte Einträge im Hintergrund,
+     * ohne den ganzen Text zusammenzusetzen. {@code callback} auf dem Main-Thread.
+     */
+    void exportText(File file, DiaryIO.Callback<File> callback) {
+        if (window != null) {
+            window.writeToAsync(file, callback);
+            return;
+        }
+        try (FileWriter out = new FileWriter(file)) {
+            out.write(binding.text.getText().toString());
+        } catch (IOException e) {
+            callback.onError(e);
+            return;
+        }
+        callback.onResult(file);
+    }
+
+    // Anhänge
+
+    private void showAttachments() {
+        if (binding == null || diaryEntry == null)
+            return;
+        List<String> names = diaryEntry.attachments();
+        attachmentAdapter.setNames(names);
+        binding.attachments.setVisibility(names.isEmpty() ? View.GONE : View.VISIBLE);
+    }
+
+    /**
+     * Verschlüsselt die Datei hinter {@code uri} als Anhang, gestreamt im Hintergrund.
+     */
+    void attach(Uri uri) {
+        if (diaryEntry == null)
+            return;
+        String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(
+                requireContext().getContentResolver().getType(uri));
+        InputStream in;
+        try {
+            in = requireContext().getContentResolver().openInputStream(uri);
+        } catch (FileNotFoundException e) {
+            Log.e(getClass().getSimpleName(), "Could not open attachment", e);
+            Toast.makeText(requireContext(), R.string.attachFailed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        diaryEntry.addAttachmentAsync(in, extension != null ? extension : "bin", new DiaryIO.Callback<String>() {
+            @Override
+            public void onResult(String name) {
+                showAttachments();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                DiaryIO.Callback.super.onError(e);
+                if (getContext() != null)
+                    Toast.makeText(getContext(), R.string.attachFailed, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void confirmDeleteAttachment(String name) {
+        AlertDialog confirmation = new AlertDialog.Builder(requireContext()).create();
+        confirmation.setTitle(R.string.deleteAttachment);
+        confirmation.setButton(AlertDialog.BUTTON_NEGATIVE, getString(android.R.string.ok), (dialog, which) -> {
+            stopPlaying();
+            Attachments.delete(diaryEntry.key(), name);
+            Thumbnails.remove(diaryEntry.key(), name);
+            showAttachments();
+        });
+        confirmation.show();
+    }
+
+    // Sprachnotizen direkt aus der verschlüsselten Datei abspielen, erneutes Antippen hält an
+    private void play(String name) {
+        boolean wasPlaying = player != null;
+        stopPlaying();
+        if (wasPlaying)
+            return;
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        player = mediaPlayer;
+        Attachments.openMediaAsync(diaryEntry.key(), name, new DiaryIO.Callback<MediaDataSource>() {
+            @Override
+            public void onResult(MediaDataSource source) {
+                if (player != mediaPlayer) {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        ; // ignore
+                    }
+                    return;
+                }
+                mediaPlayer.setDataSource(source); // release() schließt die Quelle
+                mediaPlayer.setOnPreparedListener(MediaPlayer::start);
+                mediaPlayer.setOnCompletionListener(completed -> stopPlaying());
+                mediaPlayer.prepareAsync();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                DiaryIO.Callback.super.onError(e);
+                if (player == mediaPlayer)
+                    stopPlaying();
+            }
+        });
+    }
+
+    private void stopPlaying() {
+        if (player != null) {
+            player.release();
+            player = null;
+        }
+    }
+
+    /**
+     * Vorschaubilder der Anhänge, für Sprachnotizen ein Symbol; Antippen spielt ab, langes Drücken löscht.
+     */
+    private class AttachmentAdapter extends RecyclerView.Adapter<AttachmentAdapter.ViewHolder> {
+        private List<String> names = Collections.emptyList();
+
+        void setNames(List<String> names) {
+            this.names = names;
+            notifyDataSetChanged();
+        }
+
+        @NonNull
+        @Override
+        public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.item_attachment, parent, false);
+            return new ViewHolder((ImageView) view);
+        }
+
+        @Override
+        public void onBindViewHolder(final ViewHolder holder, int position) {
+            holder.unbind();
+            String name = names.get(position);
+            holder.name = name;
+            holder.imageView.setOnClickListener(view -> {
+                if (!Attachments.isImage(name))
+                    play(name);
+            });
+            holder.imageView.setOnLongClickListener(view -> {
+                confirmDeleteAttachment(name);
+                return true;
+            });
+            if (!Attachments.isImage(name)) {
+                holder.imageView.setImageResource(android.R.drawable.ic_btn_speak_now);
+                return;
+            }
+            holder.loading = Thumbnails.loadAsync(diaryEntry.key(), name, new DiaryIO.Callback<Bitmap>() {
+                @Override
+                public void onResult(Bitmap bitmap) {
+                    holder.loading = null;
+                    if (name.equals(holder.name))
+                        holder.imageView.setImageBitmap(bitmap);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    holder.loading = null;
+                    Log.e(getClass().getSimpleName(), "Could not load thumbnail " + name, e);
+                }
+            });
+        }
+
+        @Override
+        public void onViewRecycled(ViewHolder holder) {
+            holder.unbind();
+        }
+
+        @Override
+        public int getItemCount() {
+            return names.size();
+        }
+
+        class ViewHolder extends RecyclerView.ViewHolder {
+            final ImageView imageView;
+            String name;
+            Future<Bitmap> loading;
+
+            ViewHolder(ImageView imageView) {
+                super(imageView);
+                this.imageView = imageView;
+            }
+
+            void unbind() {
+                if (loading != null) {
+                    loading.cancel(false);
+                    loading = null;
+                }
+                imageView.setImageBitmap(null);
+                name = null;
+            }
+        }
+    }
+
+    /**
+     * Ein EditText je Abschnitt von {@link EntryWindow}, entschlüsselt wird erst beim Anzeigen.
+     */
+    private class SegmentAdapter extends RecyclerView.Adapter<SegmentAdapter.ViewHolder> {
+        private final EntryWindow window;
+
+        SegmentAdapter(EntryWindow window) {
+            this.window = window;
+        }
+
+        @NonNull
+        @Override
+        public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.item_detail_block, parent, false);
+            return new ViewHolder((EditText) view);
+        }
+
+        @Override
+        public void onBindViewHolder(final ViewHolder holder, int position) {
+            holder.unbind();
+            holder.segment = position;
+            load(holder, position);
+            window.prefetch(position + 1, position + 1 + readAhead);
+        }
+
+        @Override
+        public void onViewRecycled(ViewHolder holder) {
+            holder.unbind();
+        }
+
+        @Override
+        public int getItemCount() {
+            return window.segmentCount();
+        }
+
+        private void load(ViewHolder holder, int position) {
+            holder.loading = window.loadSegmentAsync(position, new DiaryIO.Callback<CharSequence>() {
+                @Override
+                public void onResult(CharSequence text) {
+                    holder.loading = null;
+                    if (binding == null || holder.segment != position)
+                        return;
+                    holder.editText.setText(text);
+                    holder.editText.setEnabled(true);
+                    holder.editText.addTextChangedListener(holder.watcher);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    holder.loading = null;
+                    if (e instanceof RejectedExecutionException) {
+                        // Warteschlange voll, z.B. bei schnellem Scrollen
+                        holder.retry = () -> {
+                            holder.retry = null;
+                            if (binding != null && holder.segment == position)
+                                load(holder, position);
+                        };
+                        handler.postDelayed(holder.retry, retryDelayMillis);
+                        return;
+                    }
+                    Log.e(getClass().getSimpleName(), "Could not load segment " + position, e);
+                }
+            });
+        }
+
+        class ViewHolder extends RecyclerView.ViewHolder {
+            final EditText editText;
+            int segment = RecyclerView.NO_POSITION;
+            Future<CharSequence> loading;
+            Runnable retry;
+            final TextWatcher watcher = new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                }
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                }
+
+                @Override
+                public void afterTextChanged(Editable s) {
+                    window.setSegment(segment, s.toString());
+                    autosaveWatcher.afterTextChanged(s);
+                }
+            };
+
+            ViewHolder(EditText editText) {
+                super(editText);
+                this.editText = editText;
+            }
+
+            // vor dem Wiederverwenden: kein Speichern des alten Inhalts unter dem neuen Abschnitt
+            void unbind() {
+                editText.removeTextChangedListener(watcher);
+                if (loading != null) {
+                    loading.cancel(false);
+                    loading = null;
+                }
+                if (retry != null) {
+                    handler.removeCallbacks(retry);
+                    retry = null;
+                }
+                editText.setEnabled(false);
+                editText.setText("");
+                segment = RecyclerView.NO_POSITION;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -2,22 +2,48 @@ package com.linkesoft.secretdiary;
 
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.InputType;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.linkesoft.secretdiary.data.ChangeSet;
 import com.linkesoft.secretdiary.data.Diary;
 import com.linkesoft.secretdiary.data.DiaryEntry;
+import com.linkesoft.secretdiary.data.DiaryIO;
+import com.linkesoft.secretdiary.data.EntryRow;
+import com.linkesoft.secretdiary.data.EpochDay;
+import com.linkesoft.secretdiary.data.Metrics;
+import com.linkesoft.secretdiary.data.Mood;
+import com.linkesoft.secretdiary.data.Startup;
 import com.linkesoft.secretdiary.databinding.ActivityItemListBinding;
 import com.linkesoft.secretdiary.databinding.ItemListContentBinding;
 
-import java.util.List;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * An activity representing a list of Items. This activity
@@ -28,7 +54,20 @@ import java.util.List;
  * item details side-by-side using two vertical panes.
  */
 public class ItemListActivity extends AppCompatActivity implements ILockableActivity {
+    // Zeilen pro Seite; weitere Seiten werden beim Scrollen nachgeladen
+    private static final int pageSize = 100;
+    private static final int requestExportBackup = 1;
+    private static final int requestImportBackup = 2;
+    private static final String backupMimeType = "application/octet-stream";
+
     private ActivityItemListBinding binding;
+    private final EntryListAdapter adapter = new EntryListAdapter();
+    private int loadedRows = pageSize;
+    private boolean submitted;
+    // Suchergebnis statt aller Einträge, solange eine Suche aktiv ist
+    private String query = "";
+    private Future<int[]> searching;
+    private Future<ChangeSet> refreshing;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -48,14 +87,217 @@ public class ItemListActivity extends AppCompatActivity implements ILockableActi
             context.startActivity(intent);
         });
 
+        RecyclerView recyclerView = findViewById(R.id.item_list);
+        recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (query.isEmpty() && layoutManager != null && layoutManager.findLastVisibleItemPosition() >= loadedRows - pageSize / 2
+                        && loadedRows < Diary.size()) {
+                    loadedRows += pageSize;
+                    submitRows();
+                }
+            }
+        });
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        Diary.refresh();
-        RecyclerView recyclerView = findViewById(R.id.item_list);
-        recyclerView.setAdapter(new SimpleItemRecyclerViewAdapter(Diary.entries()));
+        if (!submitted) {
+            Diary.openManifest(); // erste Seite direkt aus dem Manifest, Abgleich mit dem Speicher folgt
+            submitRows();
+            Startup.mark("listShown");
+        }
+        if (refreshing != null)
+            refreshing.cancel(false);
+        refreshing = Diary.refreshAsync(changes -> {
+            refreshing = null;
+            Startup.mark("listRefreshed");
+            // nur bei Änderungen neu vergleichen, DiffUtil läuft im Hintergrund und behält die Scrollposition
+            if (!changes.isEmpty())
+                submitRows();
+        });
+    }
+
+    private void submitRows() {
+        submitted = true;
+        if (query.isEmpty()) {
+            adapter.submitList(Diary.rows(0, loadedRows));
+            return;
+        }
+        if (searching != null)
+            searching.cancel(false);
+        searching = Diary.searchAsync(query, days -> {
+            searching = null;
+            adapter.submitList(Diary.rows(days));
+        });
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.item_list, menu);
+        SearchView searchView = (SearchView) menu.findItem(R.id.search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String text) {
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String text) {
+                query = text;
+                submitRows();
+                return true;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.segmentStore).setChecked(Diary.backendSegments.equals(Diary.storeBackend()));
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.exportDiary) {
+            Diary.exportSignedAsync(file -> startActivity(Intent.createChooser(
+                    ItemDetailActivity.intentToSend(this, file, "application/zip"), getString(R.string.exportDiary))));
+            return true;
+        } else if (item.getItemId() == R.id.rotateKey) {
+            Diary.rotateKeyAsync(resultCallback(R.string.keyRotated, R.string.keyRotationFailed));
+            return true;
+        } else if (item.getItemId() == R.id.exportBackup) {
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType(backupMimeType);
+            intent.putExtra(Intent.EXTRA_TITLE, "secretdiary-" + EpochDay.format(EpochDay.today()) + ".backup");
+            startActivityForResult(intent, requestExportBackup);
+            return true;
+        } else if (item.getItemId() == R.id.importBackup) {
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("*/*");
+            startActivityForResult(intent, requestImportBackup);
+            return true;
+        } else if (item.getItemId() == R.id.segmentStore) {
+            // Häkchen erst nach dem Wechsel, siehe onPrepareOptionsMenu
+            Diary.switchStoreAsync(item.isChecked() ? Diary.backendFiles : Diary.backendSegments,
+                    resultCallback(R.string.storeSwitched, R.string.storeSwitchFailed));
+            return true;
+        } else if (item.getItemId() == R.id.moodStatistics) {
+            showMoodStatistics();
+            return true;
+        } else if (item.getItemId() == R.id.metrics) {
+            showMetrics();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // Zähler aus der mitgeführten Stimmungsstatistik, ohne die Einträge zu lesen
+    private void showMoodStatistics() {
+        int today = EpochDay.today();
+        String message = getString(R.string.moodStreak, Diary.currentStreak())
+                + "\n\n" + getString(R.string.moodLast30Days) + "\n" + formatMoodCounts(Diary.moodCounts(today - 29, today))
+                + "\n\n" + getString(R.string.moodThisYear) + "\n" + formatMoodCounts(Diary.moodCounts(EpochDay.of(EpochDay.year(today), 1, 1), today));
+        AlertDialog dialog = new AlertDialog.Builder(this).create();
+        dialog.setTitle(R.string.moodStatistics);
+        dialog.setMessage(message);
+        dialog.setButton(AlertDialog.BUTTON_POSITIVE, getString(android.R.string.ok), (d, which) -> {
+        });
+        dialog.show();
+    }
+
+    private static String formatMoodCounts(int[] counts) {
+        StringBuilder text = new StringBuilder();
+        for (byte mood = 0; mood < counts.length; mood++) {
+            if (mood > 0)
+                text.append("   ");
+            text.append(Mood.emoji(mood)).append(' ').append(counts[mood]);
+        }
+        return text.toString();
+    }
+
+    // Messwerte der Datenschicht, zum Teilen als Textdatei
+    private void showMetrics() {
+        String report = Metrics.report();
+        AlertDialog dialog = new AlertDialog.Builder(this).create();
+        dialog.setTitle(R.string.metrics);
+        dialog.setMessage(report);
+        dialog.setButton(AlertDialog.BUTTON_POSITIVE, getString(android.R.string.ok), (d, which) -> {
+        });
+        dialog.setButton(AlertDialog.BUTTON_NEUTRAL, getString(R.string.share), (d, which) -> {
+            try {
+                File file = Metrics.dump(new File(getCacheDir(), "secretdiary-metrics.txt"));
+                startActivity(Intent.createChooser(ItemDetailActivity.intentToSend(this, file, "text/plain"), getString(R.string.metrics)));
+            } catch (IOException e) {
+                Toast.makeText(this, e.toString(), Toast.LENGTH_LONG).show();
+            }
+        });
+        dialog.show();
+    }
+
+    // Meldung mit Anzahl bzw. Fehlermeldung, danach Liste neu anzeigen
+    private DiaryIO.Callback<Integer> resultCallback(int message, int failedMessage) {
+        return new DiaryIO.Callback<Integer>() {
+            @Override
+            public void onResult(Integer count) {
+                Toast.makeText(ItemListActivity.this, getString(message, count), Toast.LENGTH_SHORT).show();
+                submitRows();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                DiaryIO.Callback.super.onError(e);
+                Toast.makeText(ItemListActivity.this, failedMessage, Toast.LENGTH_LONG).show();
+            }
+        };
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null)
+            return;
+        Uri uri = data.getData();
+        if (requestCode == requestExportBackup) {
+            askBackupPassword(password -> {
+                try {
+                    OutputStream out = getContentResolver().openOutputStream(uri);
+                    Diary.exportBackupAsync(out, password, resultCallback(R.string.backupExported, R.string.backupFailed));
+                } catch (FileNotFoundException e) {
+                    resultCallback(R.string.backupExported, R.string.backupFailed).onError(e);
+                }
+            });
+        } else if (requestCode == requestImportBackup) {
+            askBackupPassword(password -> {
+                try {
+                    InputStream in = getContentResolver().openInputStream(uri);
+                    Diary.restoreBackupAsync(in, password, resultCallback(R.string.backupRestored, R.string.backupFailed));
+                } catch (FileNotFoundException e) {
+                    resultCallback(R.string.backupRestored, R.string.backupFailed).onError(e);
+                }
+            });
+        }
+    }
+
+    private void askBackupPassword(Consumer<char[]> onPassword) {
+        EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD);
+        AlertDialog dialog = new AlertDialog.Builder(this).create();
+        dialog.setTitle(R.string.backupPassword);
+        dialog.setView(input);
+        dialog.setButton(AlertDialog.BUTTON_POSITIVE, getString(android.R.string.ok), (d, which) -> {
+            Editable text = input.getText();
+            char[] password = new char[text.length()];
+            text.getChars(0, text.length(), password, 0);
+            onPassword.accept(password);
+        });
+        dialog.show();
     }
 
     @Override
@@ -66,15 +308,26 @@ public class ItemListActivity extends AppCompatActivity implements ILockableActi
     @Override
     public void unlock() {
         binding.lock.setVisibility(View.GONE);
+        Diary.resumeKeyRotation(); // braucht die entsperrte Sitzung
     }
 
-    public static class SimpleItemRecyclerViewAdapter
-            extends RecyclerView.Adapter<SimpleItemRecyclerViewAdapter.ViewHolder> {
+    public static class EntryListAdapter
+            extends ListAdapter<EntryRow, EntryListAdapter.ViewHolder> {
 
-        private final List<DiaryEntry> mValues;
+        private static final DiffUtil.ItemCallback<EntryRow> diffCallback = new DiffUtil.ItemCallback<EntryRow>() {
+            @Override
+            public boolean areItemsTheSame(@NonNull EntryRow oldRow, @NonNull EntryRow newRow) {
+                return oldRow.epochDay == newRow.epochDay;
+            }
+
+            @Override
+            public boolean areContentsTheSame(@NonNull EntryRow oldRow, @NonNull EntryRow newRow) {
+                return oldRow.mood == newRow.mood;
+            }
+        };
 
         private final View.OnClickListener mOnClickListener = view -> {
-            DiaryEntry item = (DiaryEntry) view.getTag();
+            EntryRow item = (EntryRow) view.getTag();
 
             Context context = view.getContext();
             Intent intent = new Intent(context, ItemDetailActivity.class);
@@ -83,8 +336,8 @@ public class ItemListActivity extends AppCompatActivity implements ILockableActi
             context.startActivity(intent);
         };
 
-        SimpleItemRecyclerViewAdapter(List<DiaryEntry> items) {
-            mValues = items;
+        EntryListAdapter() {
+            super(diffCallback);
         }
 
         @NonNull
@@ -97,19 +350,14 @@ public class ItemListActivity extends AppCompatActivity implements ILockableActi
 
         @Override
         public void onBindViewHolder(final ViewHolder holder, int position) {
-            DiaryEntry entry = mValues.get(position);
-            holder.titleView.setText(entry.title());
-            holder.moodView.setText(entry.getMoodEmoji());
+            EntryRow row = getItem(position);
+            holder.titleView.setText(row.title());
+            holder.moodView.setText(row.moodEmoji());
 
-            holder.itemView.setTag(mValues.get(position));
+            holder.itemView.setTag(row);
             holder.itemView.setOnClickListener(mOnClickListener);
         }
 
-        @Override
-        public int getItemCount() {
-            return mValues.size();
-        }
-
         static class ViewHolder extends RecyclerView.ViewHolder {
             ItemListContentBinding binding;
             final TextView titleView;
@@ -123,4 +371,4 @@ public class ItemListActivity extends AppCompatActivity implements ILockableActi
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,63 @@
+package com.linkesoft.secretdiary.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Umgebung der App: Verzeichnisse des App-Kontexts, Android Keystore und die Speicher-Einstellung
+ * im (unverschlüsselten) "diary_store".
+ */
+public class AndroidEnvironment implements DiaryEnvironment {
+
+    private static final String storePrefsName = "diary_store";
+    private static final String storeBackendKey = "backend";
+
+    private final Context context;
+    private final KeyProvider keys;
+    private File dataDir;
+
+    public AndroidEnvironment(Context context) {
+        this.context = context.getApplicationContext();
+        keys = new AndroidKeyProvider(this.context);
+    }
+
+    @Override
+    public File filesDir() {
+        return context.getFilesDir();
+    }
+
+    @Override
+    public synchronized File dataDir() {
+        if (dataDir == null)
+            dataDir = context.getDir("diary", Context.MODE_PRIVATE);
+        return dataDir;
+    }
+
+    @Override
+    public File cacheDir() {
+        return context.getCacheDir();
+    }
+
+    @Override
+    public KeyProvider keys() {
+        return keys;
+    }
+
+    private SharedPreferences storePreferences() {
+        return context.getSharedPreferences(storePrefsName, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public String storeBackend() {
+        return storePreferences().getString(storeBackendKey, Diary.backendFiles);
+    }
+
+    @Override
+    public void setStoreBackend(String backend) throws IOException {
+        if (!storePreferences().edit().putString(storeBackendKey, backend).commit())
+            throw new IOException("could not save store setting");
+    }
+}
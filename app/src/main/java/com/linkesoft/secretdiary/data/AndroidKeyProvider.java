@@ -0,0 +1,179 @@
+package com.linkesoft.secretdiary.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import androidx.security.crypto.MasterKey;
+
+import com.google.crypto.tink.StreamingAead;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * Schlüssel im Android Keystore: MasterKey und Tink-Keyset für die Verschlüsselung
+ * (pro Sitzung in {@link CryptoSession} zwischengespeichert), EC-Schlüsselpaar für die Signatur.
+ * Der Verschlüsselungsschlüssel hat eine Generation; bei einer {@link KeyRotation} entsteht unter einem
+ * neuen Alias eine neue, die vorige bleibt bis zum Abschluss zum Lesen erhalten.
+ */
+public class AndroidKeyProvider implements KeyProvider {
+
+    private static final String encryptionKeyStoreAlias = "diary";
+    private static final String signatureKeyStoreAlias = "signdiary";
+    // aktuelle und (während einer Rotation) vorige Generation, unverschlüsselt
+    private static final String keyPrefsName = "diary_keys";
+    private static final String generationKey = "generation";
+    private static final String previousGenerationKey = "previous";
+    private static final int noGeneration = -1;
+
+    private final Context context;
+
+    public AndroidKeyProvider(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public StreamingAead streamingAead() throws GeneralSecurityException, IOException {
+        return CryptoSession.get().streamingAead(generation());
+    }
+
+    @Override
+    public void warmUp() throws GeneralSecurityException, IOException {
+        CryptoSession.open().streamingAead(generation());
+    }
+
+    @Override
+    public StreamingAead previousStreamingAead() throws GeneralSecurityException, IOException {
+        int previous = keyPrefs().getInt(previousGenerationKey, noGeneration);
+        return previous == noGeneration ? null : CryptoSession.get().streamingAead(previous);
+    }
+
+    private SharedPreferences keyPrefs() {
+        return context.getSharedPreferences(keyPrefsName, Context.MODE_PRIVATE);
+    }
+
+    private int generation() {
+        return keyPrefs().getInt(generationKey, 0);
+    }
+
+    @Override
+    public synchronized int beginRotation() {
+        SharedPreferences prefs = keyPrefs();
+        int generation = prefs.getInt(generationKey, 0);
+        if (prefs.getInt(previousGenerationKey, noGeneration) != noGeneration)
+            return generation; // unterbrochene Rotation fortsetzen
+        // synchron speichern, bevor der erste Eintrag mit dem neuen Schlüssel geschrieben wird
+        prefs.edit().putInt(previousGenerationKey, generation).putInt(generationKey, generation + 1).commit();
+        Log.d("AndroidKeyProvider", "key rotation " + generation + " -> " + (generation + 1));
+        return generation + 1;
+    }
+
+    @Override
+    public synchronized void finishRotation() throws GeneralSecurityException, IOException {
+        SharedPreferences prefs = keyPrefs();
+        int previous = prefs.getInt(previousGenerationKey, noGeneration);
+        if (previous == noGeneration)
+            return;
+        prefs.edit().remove(previousGenerationKey).commit();
+        CryptoSession.deleteKeyset(previous);
+        // Generation 0 ("diary") schützt auch die EncryptedSharedPreferences und bleibt daher
+        if (previous != 0)
+            keyStore().deleteEntry(encryptionKeyStoreAlias(previous));
+        Log.d("AndroidKeyProvider", "key rotation finished, generation " + previous + " removed");
+    }
+
+    @Override
+    public boolean isRotating() {
+        return keyPrefs().getInt(previousGenerationKey, noGeneration) != noGeneration;
+    }
+
+    private static String encryptionKeyStoreAlias(int generation) {
+        return generation == 0 ? encryptionKeyStoreAlias : encryptionKeyStoreAlias + generation;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return CryptoSession.isOpen();
+    }
+
+    // Schlüssel für symmetrische Verschlüsselung, wird pro Sitzung in CryptoSession zwischengespeichert
+    static MasterKey masterKey(Context context) throws GeneralSecurityException, IOException {
+        return masterKey(context, 0);
+    }
+
+    static MasterKey masterKey(Context context, int generation) throws GeneralSecurityException, IOException {
+        MasterKey.Builder builder = new MasterKey.Builder(context, encryptionKeyStoreAlias(generation))
+                .setKeyScheme(MasterKey.KeyScheme.AES256_GCM);
+        // optional
+        //if (App.hasBiometricProtection())
+        //    builder.setUserAuthenticationRequired(true, 100); // Sekunden, wirft sonst UserNotAuthenticatedException
+
+        MasterKey masterKey = builder.build();
+        return masterKey;
+    }
+
+    // Schlüssel für digitale Signatur: KeyStore, Schlüsselpaar und KeyInfo einmal laden, danach aus dem Speicher
+
+    private KeyStore keyStore;
+    private PrivateKey privateKey;
+    private PublicKey publicKey;
+    private KeyInfo keyInfo;
+
+    private synchronized KeyStore keyStore() throws GeneralSecurityException, IOException {
+        if (keyStore == null) {
+            KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+            keyStore.load(null); // KeyStore muss vor Gebrauch geladen werden
+            this.keyStore = keyStore;
+        }
+        return keyStore;
+    }
+
+    private synchronized void loadSigningKeys() throws GeneralSecurityException, IOException {
+        if (privateKey != null)
+            return;
+        long start = System.nanoTime();
+        KeyStore.PrivateKeyEntry privateKeyEntry = (KeyStore.PrivateKeyEntry) keyStore().getEntry(signatureKeyStoreAlias, null);
+        if (privateKeyEntry == null) {
+            Log.v("AndroidKeyProvider", "Generating new private/public key pair");
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
+            KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(signatureKeyStoreAlias, KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY).setDigests(KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA512).build();
+            generator.initialize(spec);
+            generator.generateKeyPair();
+            privateKeyEntry = (KeyStore.PrivateKeyEntry) keyStore().getEntry(signatureKeyStoreAlias, null);
+        }
+        // ist der Schlüssel hardware-gesichert?
+        KeyFactory factory = KeyFactory.getInstance(privateKeyEntry.getPrivateKey().getAlgorithm(), "AndroidKeyStore");
+        keyInfo = factory.getKeySpec(privateKeyEntry.getPrivateKey(), KeyInfo.class);
+        Log.v("AndroidKeyProvider", "isInsideSecureHardware: " + keyInfo.isInsideSecureHardware());
+        privateKey = privateKeyEntry.getPrivateKey();
+        publicKey = privateKeyEntry.getCertificate().getPublicKey();
+        Metrics.keystoreLoad.recordSince(start);
+        Log.v("AndroidKeyProvider", "signing keys loaded in " + (System.nanoTime() - start) / 1000 + "µs");
+    }
+
+    public synchronized KeyInfo keyInfo() throws GeneralSecurityException, IOException {
+        loadSigningKeys();
+        return keyInfo;
+    }
+
+    @Override
+    public synchronized PrivateKey privateKey() throws GeneralSecurityException, IOException {
+        loadSigningKeys();
+        return privateKey;
+    }
+
+    @Override
+    public synchronized PublicKey publicKey() throws GeneralSecurityException, IOException {
+        loadSigningKeys();
+        return publicKey;
+    }
+}
@@ -0,0 +1,256 @@
+package com.linkesoft.secretdiary.data;
+
+import android.media.MediaDataSource;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+
+/**
+ * Fotos und Sprachnotizen zu einem Eintrag, verschlüsselt wie die Einträge (Streaming AEAD) unter
+ * dataDir/attachments/&lt;Tag&gt;/&lt;Name&gt;. Zugeordnet sind sie dem Tag ({@link DiaryEntry#key()}), nicht dem
+ * Dateinamen: ein Stimmungswechsel benennt nichts um, {@link DiaryEntry#delete()} löscht die Anhänge mit.
+ * Associated Data ist "&lt;Tag&gt;/&lt;Name&gt;", ein Anhang lässt sich also nicht unbemerkt einem anderen Eintrag zuordnen.
+ * <p>
+ * Inhalte werden nur gestreamt bzw. abschnittsweise entschlüsselt, nie komplett in den Speicher geladen.
+ * Vorschaubilder liegen als "&lt;Name&gt;.thumb" daneben, dekodiert werden sie in {@link Thumbnails}.
+ */
+public class Attachments {
+
+    private static final String attachmentDir = "attachments";
+    private static final String thumbnailSuffix = ".thumb";
+    private static final int bufferSize = 64 * 1024;
+    private static final String[] imageExtensions = {"jpg", "jpeg", "png", "webp", "gif"};
+
+    private static File dir(String key) {
+        return new File(new File(Diary.dataDir(), attachmentDir), key);
+    }
+
+    static String associatedName(String key, String name) {
+        return key + "/" + name;
+    }
+
+    /**
+     * Namen der Anhänge von {@code key} in der Reihenfolge des Hinzufügens.
+     */
+    public static List<String> list(String key) {
+        List<String> attachments = new ArrayList<>();
+        String[] names = dir(key).list();
+        if (names == null)
+            return attachments;
+        for (String name : names) {
+            if (!name.endsWith(FileDiaryStore.tmpSuffix) && !name.endsWith(thumbnailSuffix))
+                attachments.add(name);
+        }
+        Collections.sort(attachments); // Namen beginnen mit dem Zeitpunkt
+        return attachments;
+    }
+
+    public static boolean isImage(String name) {
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        for (String imageExtension : imageExtensions) {
+            if (imageExtension.equals(extension))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Verschlüsselt {@code in} als neuen Anhang von {@code key}, ohne es komplett zu lesen; schließt {@code in}.
+     *
+     * @param extension Dateiendung ohne Punkt, z.B. "jpg" oder "m4a"
+     * @return Name des Anhangs
+     */
+    static String add(String key, InputStream in, String extension) throws IOException, GeneralSecurityException {
+        try (InputStream source = in) {
+            File dir = dir(key);
+            dir.mkdirs();
+            String name;
+            synchronized (Attachments.class) {
+                long time = System.currentTimeMillis();
+                while (new File(dir, name = time + "." + extension).exists()
+                        || new File(dir, name + FileDiaryStore.tmpSuffix).exists())
+                    time++;
+                new File(dir, name + FileDiaryStore.tmpSuffix).createNewFile(); // Namen reservieren
+            }
+            File tmpFile = new File(dir, name + FileDiaryStore.tmpSuffix);
+            long length = 0;
+            try (OutputStream out = Diary.keys().openOutput(FileDiaryStore.syncingOutput(tmpFile), associatedName(key, name))) {
+                byte[] buffer = new byte[bufferSize];
+                int n;
+                while ((n = source.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    length += n;
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                tmpFile.delete();
+                throw e;
+            }
+            rename(tmpFile, new File(dir, name));
+            Metrics.bytesWritten.add(length);
+            return name;
+        }
+    }
+
+    private static void rename(File tmpFile, File file) throws IOException {
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile);
+        }
+    }
+
+    /**
+     * Entschlüsselnder Stream über den Anhang; der Aufrufer muss ihn schließen.
+     */
+    public static InputStream open(String key, String name) throws IOException, GeneralSecurityException {
+        return Diary.keys().openInput(new FileInputStream(new File(dir(key), name)), associatedName(key, name));
+    }
+
+    /**
+     * Quelle für MediaPlayer: entschlüsselt nur die jeweils gelesenen Segmente.
+     */
+    public static MediaDataSource mediaDataSource(String key, String name) throws IOException, GeneralSecurityException {
+        SeekableByteChannel channel = Diary.keys().openChannel(
+                new FileInputStream(new File(dir(key), name)).getChannel(), associatedName(key, name));
+        return new MediaDataSource() {
+            @Override
+            public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+                if (position >= channel.size())
+                    return -1;
+                channel.position(position);
+                int n = channel.read(ByteBuffer.wrap(buffer, offset, size));
+                if (n > 0)
+                    Metrics.bytesRead.add(n);
+                return n;
+            }
+
+            @Override
+            public long getSize() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Öffnet {@link #mediaDataSource} im Hintergrund und liefert die Quelle auf dem Main-Thread.
+     */
+    public static Future<MediaDataSource> openMediaAsync(String key, String name, DiaryIO.Callback<MediaDataSource> callback) {
+        return DiaryIO.submit(() -> mediaDataSource(key, name), callback);
+    }
+
+    /**
+     * Löscht Anhang und Vorschaubild; ein bereits dekodiertes Vorschaubild verwirft {@link Thumbnails#remove}.
+     */
+    public static boolean delete(String key, String name) {
+        thumbnailFile(key, name).delete();
+        return new File(dir(key), name).delete();
+    }
+
+    /**
+     * Löscht alle Anhänge von {@code key}, siehe {@link DiaryEntry#delete()}.
+     */
+    static void deleteAll(String key) {
+        File dir = dir(key);
+        String[] names = dir.list();
+        if (names == null)
+            return;
+        for (String name : names) {
+            if (!new File(dir, name).delete())
+                Log.w("Attachments", "could not delete " + key + "/" + name);
+        }
+        dir.delete();
+    }
+
+    // Vorschaubilder liegen neben dem Anhang und werden mit ihm gelöscht und neu verschlüsselt
+
+    private static File thumbnailFile(String key, String name) {
+        return new File(dir(key), name + thumbnailSuffix);
+    }
+
+    static InputStream openThumbnail(String key, String name) throws IOException, GeneralSecurityException {
+        File file = thumbnailFile(key, name);
+        return Diary.keys().openInput(new FileInputStream(file), associatedName(key, file.getName()));
+    }
+
+    static OutputStream createThumbnail(String key, String name) throws IOException, GeneralSecurityException {
+        File file = thumbnailFile(key, name);
+        File tmpFile = new File(file.getPath() + FileDiaryStore.tmpSuffix);
+        OutputStream out = Diary.keys().openOutput(FileDiaryStore.syncingOutput(tmpFile), associatedName(key, file.getName()));
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } catch (IOException e) {
+                    tmpFile.delete();
+                    throw e;
+                }
+                rename(tmpFile, file);
+            }
+        };
+    }
+
+    static boolean hasThumbnail(String key, String name) {
+        return thumbnailFile(key, name).exists();
+    }
+
+    /**
+     * Verschlüsselt alle Anhänge und Vorschaubilder mit dem aktuellen Schlüssel neu, vor dem Abschluss einer
+     * Schlüsselrotation; gestreamt, Anhänge können groß sein.
+     *
+     * @return Anzahl neu verschlüsselter Dateien
+     */
+    static int rewrite() throws IOException, GeneralSecurityException {
+        String[] keys = new File(Diary.dataDir(), attachmentDir).list();
+        if (keys == null)
+            return 0;
+        int rewritten = 0;
+        byte[] buffer = new byte[bufferSize];
+        for (String key : keys) {
+            File dir = dir(key);
+            String[] names = dir.list();
+            if (names == null)
+                continue;
+            for (String name : names) {
+                if (name.endsWith(FileDiaryStore.tmpSuffix))
+                    continue;
+                File file = new File(dir, name);
+                File tmpFile = new File(dir, name + FileDiaryStore.tmpSuffix);
+                try (InputStream in = Diary.keys().openInput(new FileInputStream(file), associatedName(key, name));
+                     OutputStream out = Diary.keys().openOutput(FileDiaryStore.syncingOutput(tmpFile), associatedName(key, name))) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1)
+                        out.write(buffer, 0, n);
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    tmpFile.delete();
+                    throw e;
+                }
+                rename(tmpFile, file);
+                rewritten++;
+            }
+        }
+        return rewritten;
+    }
+}
@@ -0,0 +1,341 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Sicherung aller Einträge in einer Datei, verschlüsselt mit einem aus einem Passwort abgeleiteten Schlüssel
+ * (unabhängig vom Keystore, also auch auf einem anderen Gerät wiederherstellbar).
+ * <p>
+ * Beide Richtungen laufen als Pipeline auf einem ForkJoinPool: Sichern liest und entschlüsselt, komprimiert
+ * und verschlüsselt jeden Eintrag in eigenen Stufen, Wiederherstellen entschlüsselt, entpackt und speichert.
+ * Die Datei selbst wird sequentiell vom aufrufenden Thread geschrieben bzw. gelesen. Es sind höchstens
+ * {@link #window} Einträge gleichzeitig unterwegs, der Speicherbedarf hängt also nicht von der Anzahl ab.
+ * <p>
+ * Format: Kopf "SDBK", Version, Salt, Iterationen; dann je Eintrag Namenslänge (short), Name (UTF-8),
+ * Länge (int), Nonce und AES-GCM(Deflate(Text)) mit AD = Kopf || Index || Name. Den Abschluss bildet ein
+ * Datensatz mit leerem Namen, der die Anzahl verschlüsselt; ein abgeschnittenes Archiv fällt so auf.
+ */
+public class Backup {
+
+    private static final int magic = 0x5344424b; // SDBK
+    private static final int version = 1;
+    private static final int saltLength = 16;
+    private static final int nonceLength = 12;
+    private static final int tagBits = 128;
+    private static final int iterations = 100000;
+    private static final int keyBits = 256;
+    private static final String keyDerivation = "PBKDF2WithHmacSHA1"; // HmacSHA256-Variante erst ab API 26
+    private static final String cipherAlgorithm = "AES/GCM/NoPadding";
+    private static final int maxRecordLength = 256 * 1024 * 1024;
+
+    private static final int parallelism = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int window = 2 * parallelism;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(cipherAlgorithm);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    // eine Pipeline-Stufe; Ausnahmen werden als CompletionException weitergereicht
+    private interface Stage<A, B> {
+        B apply(A a) throws Exception;
+    }
+
+    private static <A, B> Function<A, B> stage(Stage<A, B> stage) {
+        return a -> {
+            try {
+                return stage.apply(a);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    /**
+     * Sichert alle gespeicherten Einträge nach {@code out}.
+     *
+     * @return Anzahl gesicherter Einträge
+     */
+    public static int export(OutputStream out, char[] password) throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        DiaryStore store = Diary.store();
+        List<String> fileNames = new ArrayList<>();
+        for (DiaryEntry entry : Diary.entries()) {
+            if (store.exists(entry.fileName()))
+                fileNames.add(entry.fileName());
+        }
+        byte[] salt = new byte[saltLength];
+        random.nextBytes(salt);
+        byte[] header = header(salt, iterations);
+        SecretKey key = deriveKey(password, salt, iterations);
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, TextCodec.bufferSize));
+        data.write(header);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+            ArrayDeque<String> pendingNames = new ArrayDeque<>();
+            for (int i = 0; i < fileNames.size(); i++) {
+                String fileName = fileNames.get(i);
+                int index = i;
+                pending.add(CompletableFuture.supplyAsync(() -> fileName, pool)
+                        .thenApplyAsync(stage(name -> read(store, name)), pool)
+                        .thenApplyAsync(stage(Backup::deflate), pool)
+                        .thenApplyAsync(stage(plain -> seal(key, header, index, fileName, plain)), pool));
+                pendingNames.add(fileName);
+                if (pending.size() >= window)
+                    writeRecord(data, pendingNames.poll(), join(pending.poll()));
+            }
+            while (!pending.isEmpty())
+                writeRecord(data, pendingNames.poll(), join(pending.poll()));
+            // Abschluss mit Anzahl
+            byte[] count = ByteBuffer.allocate(4).putInt(fileNames.size()).array();
+            writeRecord(data, "", seal(key, header, fileNames.size(), "", count));
+            data.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+        Log.v("Backup", fileNames.size() + " entries exported in " + (System.nanoTime() - start) / 1000000 + "ms");
+        return fileNames.size();
+    }
+
+    /**
+     * Stellt die Einträge aus {@code in} wieder her; vorhandene Einträge desselben Tages werden ersetzt.
+     * Jeder Datensatz ist für sich authentifiziert, bei einem beschädigten oder abgeschnittenen Archiv
+     * bleiben die bis dahin gelesenen Einträge erhalten und es gibt eine Ausnahme.
+     *
+     * @return Anzahl wiederhergestellter Einträge
+     */
+    public static int restore(InputStream in, char[] password) throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, TextCodec.bufferSize));
+        if (data.readInt() != magic || data.readInt() != version)
+            throw new IOException("not a diary backup");
+        byte[] salt = new byte[saltLength];
+        data.readFully(salt);
+        int iterations = data.readInt();
+        if (iterations <= 0)
+            throw new IOException("invalid backup header");
+        byte[] header = header(salt, iterations);
+        SecretKey key = deriveKey(password, salt, iterations);
+
+        DiaryStore store = Diary.store();
+        // vorhandene Dateien je Tag, um Einträge mit anderer Stimmung zu ersetzen
+        Map<String, String> existing = new HashMap<>();
+        for (String fileName : store.list())
+            existing.put(DiaryStore.dayKey(fileName), fileName);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        int index = 0;
+        try {
+            ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<>();
+            while (true) {
+                String fileName = readName(data);
+                byte[] sealed = readSealed(data);
+                if (fileName.isEmpty()) {
+                    byte[] count = open(key, header, index, "", sealed);
+                    if (count.length != 4 || ByteBuffer.wrap(count).getInt() != index)
+                        throw new IOException("invalid backup trailer");
+                    break;
+                }
+                if (EpochDay.parse(fileName, 0) == EpochDay.invalid || fileName.indexOf('/') >= 0)
+                    throw new IOException("invalid entry name in backup");
+                int recordIndex = index++;
+                String replaced = existing.get(DiaryStore.dayKey(fileName));
+                pending.add(CompletableFuture.supplyAsync(() -> sealed, pool)
+                        .thenApplyAsync(stage(bytes -> open(key, header, recordIndex, fileName, bytes)), pool)
+                        .thenApplyAsync(stage(Backup::inflate), pool)
+                        .thenApplyAsync(stage(plain -> write(store, fileName, plain, replaced)), pool));
+                if (pending.size() >= window)
+                    join(pending.poll());
+            }
+            while (!pending.isEmpty())
+                join(pending.poll());
+        } finally {
+            pool.shutdownNow();
+            TextCache.clear();
+            Diary.refresh();
+        }
+        Log.v("Backup", index + " entries restored in " + (System.nanoTime() - start) / 1000000 + "ms");
+        return index;
+    }
+
+    private static byte[] header(byte[] salt, int iterations) {
+        return ByteBuffer.allocate(12 + salt.length).putInt(magic).putInt(version).put(salt).putInt(iterations).array();
+    }
+
+    private static SecretKey deriveKey(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyBits);
+        try {
+            byte[] keyBytes = SecretKeyFactory.getInstance(keyDerivation).generateSecret(spec).getEncoded();
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] associatedData(byte[] header, int index, String fileName) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(header.length + 4 + name.length).put(header).putInt(index).put(name).array();
+    }
+
+    // Stufen
+
+    private static byte[] read(DiaryStore store, String fileName) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(store.length(fileName), Integer.MAX_VALUE - 8));
+        try (InputStream in = store.openInput(fileName)) {
+            byte[] buffer = new byte[TextCodec.bufferSize];
+            int nRead;
+            while ((nRead = in.read(buffer)) != -1)
+                out.write(buffer, 0, nRead);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] plain) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2 + 64);
+            byte[] buffer = new byte[TextCodec.bufferSize];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) throws DataFormatException, IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[TextCodec.bufferSize];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated entry in backup");
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] seal(SecretKey key, byte[] header, int index, String fileName, byte[] plain) throws GeneralSecurityException {
+        byte[] nonce = new byte[nonceLength];
+        random.nextBytes(nonce);
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(tagBits, nonce));
+        cipher.updateAAD(associatedData(header, index, fileName));
+        byte[] sealed = new byte[nonceLength + cipher.getOutputSize(plain.length)];
+        System.arraycopy(nonce, 0, sealed, 0, nonceLength);
+        cipher.doFinal(plain, 0, plain.length, sealed, nonceLength);
+        return sealed;
+    }
+
+    private static byte[] open(SecretKey key, byte[] header, int index, String fileName, byte[] sealed) throws GeneralSecurityException {
+        if (sealed.length < nonceLength)
+            throw new GeneralSecurityException("record too short");
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(tagBits, sealed, 0, nonceLength));
+        cipher.updateAAD(associatedData(header, index, fileName));
+        return cipher.doFinal(sealed, nonceLength, sealed.length - nonceLength);
+    }
+
+    private static String write(DiaryStore store, String fileName, byte[] plain, String replaced) throws IOException, GeneralSecurityException {
+        try (DiaryStore.Output out = store.openOutput(fileName)) {
+            out.write(plain);
+            out.commit();
+        }
+        if (replaced != null && !replaced.equals(fileName))
+            store.delete(replaced); // gleicher Tag, andere Stimmung
+        return fileName;
+    }
+
+    // Datei
+
+    private static void writeRecord(DataOutputStream data, String fileName, byte[] sealed) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        data.writeShort(name.length);
+        data.write(name);
+        data.writeInt(sealed.length);
+        data.write(sealed);
+    }
+
+    private static String readName(DataInputStream data) throws IOException {
+        byte[] name = new byte[data.readUnsignedShort()];
+        data.readFully(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readSealed(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0 || length > maxRecordLength)
+            throw new IOException("invalid record length " + length);
+        byte[] sealed = new byte[length];
+        data.readFully(sealed);
+        return sealed;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Blockformat für lange Einträge in {@link FileDiaryStore}: der Klartext liegt in Blöcken von bis zu 4 KB,
+ * jeder für sich mit dem StreamingAead verschlüsselt, dazu eine verschlüsselte Blocktabelle (Länge, Lage und
+ * SHA-256 jedes Blocks). Beim Speichern werden nur Blöcke neu verschlüsselt, deren Inhalt sich geändert hat;
+ * gleich gebliebene Blöcke am Anfang und Ende werden per Hash erkannt und behalten, auch wenn sich
+ * dazwischen die Länge ändert. Kennt der Aufrufer den geänderten Bereich ({@link #replaceRange}), entfällt auch
+ * das Hashen: der Aufwand hängt dann nur von der Größe der Änderung ab, nicht von der des Eintrags.
+ * <p>
+ * Datei: magic und Version, zwei Kopf-Slots (Folgenummer, Lage und Länge der Tabelle, CRC), danach Blöcke und
+ * Tabellen. Neue Blöcke und die neue Tabelle werden angehängt und mit fsync geschrieben, erst dann der
+ * Kopf-Slot der nächsten Folgenummer; ein abgebrochenes Schreiben lässt den vorigen Stand lesbar. Danach werden
+ * der vorige Slot und die vorige Tabelle überschrieben, ein älterer Stand lässt sich so nicht wieder einsetzen.
+ * Wird zu viel Platz überholt, werden die noch gültigen Blöcke unverändert in eine neue Datei kopiert.
+ * <p>
+ * Associated Data ist der Tag (umbenennungsfest) mit Block-Id bzw. Folgenummer der Tabelle.
+ */
+class BlockFile {
+
+    static final int magic = 0x53444246; // SDBF, erstes Byte nie Tinks Kopflänge
+    private static final int version = 1;
+    static final int blockSize = 4 * 1024;
+    private static final int headerSize = 8;
+    private static final int slotSize = 24;
+    private static final int dataOffset = headerSize + 2 * slotSize;
+    private static final int hashLength = 16; // SHA-256, gekürzt
+    private static final int tableRecordSize = 8 + 4 + 8 + 4 + hashLength;
+
+    private static final class Block {
+        final long id;
+        final int length; // Klartext
+        final long offset; // in der Datei
+        final int cipherLength;
+        final byte[] hash;
+
+        Block(long id, int length, long offset, int cipherLength, byte[] hash) {
+            this.id = id;
+            this.length = length;
+            this.offset = offset;
+            this.cipherLength = cipherLength;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Table {
+        long sequence;
+        long contentHash; // Fingerabdruck der verschlüsselten Tabelle
+        long nextBlockId;
+        long tableOffset; // verschlüsselte Tabelle in der Datei, tableLength 0 solange keine
+        int tableLength;
+        final List<Block> blocks = new ArrayList<>();
+
+        long liveBytes() {
+            long live = 0;
+            for (Block block : blocks)
+                live += block.cipherLength;
+            return live;
+        }
+
+        long plaintextLength() {
+            long length = 0;
+            for (Block block : blocks)
+                length += block.length;
+            return length;
+        }
+    }
+
+    /**
+     * true, wenn {@code file} im Blockformat vorliegt.
+     */
+    static boolean isBlockFile(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.length() >= dataOffset && raf.readInt() == magic;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Schreibt {@code plaintext}; ist {@code file} bereits eine Blockdatei, nur geänderte Blöcke.
+     *
+     * @param tmpFile für das vollständige Neuschreiben, wird danach umbenannt
+     * @return Fingerabdruck der neuen Tabelle als Inhalts-Hash
+     */
+    static long write(File file, File tmpFile, String dayKey, byte[] plaintext, int length, KeyProvider keys)
+            throws IOException, GeneralSecurityException {
+        if (isBlockFile(file)) {
+            Table table;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                table = readTable(raf, dayKey, keys);
+                update(raf, table, dayKey, plaintext, length, keys);
+                if (!isWasteful(raf.getChannel(), table))
+                    return table.contentHash;
+            }
+            return compact(file, tmpFile, table, dayKey, keys);
+        }
+        long contentHash;
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.setLength(0);
+            Table table = new Table();
+            raf.writeInt(magic);
+            raf.writeInt(version);
+            FileChannel channel = raf.getChannel();
+            channel.position(dataOffset);
+            appendBlocks(channel, table, table.blocks.size(), dayKey, plaintext, 0, length, keys);
+            contentHash = commit(raf, table, dayKey, keys);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        rename(tmpFile, file);
+        return contentHash;
+    }
+
+    /**
+     * Ersetzt die Klartext-Bytes [from, to) des {@code storedLength} Bytes langen Stands durch die ersten {@code length} Bytes von {@code replacement}.
+     * Der übrige Text wird weder gelesen noch gehasht, entschlüsselt werden nur die Blöcke an den Rändern.
+     *
+     * @return Fingerabdruck der neuen Tabelle, {@link Fingerprint#none} wenn {@code file} keine Blockdatei ist
+     * oder der Bereich nicht zum gespeicherten Stand passt
+     */
+    static long replaceRange(File file, File tmpFile, String dayKey, long storedLength, long from, long to, byte[] replacement, int length, KeyProvider keys)
+            throws IOException, GeneralSecurityException {
+        if (!isBlockFile(file))
+            return Fingerprint.none;
+        Table table;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            table = readTable(raf, dayKey, keys);
+            List<Block> blocks = table.blocks;
+            if (table.plaintextLength() != storedLength || from < 0 || from > to || to > storedLength)
+                return Fingerprint.none;
+            // betroffen: der Block mit from bis einschließlich dem mit to - 1
+            int first = 0;
+            long regionStart = 0;
+            while (first < blocks.size() - 1 && regionStart + blocks.get(first).length <= from) {
+                regionStart += blocks.get(first).length;
+                first++;
+            }
+            int last = first;
+            long regionEnd = regionStart;
+            while (last < blocks.size() && (last == first || regionEnd < to)) {
+                regionEnd += blocks.get(last).length;
+                last++;
+            }
+            byte[] region = new byte[(int) (regionEnd - regionStart - (to - from)) + length];
+            int head = (int) (from - regionStart);
+            if (head > 0) {
+                byte[] plain = decrypt(raf, blocks.get(first), dayKey, keys);
+                System.arraycopy(plain, 0, region, 0, head);
+                Arrays.fill(plain, (byte) 0);
+            }
+            System.arraycopy(replacement, 0, region, head, length);
+            if (to < regionEnd) {
+                Block tail = blocks.get(last - 1);
+                byte[] plain = decrypt(raf, tail, dayKey, keys);
+                int skip = (int) (to - (regionEnd - tail.length));
+                System.arraycopy(plain, skip, region, head + length, plain.length - skip);
+                Arrays.fill(plain, (byte) 0);
+            }
+            List<Block> suffix = new ArrayList<>(blocks.subList(last, blocks.size()));
+            blocks.subList(first, blocks.size()).clear();
+            FileChannel channel = raf.getChannel();
+            channel.position(channel.size());
+            int added;
+            try {
+                added = appendBlocks(channel, table, first, dayKey, region, 0, region.length, keys);
+            } finally {
+                Arrays.fill(region, (byte) 0);
+            }
+            blocks.addAll(suffix);
+            commit(raf, table, dayKey, keys);
+            Log.v("BlockFile", (last - first) + " blocks replaced by " + added + ", " + blocks.size() + " blocks");
+            if (!isWasteful(channel, table))
+                return table.contentHash;
+        }
+        return compact(file, tmpFile, table, dayKey, keys);
+    }
+
+    // mehr als die Hälfte überholt: Blöcke alter Stände, die nur noch Platz belegen
+    private static boolean isWasteful(FileChannel channel, Table table) throws IOException {
+        return channel.size() > 2 * (table.liveBytes() + tableRecordSize * (long) table.blocks.size()) + 16 * blockSize;
+    }
+
+    /**
+     * Verschlüsselt alle Blöcke und die Tabelle mit dem aktuellen Schlüssel neu, einen Block nach dem anderen,
+     * für {@link KeyRotation}; Inhalt und Blockeinteilung bleiben, der Eintrag bleibt also im Blockformat.
+     *
+     * @return Fingerabdruck der neuen Tabelle
+     */
+    static long reencrypt(File file, File tmpFile, String dayKey, KeyProvider keys) throws IOException, GeneralSecurityException {
+        Table table;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            table = readTable(raf, dayKey, keys);
+        }
+        return compact(file, tmpFile, table, dayKey, keys, true);
+    }
+
+    private static long compact(File file, File tmpFile, Table table, String dayKey, KeyProvider keys)
+            throws IOException, GeneralSecurityException {
+        return compact(file, tmpFile, table, dayKey, keys, false);
+    }
+
+    // kopiert die gültigen Blöcke in eine neue Datei: verschlüsselt, wie sie sind (Associated Data hängt nicht an
+    // der Lage), bzw. mit reencrypt einzeln entschlüsselt und mit dem aktuellen Schlüssel neu verschlüsselt
+    private static long compact(File file, File tmpFile, Table table, String dayKey, KeyProvider keys, boolean reencrypt)
+            throws IOException, GeneralSecurityException {
+        long contentHash;
+        try (RandomAccessFile source = new RandomAccessFile(file, "r");
+             RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.setLength(0);
+            raf.writeInt(magic);
+            raf.writeInt(version);
+            FileChannel channel = raf.getChannel();
+            channel.position(dataOffset);
+            List<Block> blocks = table.blocks;
+            for (int i = 0; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                ByteBuffer ciphertext;
+                if (reencrypt) {
+                    byte[] plain = decrypt(source, block, dayKey, keys);
+                    try {
+                        ciphertext = ByteBuffer.wrap(encrypt(plain, 0, plain.length, blockAssociatedName(dayKey, block.id), keys));
+                    } finally {
+                        Arrays.fill(plain, (byte) 0);
+                    }
+                } else {
+                    ciphertext = ByteBuffer.allocate(block.cipherLength);
+                    readFully(source.getChannel(), ciphertext, block.offset);
+                    ciphertext.flip();
+                }
+                int cipherLength = ciphertext.remaining();
+                long position = channel.position();
+                writeFully(channel, ciphertext);
+                blocks.set(i, new Block(block.id, block.length, position, cipherLength, block.hash));
+            }
+            table.tableLength = 0; // die alten Tabellen verschwinden mit der alten Datei
+            contentHash = commit(raf, table, dayKey, keys);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        rename(tmpFile, file);
+        Log.v("BlockFile", (reencrypt ? "re-encrypted, " : "compacted, ") + table.blocks.size() + " blocks");
+        return contentHash;
+    }
+
+    private static void rename(File tmpFile, File file) throws IOException {
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile);
+        }
+    }
+
+    private static void update(RandomAccessFile raf, Table table, String dayKey, byte[] plaintext, int length, KeyProvider keys)
+            throws IOException, GeneralSecurityException {
+        MessageDigest digest = EntrySigner.digest();
+        List<Block> blocks = table.blocks;
+        // gleiche Blöcke am Anfang ...
+        int first = 0;
+        int start = 0;
+        while (first < blocks.size() && matches(digest, blocks.get(first), plaintext, start, length)) {
+            start += blocks.get(first).length;
+            first++;
+        }
+        // ... und am Ende
+        int last = blocks.size();
+        int end = length;
+        while (last > first && end - blocks.get(last - 1).length >= start
+                && matches(digest, blocks.get(last - 1), plaintext, end - blocks.get(last - 1).length, length)) {
+            end -= blocks.get(last - 1).length;
+            last--;
+        }
+        if (first == last && start == end)
+            return; // unverändert
+        List<Block> suffix = new ArrayList<>(blocks.subList(last, blocks.size()));
+        blocks.subList(first, blocks.size()).clear();
+        FileChannel channel = raf.getChannel();
+        channel.position(channel.size());
+        int added = appendBlocks(channel, table, first, dayKey, plaintext, start, end, keys);
+        blocks.addAll(suffix);
+        commit(raf, table, dayKey, keys);
+        Log.v("BlockFile", (last - first) + " blocks replaced by " + added + ", " + blocks.size() + " blocks");
+    }
+
+    private static boolean matches(MessageDigest digest, Block block, byte[] plaintext, int offset, int length) {
+        if (offset + block.length > length)
+            return false;
+        return Arrays.equals(block.hash, hash(digest, plaintext, offset, block.length));
+    }
+
+    private static byte[] hash(MessageDigest digest, byte[] bytes, int offset, int length) {
+        digest.reset();
+        digest.update(bytes, offset, length);
+        return Arrays.copyOf(digest.digest(), hashLength);
+    }
+
+    // verschlüsselt [from, to) in gleich große Blöcke von höchstens blockSize und fügt sie bei index ein
+    private static int appendBlocks(FileChannel channel, Table table, int index, String dayKey, byte[] plaintext, int from, int to, KeyProvider keys)
+            throws IOException, GeneralSecurityException {
+        int length = to - from;
+        int count = (length + blockSize - 1) / blockSize;
+        MessageDigest digest = EntrySigner.digest();
+        int offset = from;
+        for (int i = 0; i < count; i++) {
+            int blockLength = (length - (offset - from)) / (count - i);
+            long id = table.nextBlockId++;
+            byte[] ciphertext = encrypt(plaintext, offset, blockLength, blockAssociatedName(dayKey, id), keys);
+            long position = channel.position();
+            writeFully(channel, ByteBuffer.wrap(ciphertext));
+            table.blocks.add(index + i, new Block(id, blockLength, position, ciphertext.length, hash(digest, plaintext, offset, blockLength)));
+            offset += blockLength;
+        }
+        return count;
+    }
+
+    // hängt die Tabelle an, synchronisiert und schreibt dann den Kopf-Slot der nächsten Folgenummer;
+    // danach werden vorige Tabelle und voriger Slot überschrieben
+    private static long commit(RandomAccessFile raf, Table table, String dayKey, KeyProvider keys)
+            throws IOException, GeneralSecurityException {
+        FileChannel channel = raf.getChannel();
+        table.sequence++;
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(16 + tableRecordSize * table.blocks.size());
+        DataOutputStream out = new DataOutputStream(plain);
+        out.writeLong(table.nextBlockId);
+        out.writeInt(table.blocks.size());
+        for (Block block : table.blocks) {
+            out.writeLong(block.id);
+            out.writeInt(block.length);
+            out.writeLong(block.offset);
+            out.writeInt(block.cipherLength);
+            out.write(block.hash);
+        }
+        byte[] tableBytes = plain.toByteArray();
+        byte[] ciphertext = encrypt(tableBytes, 0, tableBytes.length, tableAssociatedName(dayKey, table.sequence), keys);
+        long tableOffset = channel.size();
+        channel.position(tableOffset);
+        writeFully(channel, ByteBuffer.wrap(ciphertext));
+        channel.force(false);
+
+        ByteBuffer slot = ByteBuffer.allocate(slotSize);
+        slot.putLong(table.sequence).putLong(tableOffset).putInt(ciphertext.length);
+        CRC32 crc = new CRC32();
+        crc.update(slot.array(), 0, slot.position());
+        slot.putInt((int) crc.getValue());
+        slot.flip();
+        channel.position(headerSize + (table.sequence % 2) * slotSize);
+        writeFully(channel, slot);
+        channel.force(false);
+        if (table.tableLength > 0) {
+            writeFully(channel, ByteBuffer.allocate(slotSize), headerSize + ((table.sequence - 1) % 2) * slotSize);
+            writeFully(channel, ByteBuffer.allocate(table.tableLength), table.tableOffset);
+            channel.force(false);
+        }
+        table.tableOffset = tableOffset;
+        table.tableLength = ciphertext.length;
+        table.contentHash = Fingerprint.of(ciphertext);
+        return table.contentHash;
+    }
+
+    private static Table readTable(RandomAccessFile raf, String dayKey, KeyProvider keys) throws IOException, GeneralSecurityException {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != magic || header.getInt(4) != version)
+            throw new IOException("unknown block file version");
+        long[] slot = currentSlot(channel);
+        while (true) {
+            try {
+                return readTable(channel, slot, dayKey, keys);
+            } catch (IOException | GeneralSecurityException e) {
+                // beim Lesen überholt und überschrieben, siehe commit
+                long[] current = currentSlot(channel);
+                if (current[0] == slot[0])
+                    throw e;
+                slot = current;
+            }
+        }
+    }
+
+    // Folgenummer, Lage und Länge der neuesten Tabelle
+    private static long[] currentSlot(FileChannel channel) throws IOException {
+        long[] best = null;
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer slot = ByteBuffer.allocate(slotSize);
+            readFully(channel, slot, headerSize + (long) i * slotSize);
+            CRC32 crc = new CRC32();
+            crc.update(slot.array(), 0, slotSize - 4);
+            if (slot.getLong(0) == 0 || slot.getInt(slotSize - 4) != (int) crc.getValue())
+                continue; // leer, überholt oder beim Schreiben abgerissen
+            long sequence = slot.getLong(0);
+            if (best == null || sequence > best[0])
+                best = new long[]{sequence, slot.getLong(8), slot.getInt(16)};
+        }
+        if (best == null || best[1] < dataOffset || best[2] < 0 || best[1] + best[2] > channel.size())
+            throw new IOException("no valid block table");
+        return best;
+    }
+
+    private static Table readTable(FileChannel channel, long[] slot, String dayKey, KeyProvider keys) throws IOException, GeneralSecurityException {
+        ByteBuffer ciphertext = ByteBuffer.allocate((int) slot[2]);
+        readFully(channel, ciphertext, slot[1]);
+        Table table = new Table();
+        table.sequence = slot[0];
+        table.tableOffset = slot[1];
+        table.tableLength = (int) slot[2];
+        table.contentHash = Fingerprint.of(ciphertext.array());
+        try (DataInputStream in = new DataInputStream(
+                keys.openInput(new ByteArrayInputStream(ciphertext.array()), tableAssociatedName(dayKey, table.sequence)))) {
+            table.nextBlockId = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                int length = in.readInt();
+                long offset = in.readLong();
+                int cipherLength = in.readInt();
+                byte[] hash = new byte[hashLength];
+                in.readFully(hash);
+                table.blocks.add(new Block(id, length, offset, cipherLength, hash));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Entschlüsselt Block für Block, es liegt immer nur ein Block im Speicher.
+     */
+    static InputStream openInput(File file, String dayKey, KeyProvider keys) throws IOException, GeneralSecurityException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        Table table;
+        try {
+            table = readTable(raf, dayKey, keys);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        return new InputStream() {
+            private int index;
+            private InputStream block;
+
+            private boolean nextBlock() throws IOException {
+                while (block == null || block.available() == 0) {
+                    if (index >= table.blocks.size())
+                        return false;
+                    block = new ByteArrayInputStream(decrypt(raf, table.blocks.get(index++), dayKey, keys));
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!nextBlock())
+                    return -1;
+                return block.read();
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0)
+                    return 0;
+                if (!nextBlock())
+                    return -1;
+                return block.read(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                raf.close();
+            }
+        };
+    }
+
+    /**
+     * Wahlfreier Zugriff über die Blocktabelle beim Öffnen: entschlüsselt nur die Blöcke, die gelesen werden.
+     * Spätere Änderungen hängen an bzw. schreiben eine neue Datei, der geöffnete Stand bleibt lesbar.
+     */
+    static DiaryStore.PlaintextReader openReader(File file, String dayKey, KeyProvider keys) throws IOException, GeneralSecurityException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        Table table;
+        try {
+            table = readTable(raf, dayKey, keys);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        long[] starts = new long[table.blocks.size() + 1]; // Klartext-Position jedes Blocks
+        for (int i = 0; i < table.blocks.size(); i++)
+            starts[i + 1] = starts[i] + table.blocks.get(i).length;
+        return new DiaryStore.PlaintextReader() {
+            // zuletzt entschlüsselter Block, für aufeinanderfolgende Lesezugriffe
+            private int cachedIndex = -1;
+            private byte[] cached;
+
+            @Override
+            public long length() {
+                return starts[starts.length - 1];
+            }
+
+            @Override
+            public synchronized int read(long position, byte[] bytes, int offset, int length) throws IOException {
+                if (position >= length())
+                    return -1;
+                int index = Arrays.binarySearch(starts, position);
+                if (index < 0)
+                    index = -index - 2; // Block, in dem position liegt
+                while (table.blocks.get(index).length == 0)
+                    index++;
+                if (index != cachedIndex) {
+                    cached = decrypt(raf, table.blocks.get(index), dayKey, keys);
+                    cachedIndex = index;
+                }
+                int from = (int) (position - starts[index]);
+                int n = Math.min(length, cached.length - from);
+                System.arraycopy(cached, from, bytes, offset, n);
+                return n;
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                cached = null;
+                raf.close();
+            }
+        };
+    }
+
+    private static byte[] decrypt(RandomAccessFile raf, Block block, String dayKey, KeyProvider keys) throws IOException {
+        ByteBuffer ciphertext = ByteBuffer.allocate(block.cipherLength);
+        readFully(raf.getChannel(), ciphertext, block.offset);
+        byte[] plain = new byte[block.length];
+        try (DataInputStream in = new DataInputStream(keys.openInput(
+                new ByteArrayInputStream(ciphertext.array()), blockAssociatedName(dayKey, block.id)))) {
+            in.readFully(plain);
+            if (in.read() != -1)
+                throw new IOException("block length mismatch");
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        return plain;
+    }
+
+    private static byte[] encrypt(byte[] plaintext, int offset, int length, String associatedName, KeyProvider keys)
+            throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream(length + 64);
+        try (OutputStream out = keys.openOutput(ciphertext, associatedName)) {
+            out.write(plaintext, offset, length);
+        }
+        return ciphertext.toByteArray();
+    }
+
+    private static String blockAssociatedName(String dayKey, long id) {
+        return dayKey + "#" + id;
+    }
+
+    private static String tableAssociatedName(String dayKey, long sequence) {
+        return dayKey + "#table" + sequence;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("unexpected end of block file");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.linkesoft.secretdiary.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ergebnis von {@link Diary#refresh()}: Schlüssel (yyyy-MM-dd) der hinzugekommenen, entfernten
+ * und geänderten (z.B. umbenannt wegen Stimmung) Einträge.
+ */
+public class ChangeSet {
+
+    public static final ChangeSet empty = new ChangeSet(Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+
+    public final List<String> added;
+    public final List<String> removed;
+    public final List<String> changed;
+
+    ChangeSet() {
+        this(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+    }
+
+    private ChangeSet(List<String> added, List<String> removed, List<String> changed) {
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    public int size() {
+        return added.size() + removed.size() + changed.size();
+    }
+
+    @Override
+    public String toString() {
+        return "+" + added.size() + " -" + removed.size() + " ~" + changed.size();
+    }
+}
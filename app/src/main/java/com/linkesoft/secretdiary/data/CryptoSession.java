@@ -0,0 +1,167 @@
+package com.linkesoft.secretdiary.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.security.crypto.EncryptedSharedPreferences;
+import androidx.security.crypto.MasterKey;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.StreamingAead;
+import com.google.crypto.tink.integration.android.AndroidKeysetManager;
+import com.google.crypto.tink.streamingaead.StreamingAeadConfig;
+import com.linkesoft.secretdiary.App;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schlüssel und Tink-Primitive einer entsperrten Sitzung.
+ * MasterKey, StreamingAead und EncryptedSharedPreferences werden nur einmal pro Entsperren aufgebaut
+ * und beim Sperren ({@link #lock()}) verworfen. Bis zum {@link #unlock()} liefert {@link #get()} keine
+ * Schlüssel mehr; nur {@link Startup} baut sie während des Biometrie-Dialogs schon auf ({@link #open()}).
+ * Während einer {@link KeyRotation} sind zwei Schlüsselgenerationen geladen.
+ */
+public class CryptoSession {
+
+    // dieselben Namen wie in androidx.security.crypto.EncryptedFile, damit vorhandene Dateien lesbar bleiben
+    private static final String keysetPrefName = "__androidx_security_crypto_encrypted_file_pref__";
+    private static final String keysetAlias = "__androidx_security_crypto_encrypted_file_keyset__";
+    private static final String keyStorePathUri = "android-keystore://";
+    private static final String fileEncryptionScheme = "AES256_GCM_HKDF_4KB";
+
+    private static CryptoSession current;
+    private static boolean locked = true; // bis zur ersten Authentifizierung
+
+    private MasterKey masterKey;
+    private final Map<Integer, StreamingAead> streamingAeads = new HashMap<>();
+    private SharedPreferences preferences;
+
+    private CryptoSession(MasterKey masterKey) {
+        this.masterKey = masterKey;
+    }
+
+    /**
+     * Sitzung zum Ver- und Entschlüsseln; wirft, solange die App gesperrt ist. Ausnahme ist der Schreib-Thread,
+     * der vor dem Sperren eingeplante Speichervorgänge noch mit der offenen Sitzung abschließt.
+     */
+    public static synchronized CryptoSession get() throws GeneralSecurityException, IOException {
+        if (locked && (current == null || !EntryWriter.isWriterThread()))
+            throw new GeneralSecurityException("diary locked");
+        return open();
+    }
+
+    /**
+     * Baut die Sitzung auch im gesperrten Zustand auf, nur zum Aufwärmen ({@link KeyProvider#warmUp()}).
+     */
+    static synchronized CryptoSession open() throws GeneralSecurityException, IOException {
+        if (current == null) {
+            long start = System.nanoTime();
+            current = new CryptoSession(AndroidKeyProvider.masterKey(App.appContext()));
+            Metrics.keystoreLoad.recordSince(start);
+            Log.v("CryptoSession", "master key loaded in " + (System.nanoTime() - start) / 1000 + "µs");
+        }
+        return current;
+    }
+
+    public static synchronized boolean isOpen() {
+        return current != null && !locked;
+    }
+
+    /**
+     * Beim Sperren: verwirft die Sitzung sofort bzw., falls noch Speichervorgänge ausstehen, direkt nach diesen.
+     */
+    public static void lock() {
+        synchronized (CryptoSession.class) {
+            locked = true;
+        }
+        if (EntryWriter.isIdle())
+            close();
+        else
+            EntryWriter.afterPendingWrites(CryptoSession::closeIfLocked);
+    }
+
+    /**
+     * Nach erfolgreicher Authentifizierung.
+     */
+    public static synchronized void unlock() {
+        locked = false;
+    }
+
+    private static synchronized void closeIfLocked() {
+        if (locked)
+            close();
+    }
+
+    /**
+     * Verwirft alle zwischengespeicherten Schlüssel-Handles; die nächste Ver-/Entschlüsselung lädt sie neu.
+     */
+    public static synchronized void close() {
+        if (current != null) {
+            current.masterKey = null;
+            current.streamingAeads.clear();
+            current.preferences = null;
+            current = null;
+            Log.d("CryptoSession", "closed");
+        }
+    }
+
+    synchronized MasterKey masterKey() {
+        return masterKey;
+    }
+
+    /**
+     * Keyset der Schlüsselgeneration {@code generation}, Generation 0 ist das bisherige EncryptedFile-Keyset.
+     */
+    synchronized StreamingAead streamingAead(int generation) throws GeneralSecurityException, IOException {
+        StreamingAead streamingAead = streamingAeads.get(generation);
+        if (streamingAead == null) {
+            long start = System.nanoTime();
+            StreamingAeadConfig.register();
+            MasterKey key = generation == 0 ? masterKey : AndroidKeyProvider.masterKey(App.appContext(), generation);
+            KeysetHandle keysetHandle = new AndroidKeysetManager.Builder()
+                    .withKeyTemplate(KeyTemplates.get(fileEncryptionScheme))
+                    .withSharedPref(App.appContext(), keysetAlias(generation), keysetPrefName)
+                    .withMasterKeyUri(keyStorePathUri + key.getKeyAlias())
+                    .build().getKeysetHandle();
+            streamingAead = keysetHandle.getPrimitive(StreamingAead.class);
+            streamingAeads.put(generation, streamingAead);
+            Metrics.keystoreLoad.recordSince(start);
+            Log.v("CryptoSession", "streaming AEAD " + generation + " loaded in " + (System.nanoTime() - start) / 1000 + "µs");
+        }
+        return streamingAead;
+    }
+
+    private static String keysetAlias(int generation) {
+        return generation == 0 ? keysetAlias : keysetAlias + generation;
+    }
+
+    /**
+     * Löscht das Keyset einer nicht mehr benötigten Generation.
+     */
+    static synchronized void deleteKeyset(int generation) {
+        if (current != null) {
+            synchronized (current) {
+                current.streamingAeads.remove(generation);
+            }
+        }
+        App.appContext().getSharedPreferences(keysetPrefName, Context.MODE_PRIVATE)
+                .edit().remove(keysetAlias(generation)).commit();
+    }
+
+    synchronized SharedPreferences preferences() throws GeneralSecurityException, IOException {
+        if (preferences == null) {
+            preferences = EncryptedSharedPreferences.create(App.appContext(),
+                    "diary_prefs",
+                    masterKey,
+                    EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
+                    EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
+            );
+        }
+        return preferences;
+    }
+}
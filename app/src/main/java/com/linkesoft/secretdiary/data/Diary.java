@@ -1,150 +1,697 @@
 package com.linkesoft.secretdiary.data;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyInfo;
-import android.security.keystore.KeyProperties;
 import android.util.Log;
 
-import androidx.security.crypto.EncryptedSharedPreferences;
-import androidx.security.crypto.MasterKey;
-
-import com.linkesoft.secretdiary.App;
-
+import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
-import java.security.KeyFactory;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.cert.CertificateException;
-import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
 
 public class Diary {
 
-    private static final String encryptionKeyStoreAlias = "diary";
-    private static final String signatureKeyStoreAlias = "signdiary";
-
     public static final SortedMap<String, DiaryEntry> entryMap = new TreeMap<>((o1, o2) -> {
         return o2.compareTo(o1); // descending
     });
 
-    public static List<DiaryEntry> entries() {
-        return new ArrayList<>(entryMap.values()); // sorted by key
+    // kompakte Metadaten (Tag, Stimmung, Größe) parallel zu entryMap, aktualisiert von refresh() und toggleMood();
+    // die Stimmungsstatistik (metadata.statistics()) läuft dabei mit
+    public static final EntryMetadataStore metadata = new EntryMetadataStore();
+
+    // bis zum ersten refresh() kommen Liste und Größe direkt aus dem gemappten Manifest
+    private static EntryManifest manifest;
+    private static boolean loaded;
+    private static boolean manifestDirty;
+
+    private static File manifestFile() {
+        return new File(dataDir(), "manifest");
     }
 
-    public static void refresh() {
-        entryMap.clear();
-        for (String fileName : App.appContext().fileList()) {
-            DiaryEntry entry = new DiaryEntry(fileName);
-            entryMap.put(entry.key(), entry);
+    /**
+     * Mappt das Manifest, damit die erste Seite der Liste ohne Verzeichnis-Scan angezeigt werden kann, und
+     * übernimmt es danach im Hintergrund; {@link #entry} usw. laden so nicht auf dem Main-Thread.
+     */
+    public static void openManifest() {
+        synchronized (Diary.class) {
+            if (loaded || manifest != null)
+                return;
+            manifest = EntryManifest.open(manifestFile());
+            if (manifest == null)
+                return;
         }
+        DiaryIO.submit(() -> {
+            loadManifest();
+            return null;
+        }, null);
     }
 
-    public static DiaryEntry newEntry() {
-        // do we have an entry for today already?
-        DiaryEntry entry = entryMap.get(DiaryEntry.yyyymmddDateFormat.format(today()));
-        if (entry == null) {
-            entry = new DiaryEntry(today());
+    // prüft und setzt das Manifest außerhalb des Locks um, nur das Übernehmen sperrt die Liste kurz
+    private static void loadManifest() {
+        EntryManifest manifest;
+        synchronized (Diary.class) {
+            if (loaded)
+                return;
+            manifest = Diary.manifest;
+        }
+        if (manifest == null)
+            return;
+        List<DiaryEntry> entries = manifestEntries(manifest);
+        synchronized (Diary.class) {
+            if (!loaded && Diary.manifest == manifest)
+                adoptManifest(manifest, entries);
+        }
+    }
+
+    // Einträge und Metadaten aus dem Manifest übernehmen, einmal vor dem ersten Zugriff auf entryMap
+    private static void ensureLoaded() {
+        if (loaded)
+            return;
+        EntryManifest manifest = Diary.manifest != null ? Diary.manifest : EntryManifest.open(manifestFile());
+        adoptManifest(manifest, manifest != null ? manifestEntries(manifest) : null);
+    }
+
+    // null, wenn das Manifest beschädigt ist
+    private static List<DiaryEntry> manifestEntries(EntryManifest manifest) {
+        if (!manifest.verify())
+            return null;
+        List<DiaryEntry> entries = new ArrayList<>(manifest.size());
+        for (int i = 0; i < manifest.size(); i++)
+            entries.add(new DiaryEntry(EpochDay.format(manifest.epochDay(i)) + " " + Mood.emoji(manifest.mood(i))));
+        return entries;
+    }
+
+    private static void adoptManifest(EntryManifest manifest, List<DiaryEntry> entries) {
+        loaded = true;
+        Diary.manifest = null;
+        if (manifest == null)
+            return;
+        if (entries == null) {
+            // der nächste refresh() liest alles aus dem Speicher, danach wird das Manifest neu geschrieben
+            Log.w("Diary", "manifest does not match its format, rebuilding");
+            manifestDirty = true;
+            return;
+        }
+        long start = System.nanoTime();
+        manifest.loadInto(metadata);
+        for (int i = 0; i < entries.size(); i++) {
+            DiaryEntry entry = entries.get(i);
             entryMap.put(entry.key(), entry);
+            knownFiles.put(entry.fileName(), new KnownFile(entry.key(), manifest.lastModified(i)));
         }
-        return entry;
+        Log.v("Diary", manifest.size() + " entries loaded from manifest in " + (System.nanoTime() - start) / 1000 + "µs");
     }
 
-    static Date today() {
-        String yyyymmdd = DiaryEntry.yyyymmddDateFormat.format(new Date());
+    /**
+     * Speichert das Manifest, falls sich Metadaten geändert haben; nicht auf dem Main-Thread.
+     */
+    public static synchronized void saveManifest() {
+        if (!loaded || !manifestDirty)
+            return;
         try {
-            return DiaryEntry.yyyymmddDateFormat.parse(yyyymmdd);
-        } catch (ParseException e) {
-            // should not happen
-            throw new RuntimeException(e);
+            EntryManifest.write(manifestFile(), metadata);
+            manifestDirty = false;
+        } catch (IOException e) {
+            Log.e("Diary", "Could not write manifest", e);
         }
     }
 
-    // Schlüssel für symmetrische Verschlüsselung
-    static MasterKey encryptionKey() throws GeneralSecurityException, IOException {
-        MasterKey.Builder builder = new MasterKey.Builder(App.appContext(), encryptionKeyStoreAlias)
-                .setKeyScheme(MasterKey.KeyScheme.AES256_GCM);
-        // optional
-        //if (App.hasBiometricProtection())
-        //    builder.setUserAuthenticationRequired(true, 100); // Sekunden, wirft sonst UserNotAuthenticatedException
+    public static synchronized DiaryEntry entry(String key) {
+        ensureLoaded();
+        return entryMap.get(key);
+    }
 
-        MasterKey masterKey = builder.build();
-        return masterKey;
+    public static synchronized List<DiaryEntry> entries() {
+        ensureLoaded();
+        return new ArrayList<>(entryMap.values()); // sorted by key
     }
 
-    public static SharedPreferences encryptedPreferences() {
-        Context context = App.appContext();
-        try {
-            SharedPreferences sharedPreferences = EncryptedSharedPreferences.create(context,
-                    "diary_prefs",
-                    encryptionKey(),
-                    EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
-                    EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
-            );
-            return sharedPreferences;
-        } catch (Exception e) {
-            Log.e("Diary", "Security exception", e);
-            throw new RuntimeException(e);
+    public static final String backendFiles = "files";
+    public static final String backendSegments = "segments";
+    private static DiaryEnvironment environment;
+    private static DiaryStore store;
+
+    /**
+     * Setzt die Umgebung, z.B. {@link AndroidEnvironment} beim Start der App oder {@link DirectoryEnvironment}
+     * und {@link JceKeyProvider} für Profiling auf der JVM; vor allen anderen Aufrufen.
+     */
+    public static void configure(DiaryEnvironment environment) {
+        configure(environment, null);
+    }
+
+    /**
+     * Wie {@link #configure(DiaryEnvironment)}, mit festem Speicher statt der Einstellung der Umgebung,
+     * z.B. {@link MemoryDiaryStore}.
+     */
+    public static synchronized void configure(DiaryEnvironment environment, DiaryStore store) {
+        Diary.environment = environment;
+        Diary.store = store;
+        entryMap.clear();
+        metadata.clear();
+        knownFiles.clear();
+        knownListingStamp = DiaryStore.unknownStamp;
+        manifest = null;
+        loaded = false;
+        EntryCompression.configure(new File(environment.dataDir(), "dictionaries"), environment.keys());
+    }
+
+    private static synchronized DiaryEnvironment environment() {
+        if (environment == null)
+            throw new IllegalStateException("Diary.configure not called");
+        return environment;
+    }
+
+    /**
+     * Verzeichnis für Hilfsdateien (Index usw.), getrennt von den Eintragsdateien.
+     */
+    static File dataDir() {
+        return environment().dataDir();
+    }
+
+    static File cacheDir() {
+        return environment().cacheDir();
+    }
+
+    static KeyProvider keys() {
+        return environment().keys();
+    }
+
+    /**
+     * Speicher der Einträge: eine Datei pro Eintrag (Standard, bisheriges Format) oder Segmentdateien,
+     * umschaltbar mit {@link #switchStoreAsync}.
+     */
+    static synchronized DiaryStore store() {
+        if (store == null) {
+            String backend = storeBackend();
+            store = openStore(backend);
+            Log.d("Diary", "store " + backend);
         }
+        return store;
     }
 
-    // Schlüssel für digitale Signatur
+    public static String storeBackend() {
+        return environment().storeBackend();
+    }
+
+    private static DiaryStore openStore(String backend) {
+        if (backendSegments.equals(backend)) {
+            try {
+                return new SegmentDiaryStore(new File(dataDir(), "segments"), keys());
+            } catch (IOException e) {
+                Log.e("Diary", "Could not open segment store", e);
+                throw new RuntimeException(e);
+            }
+        }
+        return new FileDiaryStore(environment().filesDir(), keys());
+    }
 
-    private static KeyStore keyStore() throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException {
-        KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-        keyStore.load(null); // KeyStore muss vor Gebrauch geladen werden
-        return keyStore;
+    /**
+     * Wechselt den Speicher und übernimmt dabei alle Einträge; auf dem Schreib-Thread, Speichervorgänge warten
+     * so lange. Erst wenn alles kopiert ist, gilt der neue Speicher, danach wird der alte geleert.
+     * Ergebnis ist die Anzahl übernommener Einträge.
+     */
+    public static Future<Integer> switchStoreAsync(String backend, DiaryIO.Callback<Integer> callback) {
+        return DiaryIO.submitWrite(() -> switchStore(backend), callback);
     }
 
-    private static KeyStore.PrivateKeyEntry privateKeyEntry() {
+    private static int switchStore(String backend) throws IOException, GeneralSecurityException {
+        if (backend.equals(storeBackend()))
+            return 0;
+        long start = System.nanoTime();
+        DiaryStore from = store();
+        DiaryStore to = openStore(backend);
+        Set<String> names = new HashSet<>(Arrays.asList(from.list()));
+        for (String name : to.list()) { // Reste eines früheren Wechsels
+            if (!names.contains(name))
+                to.delete(name);
+        }
+        byte[] buffer = new byte[TextCodec.bufferSize];
         try {
-            KeyStore.PrivateKeyEntry privateKeyEntry = (KeyStore.PrivateKeyEntry) keyStore().getEntry(signatureKeyStoreAlias, null);
-            if (privateKeyEntry == null) {
-                Log.v("Diary", "Generating new private/public key pair");
-                KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
-                KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(signatureKeyStoreAlias, KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY).setDigests(KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA512).build();
-                generator.initialize(spec);
-                KeyPair keyPair = generator.generateKeyPair();
-                privateKeyEntry = (KeyStore.PrivateKeyEntry) keyStore().getEntry(signatureKeyStoreAlias, null);
+            for (String name : names) {
+                try (InputStream in = from.openInput(name);
+                     DiaryStore.Output out = to.openOutput(name)) {
+                    int nRead;
+                    while ((nRead = in.read(buffer)) != -1)
+                        out.write(buffer, 0, nRead);
+                    out.commit();
+                }
             }
-            // ist der Schlüssel hardware-gesichert?
-            KeyFactory factory = KeyFactory.getInstance(privateKeyEntry.getPrivateKey().getAlgorithm(), "AndroidKeyStore");
-            KeyInfo keyInfo = factory.getKeySpec(privateKeyEntry.getPrivateKey(), KeyInfo.class);
-            Log.v("Diary", "isInsideSecureHardware: " + keyInfo.isInsideSecureHardware());
+        } finally {
+            Arrays.fill(buffer, (byte) 0);
+        }
+        environment().setStoreBackend(backend);
+        synchronized (Diary.class) {
+            store = to;
+            knownListingStamp = DiaryStore.unknownStamp;
+        }
+        for (String name : names)
+            from.delete(name);
+        if (from instanceof SegmentDiaryStore)
+            ((SegmentDiaryStore) from).deleteFiles();
+        refresh();
+        saveManifest();
+        Log.d("Diary", "store switched to " + backend + ", " + names.size() + " entries in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+        return names.size();
+    }
 
-            return privateKeyEntry;
+    /**
+     * Gibt überholten Platz im Segment-Speicher frei; für den Schreib-Thread, z.B. beim Wechsel in den Hintergrund.
+     */
+    public static void compactStore() {
+        DiaryStore store = store();
+        if (store instanceof SegmentDiaryStore)
+            ((SegmentDiaryStore) store).compact();
+    }
+
+    /**
+     * Trainiert bei Bedarf ein neues Kompressions-Wörterbuch aus den eigenen Einträgen, nur bei offener Sitzung;
+     * vom Schreib-Thread nach dem Speichern, solange die App entsperrt ist.
+     */
+    static void trainCompression() {
+        if (!keys().isOpen())
+            return;
+        try {
+            EntryCompression.trainIfNeeded(size(), Diary::entries);
         } catch (Exception e) {
-            Log.e("Diary", "key generate error", e);
-            throw new RuntimeException(e);
+            Log.w("Diary", "could not train compression dictionary", e);
+        }
+    }
+
+    /**
+     * Volltextsuche im Hintergrund, liefert die Tage der Treffer (neuester zuerst) auf dem Main-Thread.
+     */
+    public static Future<int[]> searchAsync(String query, DiaryIO.Callback<int[]> callback) {
+        return DiaryIO.submit(() -> SearchIndex.search(query), callback);
+    }
+
+    /**
+     * Zeilen zu den gegebenen Tagen, in deren Reihenfolge.
+     */
+    public static synchronized List<EntryRow> rows(int[] epochDays) {
+        List<EntryRow> rows = new ArrayList<>(epochDays.length);
+        if (!loaded && manifest != null) {
+            for (int epochDay : epochDays) {
+                int index = manifest.indexOf(epochDay);
+                if (index >= 0)
+                    rows.add(new EntryRow(epochDay, manifest.mood(index)));
+            }
+            return rows;
+        }
+        EntryMetadataStore.Cursor cursor = metadata.cursor();
+        for (int epochDay : epochDays) {
+            if (cursor.moveToDay(epochDay))
+                rows.add(new EntryRow(epochDay, cursor.mood()));
+        }
+        return rows;
+    }
+
+    /**
+     * Stimmungsstatistik über {@code fromDay} bis einschließlich {@code toDay}: Anzahl pro Stimmung.
+     */
+    public static synchronized int[] moodCounts(int fromDay, int toDay) {
+        ensureLoaded();
+        MoodStatistics statistics = metadata.statistics();
+        int[] counts = new int[Mood.count];
+        for (byte mood = 0; mood < Mood.count; mood++)
+            counts[mood] = statistics.count(mood, fromDay, toDay);
+        return counts;
+    }
+
+    /**
+     * Tage in Folge mit Eintrag bis heute (bzw. gestern, falls heute noch nichts geschrieben wurde).
+     */
+    public static synchronized int currentStreak() {
+        ensureLoaded();
+        int today = EpochDay.today();
+        MoodStatistics statistics = metadata.statistics();
+        int streak = statistics.streak(MoodStatistics.anyMood, today);
+        return streak > 0 ? streak : statistics.streak(MoodStatistics.anyMood, today - 1);
+    }
+
+    public static synchronized int size() {
+        return !loaded && manifest != null ? manifest.size() : metadata.size();
+    }
+
+    /**
+     * Bis zu {@code count} Zeilen ab {@code from}, neuester Eintrag zuerst, aus den kompakten Metadaten.
+     */
+    public static synchronized List<EntryRow> rows(int from, int count) {
+        int to = Math.min(size(), from + count);
+        List<EntryRow> rows = new ArrayList<>(Math.max(0, to - from));
+        if (!loaded && manifest != null) {
+            for (int position = from; position < to; position++) {
+                int index = manifest.size() - 1 - position;
+                rows.add(new EntryRow(manifest.epochDay(index), manifest.mood(index)));
+            }
+            return rows;
+        }
+        EntryMetadataStore.Cursor cursor = metadata.cursor();
+        for (int position = from; position < to; position++) {
+            cursor.moveToDescending(position);
+            rows.add(new EntryRow(cursor.epochDay(), cursor.mood()));
+        }
+        return rows;
+    }
+
+    // Stand des Speichers beim letzten refresh(): Name -> Schlüssel und Änderungszeit
+    private static final Map<String, KnownFile> knownFiles = new HashMap<>();
+    private static long knownListingStamp = DiaryStore.unknownStamp;
+
+    private static class KnownFile {
+        final String key;
+        final long lastModified;
+
+        KnownFile(String key, long lastModified) {
+            this.key = key;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // Stand einer Datei beim Lesen des Verzeichnisses, ohne Diary-Lock ermittelt
+    private static class ListedFile {
+        final long lastModified;
+        final long length;
+        final DiaryEntry entry; // geparst, falls der Name beim Schnappschuss unbekannt war
+
+        ListedFile(long lastModified, long length, DiaryEntry entry) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.entry = entry;
+        }
+    }
+
+    private static final Object refreshLock = new Object(); // nur ein Abgleich zur Zeit
+
+    /**
+     * Gleicht {@link #entryMap} mit dem Speicher ab und wendet nur hinzugekommene, entfernte
+     * und umbenannte Einträge an. Verzeichnis lesen, stat() und Parsen laufen ohne den Diary-Lock,
+     * der Main-Thread (Liste, {@link #entry}) wartet also nicht auf den Datenträger.
+     */
+    public static ChangeSet refresh() {
+        long start = System.nanoTime();
+        ChangeSet changes;
+        synchronized (refreshLock) {
+            changes = reconcile();
+        }
+        Metrics.refresh.recordSince(start);
+        return changes;
+    }
+
+    private static ChangeSet reconcile() {
+        DiaryStore store;
+        long knownStamp;
+        Set<String> knownNames;
+        synchronized (Diary.class) {
+            ensureLoaded();
+            store = store();
+            knownStamp = knownListingStamp;
+            knownNames = new HashSet<>(knownFiles.keySet());
+        }
+        long listingStamp = store.listingStamp();
+        if (listingStamp != DiaryStore.unknownStamp && listingStamp == knownStamp)
+            return ChangeSet.empty; // nichts hinzugefügt, entfernt oder umbenannt
+
+        String[] fileNames = store.list();
+        Map<String, ListedFile> listing = new HashMap<>(fileNames.length * 2);
+        for (String fileName : fileNames) {
+            listing.put(fileName, new ListedFile(store.lastModified(fileName), store.length(fileName),
+                    knownNames.contains(fileName) ? null : new DiaryEntry(fileName)));
+        }
+        synchronized (Diary.class) {
+            if (store != Diary.store)
+                return ChangeSet.empty; // inzwischen gewechselt, switchStore() gleicht danach selbst ab
+            knownListingStamp = listingStamp;
+            return apply(store, listing);
+        }
+    }
+
+    // unter dem Diary-Lock; stat() nur noch für die wenigen geänderten Dateien bereits bekannter Einträge
+    private static ChangeSet apply(DiaryStore store, Map<String, ListedFile> listing) {
+        // betroffene Schlüssel -> aktuelle Datei (null = keine Datei mehr)
+        Map<String, DiaryEntry> affected = new HashMap<>();
+        Map<String, ListedFile> added = new HashMap<>(); // Schlüssel -> neue Datei
+        Set<String> modified = new HashSet<>();
+        for (Map.Entry<String, ListedFile> file : listing.entrySet()) {
+            String fileName = file.getKey();
+            ListedFile listed = file.getValue();
+            KnownFile known = knownFiles.get(fileName);
+            if (known == null) {
+                DiaryEntry entry = listed.entry != null ? listed.entry : new DiaryEntry(fileName);
+                knownFiles.put(fileName, new KnownFile(entry.key(), listed.lastModified));
+                affected.put(entry.key(), entry);
+                added.put(entry.key(), listed);
+            } else if (known.lastModified != listed.lastModified) {
+                long lastModified = store.lastModified(fileName);
+                if (lastModified == known.lastModified)
+                    continue; // eigener Stand, nach dem Lesen des Verzeichnisses gespeichert (entrySaved)
+                knownFiles.put(fileName, new KnownFile(known.key, lastModified));
+                modified.add(known.key);
+            }
+        }
+        for (Iterator<Map.Entry<String, KnownFile>> it = knownFiles.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, KnownFile> known = it.next();
+            if (!listing.containsKey(known.getKey())) {
+                it.remove();
+                if (!affected.containsKey(known.getValue().key))
+                    affected.put(known.getValue().key, null);
+            }
+        }
+
+        ChangeSet changes = new ChangeSet();
+        for (Map.Entry<String, DiaryEntry> change : affected.entrySet()) {
+            String key = change.getKey();
+            DiaryEntry onDisk = change.getValue();
+            DiaryEntry entry = entryMap.get(key);
+            if (onDisk != null) {
+                if (entry == null) {
+                    entry = onDisk;
+                    entryMap.put(key, entry);
+                    changes.added.add(key);
+                    ListedFile listed = added.get(key);
+                    putMetadata(entry, listed.length, listed.lastModified);
+                } else {
+                    entry.adopt(onDisk); // gleiches Objekt behalten, nur Stimmung/Datei übernehmen
+                    changes.changed.add(key);
+                    putMetadata(entry, store); // kann seit dem Lesen gespeichert worden sein
+                }
+            } else if (entry != null && EntryWriter.pendingText(entry) == null) {
+                TextCache.remove(key);
+                entryMap.remove(key);
+                metadata.remove(entry.epochDay());
+                manifestDirty = true;
+                changes.removed.add(key);
+            }
+        }
+        for (String key : modified) {
+            if (!affected.containsKey(key)) {
+                TextCache.remove(key); // von außen geändert
+                DiaryEntry entry = entryMap.get(key);
+                if (entry != null)
+                    putMetadata(entry, store);
+                changes.changed.add(key);
+            }
+        }
+        Log.v("Diary", "refresh " + changes);
+        return changes;
+    }
+
+    /**
+     * {@link #refresh()} und Speichern des Manifests im Hintergrund, Ergebnis auf dem Main-Thread.
+     */
+    public static Future<ChangeSet> refreshAsync(DiaryIO.Callback<ChangeSet> callback) {
+        return DiaryIO.submit(() -> {
+            ChangeSet changes = refresh();
+            saveManifest();
+            return changes;
+        }, callback);
+    }
+
+    /**
+     * Signiertes Archiv aller Einträge im Cache-Verzeichnis erstellen, siehe {@link SignedExport}.
+     */
+    public static Future<File> exportSignedAsync(DiaryIO.Callback<File> callback) {
+        return DiaryIO.submit(() -> {
+            File file = new File(cacheDir(), "secretdiary-export.zip");
+            file.deleteOnExit();
+            return SignedExport.export(file);
+        }, callback);
+    }
+
+    /**
+     * Sicherung aller Einträge nach {@code out} im Hintergrund, erst nach ausstehenden Speichervorgängen.
+     * {@code out} wird geschlossen und das Passwort überschrieben, auch wenn der Auftrag verworfen wird;
+     * Ergebnis ist die Anzahl der Einträge.
+     */
+    public static void exportBackupAsync(OutputStream out, char[] password, DiaryIO.Callback<Integer> callback) {
+        EntryWriter.afterPendingWrites(() -> DiaryIO.submitLong(() -> {
+            try (OutputStream backup = out) {
+                return Backup.export(backup, password);
+            }
+        }, () -> release(out, password), callback));
+    }
+
+    /**
+     * Wiederherstellen aus {@code in} im Hintergrund, siehe {@link Backup#restore}; {@code in} und Passwort wie bei
+     * {@link #exportBackupAsync}.
+     */
+    public static void restoreBackupAsync(InputStream in, char[] password, DiaryIO.Callback<Integer> callback) {
+        EntryWriter.afterPendingWrites(() -> DiaryIO.submitLong(() -> {
+            try (InputStream backup = in) {
+                return Backup.restore(backup, password);
+            } finally {
+                saveManifest();
+            }
+        }, () -> release(in, password), callback));
+    }
+
+    private static void release(Closeable stream, char[] password) {
+        Arrays.fill(password, '\0');
+        try {
+            stream.close(); // nach regulärem Ablauf bereits geschlossen
+        } catch (IOException e) {
+            Log.w("Diary", "could not close backup stream", e);
+        }
+    }
+
+    private static Future<Integer> rotation;
+
+    /**
+     * Neuer Schlüssel für alle Einträge im Hintergrund, siehe {@link KeyRotation}.
+     */
+    public static synchronized void rotateKeyAsync(DiaryIO.Callback<Integer> callback) {
+        if (rotation != null && !rotation.isDone())
+            return;
+        KeyRotation.resetPause();
+        rotation = DiaryIO.submitLong(KeyRotation::rotate, callback);
+    }
+
+    /**
+     * Setzt eine unterbrochene Schlüsselrotation fort, z.B. nach dem Entsperren.
+     */
+    public static void resumeKeyRotation() {
+        if (KeyRotation.isPending())
+            rotateKeyAsync(count -> Log.d("Diary", "key rotation resumed, " + count + " entries"));
+    }
+
+    /**
+     * Unterbricht eine laufende Schlüsselrotation nach dem aktuellen Stapel, z.B. beim Sperren.
+     */
+    public static synchronized void pauseKeyRotation() {
+        if (rotation != null) {
+            KeyRotation.pause();
+            rotation.cancel(false);
+            rotation = null;
+        }
+    }
+
+    private static void putMetadata(DiaryEntry entry, DiaryStore store) {
+        String fileName = entry.fileName();
+        putMetadata(entry, store.length(fileName), store.lastModified(fileName));
+    }
+
+    // der Inhalts-Hash bleibt nur bei unveränderter Größe und Zeit gültig
+    private static void putMetadata(DiaryEntry entry, long length, long lastModified) {
+        long contentHash = Fingerprint.none;
+        EntryMetadataStore.Cursor cursor = metadata.cursor();
+        if (cursor.moveToDay(entry.epochDay()) && cursor.size() == length && cursor.lastModified() == lastModified)
+            contentHash = cursor.contentHash();
+        metadata.put(entry.epochDay(), Mood.code(entry.getMoodEmoji()), length, lastModified, contentHash);
+        manifestDirty = true;
+    }
+
+    static synchronized void entrySaved(DiaryEntry entry, long length, long lastModified, long contentHash) {
+        if (entryMap.get(entry.key()) != entry)
+            return; // inzwischen gelöscht
+        metadata.put(entry.epochDay(), Mood.code(entry.getMoodEmoji()), length, lastModified, contentHash);
+        manifestDirty = true;
+        // eigener Stand: der nächste Abgleich hält ihn nicht für eine Änderung von außen und verwirft den
+        // gerade geschriebenen Text nicht aus dem TextCache; neue und umbenannte Dateien laufen wie bisher über adopt
+        KnownFile known = knownFiles.get(entry.fileName());
+        if (known != null && known.key.equals(entry.key()))
+            knownFiles.put(entry.fileName(), new KnownFile(known.key, lastModified));
+    }
+
+    /**
+     * Entschlüsselt den vorherigen und den nächsten Eintrag vorab, damit das Blättern nicht auf
+     * Keystore oder Datenträger warten muss.
+     */
+    public static void prefetchAround(DiaryEntry entry) {
+        DiaryEntry newer = null;
+        DiaryEntry older = null;
+        synchronized (Diary.class) {
+            SortedMap<String, DiaryEntry> head = entryMap.headMap(entry.key());
+            if (!head.isEmpty())
+                newer = head.get(head.lastKey());
+            Iterator<DiaryEntry> tail = entryMap.tailMap(entry.key()).values().iterator();
+            if (tail.hasNext()) {
+                tail.next(); // der Eintrag selbst
+                if (tail.hasNext())
+                    older = tail.next();
+            }
         }
+        if (newer != null)
+            newer.prefetch();
+        if (older != null)
+            older.prefetch();
+    }
+
+    // sofort aus Liste und Statistik, nicht erst beim nächsten refresh()
+    static synchronized void entryDeleted(DiaryEntry entry) {
+        if (entryMap.get(entry.key()) != entry)
+            return;
+        entryMap.remove(entry.key());
+        if (metadata.remove(entry.epochDay()))
+            manifestDirty = true;
     }
 
-    static PrivateKey privateKey() {
-        return privateKeyEntry().getPrivateKey();
+    static synchronized void moodChanged(DiaryEntry entry) {
+        if (metadata.setMood(entry.epochDay(), Mood.code(entry.getMoodEmoji())))
+            manifestDirty = true;
     }
 
-    static PublicKey publicKey() {
-        return privateKeyEntry().getCertificate().getPublicKey();
+    public static synchronized DiaryEntry newEntry() {
+        ensureLoaded();
+        // do we have an entry for today already?
+        int today = EpochDay.today();
+        DiaryEntry entry = entryMap.get(EpochDay.format(today));
+        if (entry == null) {
+            entry = new DiaryEntry(today);
+            entryMap.put(entry.key(), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Lädt die Signaturschlüssel im Hintergrund vor, damit ein späterer Export nicht auf den Keystore wartet.
+     */
+    public static void prepareSigning() {
+        DiaryIO.submitSpeculative(() -> {
+            try {
+                EntrySigner.prepare();
+            } catch (Exception e) {
+                Log.w("Diary", "could not prepare signing keys", e);
+            }
+        });
     }
 
     public static File getPublicKeyFile() {
         try {
-            byte[] publicKeyBytes = publicKey().getEncoded();
-            File file = new File(App.appContext().getCacheDir(), "secretdiarypublickey.der"); // binär
+            byte[] publicKeyBytes = keys().publicKey().getEncoded();
+            File file = new File(cacheDir(), "secretdiarypublickey.der"); // binär
             file.delete();
             DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
             out.write(publicKeyBytes);
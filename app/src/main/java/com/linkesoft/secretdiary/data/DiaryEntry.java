@@ -1,72 +1,85 @@
 package com.linkesoft.secretdiary.data;
 
-import static androidx.security.crypto.EncryptedFile.FileEncryptionScheme;
-
-import android.content.Context;
-import android.security.keystore.UserNotAuthenticatedException;
 import android.util.Log;
 
-import androidx.security.crypto.EncryptedFile;
-
-import com.linkesoft.secretdiary.App;
-
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.Signature;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.Locale;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 public class DiaryEntry {
 
-    private final Date date;
-    private String moodEmoji; // e.g. 😀 😐 😠
-    private File file;
+    private final int epochDay;
+    private volatile String moodEmoji; // e.g. 😀 😐 😠
+    private volatile String storedName; // Name im DiaryStore, null solange nicht gespeichert
+    // zuletzt gespeicherter bzw. zum Speichern eingeplanter Stand
+    private volatile long savedFingerprint = Fingerprint.none;
+    private volatile String savedFileName;
+    private volatile byte[] savedDigest; // SHA-256 der zuletzt geschriebenen Bytes, null wenn unbekannt
+    private volatile long contentVersion = TextCache.nextVersion(); // Stand für den TextCache
+    private boolean deleted;
+    private static final String tag = "DiaryEntry";
+    // ab dieser Länge (Zeichen) über DiaryStore.replace speichern
+    private static final int blockThreshold = 64 * 1024;
 
-    public static final DateFormat yyyymmddDateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
-    private static final DateFormat humanReadableDateFormat = DateFormat.getDateInstance(DateFormat.SHORT);
+    // DateFormat ist nicht thread-sicher
+    private static final ThreadLocal<DateFormat> humanReadableDateFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return DateFormat.getDateInstance(DateFormat.SHORT);
+        }
+    };
 
-    DiaryEntry(Date date) {
-        this.date = date;
-        moodEmoji = "😀";
+    DiaryEntry(int epochDay) {
+        this.epochDay = epochDay;
+        moodEmoji = Mood.emoji(Mood.happy);
     }
 
     DiaryEntry(String fileName) {
-        // get date and mood from file name
-        file = new File(App.appContext().getFilesDir(), fileName);
-        String[] nameParts = fileName.split(" ");
-        Date date;
-        if (nameParts.length > 1) {
-            try {
-                date = yyyymmddDateFormat.parse(nameParts[0]);
-            } catch (ParseException e) {
-                Log.w(getClass().getSimpleName(), "could not parse file name " + fileName);
-                date = new Date(file.lastModified());
-            }
-            moodEmoji = nameParts[1];
+        // get date and mood from file name: "yyyy-MM-dd 😀"
+        storedName = fileName;
+        int epochDay = EpochDay.parse(fileName, 0);
+        if (epochDay != EpochDay.invalid && fileName.length() > EpochDay.keyLength + 1 && fileName.charAt(EpochDay.keyLength) == ' ') {
+            moodEmoji = fileName.substring(EpochDay.keyLength + 1);
         } else {
             Log.w(getClass().getSimpleName(), "could not parse file name " + fileName);
-            date = new Date(file.lastModified());
-            moodEmoji = "😀";
+            if (epochDay == EpochDay.invalid)
+                epochDay = EpochDay.fromMillis(Diary.store().lastModified(fileName));
+            moodEmoji = Mood.emoji(Mood.happy);
         }
-        this.date = date;
+        this.epochDay = epochDay;
     }
 
     public String title() {
-        return humanReadableDateFormat.format(date);
+        return title(epochDay);
+    }
+
+    static String title(int epochDay) {
+        return humanReadableDateFormat.get().format(EpochDay.toDate(epochDay));
     }
 
     public String key() {
-        return yyyymmddDateFormat.format(date);
+        return EpochDay.format(epochDay);
+    }
+
+    public int epochDay() {
+        return epochDay;
     }
 
-    public void toggleMood() {
+    public synchronized void toggleMood() {
         switch (moodEmoji) {
             case "😀":
                 moodEmoji = "😐";
@@ -77,21 +90,39 @@ public class DiaryEntry {
             default:
                 moodEmoji = "😀";
         }
-        Log.v(getClass().getSimpleName(), "Mood set to " + moodEmoji);
-        File newFile = new File(App.appContext().getFilesDir(), fileName());
-        if (file != null) {
-            file.renameTo(newFile);
+        if (Log.isLoggable(tag, Log.VERBOSE))
+            Log.v(tag, "Mood set to " + moodEmoji);
+        Diary.moodChanged(this); // TextCache und Anhänge bleiben gültig: Schlüssel ist der Tag
+        String newName = fileName();
+        if (storedName != null) {
+            long start = System.nanoTime();
+            if (Diary.store().rename(storedName, newName))
+                storedName = newName;
+            Metrics.rename.recordSince(start);
         }
-        file = newFile;
     }
 
-    public void delete() {
-        if (file != null && file.exists())
-            file.delete();
+    // Stimmung und Namen aus einem neu eingelesenen Eintrag übernehmen;
+    // ohne Entry-Lock, da unter dem Diary-Lock aufgerufen (Reihenfolge sonst Entry -> Diary)
+    void adopt(DiaryEntry onDisk) {
+        moodEmoji = onDisk.moodEmoji;
+        storedName = onDisk.storedName;
+    }
+
+    public synchronized void delete() {
+        deleted = true;
+        EntryWriter.cancel(this);
+        TextCache.remove(key());
+        Diary.entryDeleted(this);
+        int epochDay = this.epochDay;
+        EntryWriter.afterPendingWrites(() -> SearchIndex.entryDeleted(epochDay));
+        if (storedName != null)
+            Diary.store().delete(storedName);
+        Attachments.deleteAll(key());
     }
 
     public String fileName() {
-        return DiaryEntry.yyyymmddDateFormat.format(date) + " " + moodEmoji;
+        return key() + " " + moodEmoji;
     }
 
     public String getMoodEmoji() {
@@ -100,35 +131,51 @@ public class DiaryEntry {
 
     // verschlüsseltes Lesen/Schreiben von Dateien
 
-    public String getText() throws UserNotAuthenticatedException {
-        Context context = App.appContext();
+    public String getText() throws IOException, GeneralSecurityException {
+        return getTextSequence().toString();
+    }
 
-        File file = new File(context.getFilesDir(), fileName());
-        if (!file.exists())
+    /**
+     * Entschlüsselter Text ohne weitere Kopie, z.B. direkt für EditText.setText.
+     * Fehler (gesperrt, nicht authentifiziert, beschädigt) werden weitergegeben, nie als leerer Text.
+     */
+    public CharSequence getTextSequence() throws IOException, GeneralSecurityException {
+        CharSequence pendingText = EntryWriter.pendingText(this);
+        if (pendingText != null)
+            return pendingText; // noch nicht geschrieben
+        String key = key();
+        long version = contentVersion;
+        CharSequence cachedText = TextCache.get(key, version);
+        if (cachedText != null) {
+            markSaved(cachedText);
+            return cachedText;
+        }
+        long cacheGeneration = TextCache.generation();
+        DiaryStore store = Diary.store();
+        String fileName = fileName();
+        if (!store.exists(fileName))
             return ""; // neue Datei
-        FileInputStream inputStream = null;
-        String text = "";
+        InputStream inputStream = null;
         // decrypt text
-        Log.v(getClass().getSimpleName(), "Decrypting " + file);
+        if (Log.isLoggable(tag, Log.VERBOSE))
+            Log.v(tag, "Decrypting " + fileName);
+        long start = System.nanoTime();
         try {
-            EncryptedFile encryptedFile = new EncryptedFile.Builder(
-                    context,
-                    file,
-                    Diary.encryptionKey(),
-                    FileEncryptionScheme.AES256_GCM_HKDF_4KB
-            ).build();
-            inputStream = encryptedFile.openFileInput();
-            byte[] bytes = new byte[(int) file.length()];
-            int nRead = inputStream.read(bytes);
-            if (nRead >= 0)
-                text = new String(Arrays.copyOf(bytes, nRead)); // encrypted file could be longer than actual payload
-            else
-                text = "";
-        } catch (Exception e) {
+            inputStream = store.openInput(fileName);
+            // Schätzung, komprimierte Einträge ergeben mehr Zeichen als gespeicherte Bytes
+            StringBuilder text = new StringBuilder((int) Math.min(store.length(fileName), Integer.MAX_VALUE - 8));
+            TextCodec.get().decode(inputStream, text);
+            Metrics.decrypt.recordSince(start);
+            Metrics.bytesRead.add(store.length(fileName));
+            markSaved(text);
+            TextCache.put(key, version, text, cacheGeneration);
+            return text;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
             Log.e(getClass().getSimpleName(), "Could not read entry", e);
-            if (e.getCause() instanceof UserNotAuthenticatedException) {
-                throw (UserNotAuthenticatedException) e.getCause();
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause(); // z.B. UserNotAuthenticatedException aus dem Stream
             }
+            throw e;
         } finally {
             if (inputStream != null) {
                 try {
@@ -138,56 +185,313 @@ public class DiaryEntry {
                 }
             }
         }
-        return text;
     }
 
-    public void setText(String text) {
-        Context context = App.appContext();
-        File file = new File(context.getFilesDir(), fileName()); // data/data/com.linkesoft.secretdiary/files/yyyy-mm-dd.txt
-        file.delete();
-        // write to the encrypted file
-        Log.v(getClass().getSimpleName(), "Encrypting " + file);
-        FileOutputStream outputStream = null;
+    /**
+     * Entschlüsselt im Hintergrund und liefert den Text auf dem Main-Thread.
+     * Ist der Text bereits im Speicher (zwischengespeichert oder noch nicht geschrieben), wird
+     * {@code callback} sofort aufgerufen.
+     *
+     * @return zum Abbrechen, z.B. wenn die Ansicht vorher geschlossen wird
+     */
+    public Future<CharSequence> loadTextAsync(DiaryIO.Callback<CharSequence> callback) {
+        CharSequence text = peekText();
+        if (text != null) {
+            markSaved(text);
+            callback.onResult(text);
+            return CompletableFuture.completedFuture(text);
+        }
+        return DiaryIO.submit(this::getTextSequence, callback);
+    }
+
+    /**
+     * Speichert im Hintergrund, siehe {@link EntryWriter}.
+     */
+    public void saveTextAsync(CharSequence text) {
+        EntryWriter.save(this, text.toString());
+    }
+
+    // Text ohne Entschlüsseln, falls vorhanden
+    CharSequence peekText() {
+        CharSequence text = EntryWriter.pendingText(this);
+        return text != null ? text : TextCache.get(key(), contentVersion);
+    }
+
+    private boolean isInMemory() {
+        return EntryWriter.pendingText(this) != null || TextCache.contains(key(), contentVersion);
+    }
+
+    // spekulatives Entschlüsseln in den TextCache, nur bei offener Sitzung (nie Keystore-Aufbau auf Verdacht)
+    void prefetch() {
+        if (isInMemory() || !Diary.keys().isOpen())
+            return;
+        DiaryIO.submitSpeculative(() -> {
+            if (isInMemory() || !Diary.keys().isOpen())
+                return;
+            try {
+                getTextSequence();
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                ; // ignore, wird beim Öffnen erneut versucht
+            }
+        });
+    }
+
+    /**
+     * Streamender Zugriff auf den entschlüsselten Text; der Aufrufer muss den Reader schließen.
+     */
+    public Reader openReader() throws IOException, GeneralSecurityException {
+        DiaryStore store = Diary.store();
+        String fileName = fileName();
+        if (!store.exists(fileName))
+            return new StringReader(""); // neue Datei
+        return TextCodec.reader(store.openInput(fileName));
+    }
+
+    /**
+     * Verschlüsselt einen Anhang im Hintergrund, siehe {@link Attachments}; liefert dessen Namen auf dem Main-Thread.
+     * Ein noch nie gespeicherter Eintrag wird dabei leer angelegt, sonst fehlte er nach dem nächsten Abgleich.
+     * {@code in} wird geschlossen, auch wenn der Auftrag verworfen wird.
+     */
+    public Future<String> addAttachmentAsync(InputStream in, String extension, DiaryIO.Callback<String> callback) {
+        if (!Diary.store().exists(fileName()) && EntryWriter.pendingText(this) == null)
+            saveTextAsync("");
+        return DiaryIO.submit(() -> Attachments.add(key(), in, extension), () -> {
+            try {
+                in.close(); // nach Attachments.add bereits geschlossen
+            } catch (IOException e) {
+                Log.w("DiaryEntry", "could not close attachment source", e);
+            }
+        }, callback);
+    }
+
+    public List<String> attachments() {
+        return Attachments.list(key());
+    }
+
+    /**
+     * Gespeicherter Text so lang, dass er abschnittsweise ({@link EntryWindow}) angezeigt werden sollte.
+     */
+    public boolean isLarge() {
+        String fileName = fileName();
+        DiaryStore store = Diary.store();
+        return store.exists(fileName) && store.length(fileName) >= EntryWindow.threshold && !isInMemory();
+    }
+
+    /**
+     * Öffnet den Eintrag im Hintergrund abschnittsweise; liefert null, wenn das nicht möglich ist
+     * (dann mit {@link #loadTextAsync} komplett laden).
+     */
+    public Future<EntryWindow> openWindowAsync(DiaryIO.Callback<EntryWindow> callback) {
+        return DiaryIO.submit(() -> {
+            try {
+                return EntryWindow.open(this);
+            } catch (IOException | GeneralSecurityException e) {
+                Log.e(getClass().getSimpleName(), "Could not open entry window", e);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Schreibt die geänderten Abschnitte aus {@code window} auf dem Schreib-Thread, ohne den ganzen Text
+     * zusammenzusetzen; nur wenn der Speicher das nicht kann, über {@link #setText}.
+     */
+    void saveWindowAsync(EntryWindow window) {
+        EntryWriter.afterPendingWrites(() -> saveWindow(window));
+    }
+
+    private synchronized void saveWindow(EntryWindow window) {
+        TreeMap<Integer, String> segments = window.unsavedSegments();
+        if (deleted || segments.isEmpty())
+            return;
+        DiaryStore store = Diary.store();
+        String fileName = fileName();
+        long start = System.nanoTime();
         try {
-            EncryptedFile encryptedFile = new EncryptedFile.Builder(
-                    context,
-                    file,
-                    Diary.encryptionKey(),
-                    FileEncryptionScheme.AES256_GCM_HKDF_4KB
-            ).build();
-            outputStream = encryptedFile.openFileOutput();
-            byte[] bytes = text.getBytes();
-            outputStream.write(bytes);
+            long contentHash = fileName.equals(storedName) ? window.saveSegments(store, fileName, segments) : Fingerprint.none;
+            if (contentHash == Fingerprint.none) {
+                TreeMap<Integer, String> edits = window.edits();
+                if (setText(window.text(edits)))
+                    window.markSaved(edits);
+                else
+                    window.saveFailed();
+                return;
+            }
+            Metrics.encrypt.recordSince(start);
+            savedDigest = null; // ohne den ganzen Text unbekannt
+            TextCache.remove(key());
+            contentVersion = TextCache.nextVersion();
+            Diary.entrySaved(this, store.length(fileName), store.lastModified(fileName), contentHash);
+            SearchIndex.entryChanged(this);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            Log.e(getClass().getSimpleName(), "Could not save " + fileName, e);
+            TextCache.remove(key());
+            window.saveFailed();
+        }
+    }
+
+    /**
+     * Verschlüsselt {@code text} und ersetzt den gespeicherten Stand erst beim commit,
+     * ein Absturz beim Schreiben lässt also den alten Stand intakt.
+     *
+     * @return false, wenn nicht geschrieben werden konnte
+     */
+    public synchronized boolean setText(CharSequence text) {
+        if (deleted)
+            return false;
+        DiaryStore store = Diary.store();
+        String fileName = fileName(); // yyyy-mm-dd 😀
+        // write to the encrypted store
+        if (Log.isLoggable(tag, Log.VERBOSE))
+            Log.v(tag, "Encrypting " + fileName);
+        long start = System.nanoTime();
+        DiaryStore.Output outputStream = null;
+        boolean written = false;
+        try {
+            if (text.length() >= blockThreshold) {
+                // lange Texte: der Speicher verschlüsselt nur geänderte Blöcke neu (siehe BlockFile)
+                long contentHash = replaceChanged(store, fileName, text);
+                if (contentHash != Fingerprint.none) {
+                    savedDigest = null; // ohne den ganzen Text zu hashen unbekannt
+                } else {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() + text.length() / 2);
+                    TextCodec.get().encode(text, bytes);
+                    byte[] plaintext = bytes.toByteArray();
+                    contentHash = store.replace(fileName, plaintext, plaintext.length);
+                    savedDigest = EntrySigner.digest().digest(plaintext);
+                }
+                written = true;
+                Diary.entrySaved(this, store.length(fileName), store.lastModified(fileName), contentHash);
+            } else {
+                outputStream = store.openOutput(fileName);
+                DigestOutputStream digestStream = new DigestOutputStream(outputStream, EntrySigner.digest());
+                TextCodec.get().encode(text, digestStream);
+                outputStream.commit();
+                written = true;
+                savedDigest = digestStream.getMessageDigest().digest();
+                Diary.entrySaved(this, store.length(fileName), store.lastModified(fileName), outputStream.contentHash());
+            }
         } catch (Exception e) {
             Log.e(getClass().getSimpleName(), "Security exception", e);
+            TextCache.remove(key()); // gespeicherter Stand unklar, nicht mehr als Grundlage für replaceChanged
         } finally {
             if (outputStream != null) {
                 try {
-                    outputStream.close();
+                    outputStream.close(); // verwirft nicht übernommene Daten
                 } catch (IOException ioException) {
                     ; // ignore
                 }
             }
         }
+        if (written) {
+            Metrics.encrypt.recordSince(start);
+            Metrics.bytesWritten.add(store.length(fileName));
+            storedName = fileName;
+            markSaved(text);
+            contentVersion = TextCache.nextVersion();
+            TextCache.put(key(), contentVersion, text, TextCache.generation());
+            SearchIndex.entryChanged(this, text, store.lastModified(fileName));
+        } else {
+            savedFingerprint = Fingerprint.none; // beim nächsten Mal erneut speichern
+        }
+        return written;
+    }
+
+    // ersetzt nur den Bereich, der sich gegenüber dem zuletzt gespeicherten Text (TextCache) geändert hat;
+    // Fingerprint.none, wenn dieser nicht im Speicher ist oder der Speicher das nicht kann
+    private long replaceChanged(DiaryStore store, String fileName, CharSequence text) throws IOException, GeneralSecurityException {
+        CharSequence saved = fileName.equals(storedName) ? TextCache.get(key(), contentVersion) : null;
+        if (saved == null)
+            return Fingerprint.none;
+        int max = Math.min(saved.length(), text.length());
+        int prefix = 0;
+        while (prefix < max && saved.charAt(prefix) == text.charAt(prefix))
+            prefix++;
+        if (prefix > 0 && Character.isHighSurrogate(text.charAt(prefix - 1)))
+            prefix--; // Surrogatpaare nicht teilen
+        int suffix = 0;
+        while (suffix < max - prefix && saved.charAt(saved.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix))
+            suffix++;
+        if (suffix > 0 && Character.isLowSurrogate(text.charAt(text.length() - suffix)))
+            suffix--;
+        long from = TextCodec.encodedLength(saved, 0, prefix);
+        long to = from + TextCodec.encodedLength(saved, prefix, saved.length() - suffix);
+        long storedLength = to + TextCodec.encodedLength(saved, saved.length() - suffix, saved.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TextCodec.get().encode(text.subSequence(prefix, text.length() - suffix), bytes);
+        byte[] replacement = bytes.toByteArray();
+        return store.replaceRange(fileName, storedLength, from, to, replacement, replacement.length);
+    }
+
+    /**
+     * Schreibt den gespeicherten Stand unverändert mit dem aktuellen Schlüssel neu, für {@link KeyRotation}.
+     * Unter dem Entry-Lock, damit gleichzeitiges Speichern oder Umbenennen nicht verloren geht.
+     *
+     * @return Name im Speicher, null wenn nichts gespeichert ist
+     */
+    synchronized String reencrypt() throws IOException, GeneralSecurityException {
+        DiaryStore store = Diary.store();
+        String name = storedName;
+        if (deleted || name == null || !store.exists(name))
+            return null;
+        long oldStamp = store.lastModified(name);
+        long contentHash = store.reencrypt(name); // lange Einträge bleiben im Blockformat
+        long stamp = store.lastModified(name);
+        Diary.entrySaved(this, store.length(name), stamp, contentHash);
+        SearchIndex.entryRewritten(this, oldStamp, stamp);
+        return name;
+    }
+
+    void markSaved(CharSequence text) {
+        savedFingerprint = Fingerprint.of(text);
+        savedFileName = fileName();
+    }
+
+    /**
+     * true, wenn {@code text} oder der Dateiname (Stimmung) vom gespeicherten Stand abweicht.
+     */
+    public boolean isModified(CharSequence text) {
+        return savedFingerprint == Fingerprint.none
+                || !fileName().equals(savedFileName)
+                || savedFingerprint != Fingerprint.of(text);
     }
 
     // digitale Signatur
 
-    private byte[] getSignature(String text) {
-        try {
-            Signature signature = Signature.getInstance("SHA256withECDSA");
-            signature.initSign(Diary.privateKey());
-            signature.update(text.getBytes());
-            return signature.sign();
+    /**
+     * SHA-256 über die zuletzt gespeicherten Bytes (UTF-8), beim Schreiben nebenbei berechnet.
+     *
+     * @return null, wenn seit dem Start nicht geschrieben wurde
+     */
+    public byte[] contentDigest() {
+        byte[] digest = savedDigest;
+        return digest != null ? digest.clone() : null;
+    }
+
+    private InputStream openStored() throws IOException, GeneralSecurityException {
+        DiaryStore store = Diary.store();
+        String fileName = fileName();
+        return store.exists(fileName) ? store.openInput(fileName) : new ByteArrayInputStream(new byte[0]);
+    }
+
+    // Signatur über den gespeicherten Stand, blockweise aus dem entschlüsselnden Stream
+    private byte[] getSignature() {
+        MessageDigest digest = EntrySigner.digest();
+        try (InputStream in = openStored()) {
+            byte[] signatureBytes = EntrySigner.sign(in, digest);
+            byte[] written = savedDigest;
+            if (written != null && !MessageDigest.isEqual(written, digest.digest()))
+                Log.w(getClass().getSimpleName(), "stored text differs from last write " + fileName());
+            return signatureBytes;
         } catch (Exception e) {
             Log.e(getClass().getSimpleName(), "signature error", e);
             throw new RuntimeException(e);
         }
     }
 
-    public File getSignatureFile(String text) {
-        byte[] signatureBytes = getSignature(text);
-        File file = new File(App.appContext().getCacheDir(), fileName() + ".sha256");
+    public File getSignatureFile() {
+        byte[] signatureBytes = getSignature();
+        File file = new File(Diary.cacheDir(), fileName() + ".sha256");
         file.delete();
         try {
             DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
@@ -200,15 +504,20 @@ public class DiaryEntry {
         return file;
     }
 
+    /**
+     * Signatur-Datei im Hintergrund erstellen, erst nach ausstehenden Speichervorgängen,
+     * damit sie zum gespeicherten Text passt.
+     */
+    public void signatureFileAsync(DiaryIO.Callback<File> callback) {
+        EntryWriter.afterPendingWrites(() -> DiaryIO.submit(this::getSignatureFile, callback));
+    }
+
     // verifizieren per Code
     // alternativ
     // openssl dgst -sha256  -keyform der -verify  publickey.der -signature entry.txt.sha256 entry.txt
-    static boolean verifySignedEntry(String text, byte[] signatureBytes) {
-        try {
-            Signature signature = Signature.getInstance("SHA256withECDSA");
-            signature.initVerify(Diary.publicKey());
-            signature.update(text.getBytes());
-            return signature.verify(signatureBytes);
+    boolean verifySignature(byte[] signatureBytes) {
+        try (InputStream in = openStored()) {
+            return EntrySigner.verify(in, signatureBytes);
         } catch (Exception e) {
             Log.e("Diary", "signature error", e);
             throw new RuntimeException(e);
@@ -216,4 +525,4 @@ public class DiaryEntry {
     }
 
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Verzeichnisse, Schlüssel und Speicher-Einstellung der Datenschicht, gesetzt mit {@link Diary#configure}:
+ * in der App {@link AndroidEnvironment}, auf der JVM z.B. {@link DirectoryEnvironment} mit {@link JceKeyProvider}.
+ */
+public interface DiaryEnvironment {
+
+    /**
+     * Eintragsdateien des {@link FileDiaryStore}.
+     */
+    File filesDir();
+
+    /**
+     * Hilfsdateien (Manifest, Index, Anhänge, Segmente), getrennt von den Eintragsdateien.
+     */
+    File dataDir();
+
+    /**
+     * Temporäre Dateien zum Teilen, z.B. Exporte und Signaturen.
+     */
+    File cacheDir();
+
+    KeyProvider keys();
+
+    /**
+     * {@link Diary#backendFiles} oder {@link Diary#backendSegments}.
+     */
+    String storeBackend();
+
+    void setStoreBackend(String backend) throws IOException;
+}
@@ -0,0 +1,195 @@
+package com.linkesoft.secretdiary.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Begrenzter Thread-Pool für Lesezugriffe (Keystore, Entschlüsselung) abseits des Main-Threads,
+ * dazu ein Thread für lange Aufträge ({@link #submitLong}).
+ * Ergebnisse werden auf dem Main-Thread zugestellt, abgebrochene Aufträge melden sich nicht mehr.
+ */
+public class DiaryIO {
+
+    private static final int threads = 2;
+    private static final int queueCapacity = 8;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+        Thread thread = new Thread(runnable, "DiaryIO-" + threadCount.incrementAndGet());
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    // lange Aufträge (Abgleich des Suchindex, Schlüsselrotation, Sicherung) nacheinander auf einem eigenen Thread, damit der Pool für Lesezugriffe frei bleibt
+    private static final ThreadPoolExecutor longExecutor = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "DiaryIO-long");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+        longExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler mainThread = new Handler(Looper.getMainLooper());
+
+    public interface Callback<T> {
+        void onResult(T result);
+
+        default void onError(Exception e) {
+            Log.e("DiaryIO", "background task failed", e);
+        }
+    }
+
+    private static class Task<T> extends FutureTask<T> {
+        private final Callback<T> callback;
+        private final Runnable release;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        Task(Callable<T> callable, Runnable release, Callback<T> callback) {
+            super(callable);
+            this.release = release;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true))
+                return; // bereits verworfen
+            try {
+                super.run();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled = true; // auch nach Abschluss: Ergebnis nicht mehr zustellen
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        void reject(Exception e) {
+            setException(e);
+        }
+
+        private void release() {
+            if (release == null)
+                return;
+            try {
+                release.run();
+            } catch (RuntimeException e) {
+                Log.w("DiaryIO", "could not release task resources", e);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (claimed.compareAndSet(false, true))
+                release(); // abgebrochen oder abgewiesen, bevor er begonnen hat
+            if (callback == null || cancelled)
+                return;
+            mainThread.post(() -> {
+                if (cancelled)
+                    return;
+                T result;
+                try {
+                    result = get();
+                } catch (Exception e) {
+                    callback.onError(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                    return;
+                }
+                callback.onResult(result);
+            });
+        }
+    }
+
+    /**
+     * Führt {@code callable} im Hintergrund aus und liefert das Ergebnis auf dem Main-Thread.
+     * Ist die Warteschlange voll, wird {@link Callback#onError} aufgerufen.
+     */
+    static <T> Future<T> submit(Callable<T> callable, Callback<T> callback) {
+        return submit(callable, null, callback);
+    }
+
+    /**
+     * Wie {@link #submit(Callable, Callback)}; {@code release} (Streams schließen, Passwörter überschreiben) läuft
+     * genau einmal, nach dem Auftrag oder sobald er abgebrochen bzw. abgewiesen wird, ohne begonnen zu haben.
+     */
+    static <T> Future<T> submit(Callable<T> callable, Runnable release, Callback<T> callback) {
+        Task<T> task = new Task<>(callable, release, callback);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject(e);
+        }
+        return task;
+    }
+
+    /**
+     * Wie {@link #submit}, aber für Aufträge, die Minuten dauern können; sie laufen nacheinander und werden
+     * nie wegen voller Warteschlange abgewiesen.
+     */
+    static <T> Future<T> submitLong(Callable<T> callable, Callback<T> callback) {
+        return submitLong(callable, null, callback);
+    }
+
+    static <T> Future<T> submitLong(Callable<T> callable, Runnable release, Callback<T> callback) {
+        Task<T> task = new Task<>(callable, release, callback);
+        longExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Wie {@link #submitLong}, aber auf dem Schreib-Thread ({@link EntryWriter}) nach allen ausstehenden
+     * Speichervorgängen; spätere warten, bis der Auftrag fertig ist.
+     */
+    static <T> Future<T> submitWrite(Callable<T> callable, Callback<T> callback) {
+        Task<T> task = new Task<>(callable, null, callback);
+        EntryWriter.afterPendingWrites(task);
+        return task;
+    }
+
+    /**
+     * Spekulative Aufträge ohne Ergebnis; bei voller Warteschlange werden sie verworfen.
+     */
+    static void submitSpeculative(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.v("DiaryIO", "prefetch skipped");
+        }
+    }
+
+    /**
+     * Verwirft noch nicht begonnene Aufträge, z.B. beim Sperren.
+     */
+    public static void cancelPending() {
+        cancelPending(executor);
+        cancelPending(longExecutor);
+    }
+
+    private static void cancelPending(ThreadPoolExecutor executor) {
+        for (Runnable runnable : executor.getQueue().toArray(new Runnable[0])) {
+            if (runnable instanceof Future)
+                ((Future<?>) runnable).cancel(false);
+        }
+        executor.getQueue().clear();
+    }
+}
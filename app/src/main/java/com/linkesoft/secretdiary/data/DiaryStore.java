@@ -0,0 +1,132 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Speicher für verschlüsselte Einträge, adressiert über den Eintragsnamen "yyyy-MM-dd 😀".
+ * Ver- und Entschlüsselung (und {@link EntryCompression}) erfolgen im Speicher, die Aufrufer sehen nur Klartext-Streams.
+ */
+public interface DiaryStore {
+
+    /**
+     * Namen aller gespeicherten Einträge.
+     */
+    String[] list();
+
+    boolean exists(String name);
+
+    /**
+     * Zeitpunkt des letzten Schreibens (ms), 0 falls nicht vorhanden.
+     */
+    long lastModified(String name);
+
+    /**
+     * Größe der verschlüsselten Daten in Bytes, 0 falls nicht vorhanden.
+     */
+    long length(String name);
+
+    /**
+     * Ändert sich, sobald Einträge hinzukommen, entfernt oder umbenannt werden;
+     * {@link #unknownStamp}, wenn das nicht sicher feststellbar ist.
+     */
+    long listingStamp();
+
+    long unknownStamp = -1;
+
+    // der Tag bleibt beim Umbenennen gleich, die Stimmung nicht; als Associated Data umbenennungsfest
+    static String dayKey(String name) {
+        return name.substring(0, Math.min(name.length(), EpochDay.keyLength));
+    }
+
+    /**
+     * Entschlüsselter Inhalt; der Aufrufer muss den Stream schließen.
+     */
+    InputStream openInput(String name) throws IOException, GeneralSecurityException;
+
+    /**
+     * Verschlüsselt nach {@code name}. Erst {@link Output#commit()} ersetzt den alten Inhalt,
+     * {@code close()} ohne commit verwirft das Geschriebene.
+     */
+    Output openOutput(String name) throws IOException, GeneralSecurityException;
+
+    /**
+     * Ersetzt den Inhalt von {@code name} durch die ersten {@code length} Bytes von {@code plaintext}.
+     * Speicher mit Blockformat verschlüsseln dabei nur geänderte Blöcke neu; sonst wie openOutput und commit.
+     *
+     * @return {@link Output#contentHash()} des neuen Stands
+     */
+    default long replace(String name, byte[] plaintext, int length) throws IOException, GeneralSecurityException {
+        try (Output out = openOutput(name)) {
+            out.write(plaintext, 0, length);
+            out.commit();
+            return out.contentHash();
+        }
+    }
+
+    /**
+     * Ersetzt die Klartext-Bytes [from, to) des {@code storedLength} Bytes langen Stands von {@code name} durch die
+     * ersten {@code length} Bytes von {@code replacement}, ohne den übrigen Inhalt neu zu schreiben.
+     *
+     * @return {@link Output#contentHash()} des neuen Stands, {@link Fingerprint#none} wenn der Speicher bzw. das
+     * Format das nicht kann; dann mit {@link #replace} komplett schreiben
+     */
+    default long replaceRange(String name, long storedLength, long from, long to, byte[] replacement, int length) throws IOException, GeneralSecurityException {
+        return Fingerprint.none;
+    }
+
+    /**
+     * Verschlüsselt den gespeicherten Stand von {@code name} unverändert mit dem aktuellen Schlüssel neu, im
+     * bisherigen Format; für {@link KeyRotation}.
+     *
+     * @return {@link Output#contentHash()} des neuen Stands
+     */
+    default long reencrypt(String name) throws IOException, GeneralSecurityException {
+        try (InputStream in = openInput(name); Output out = openOutput(name)) {
+            byte[] buffer = new byte[TextCodec.bufferSize];
+            int nRead;
+            while ((nRead = in.read(buffer)) != -1)
+                out.write(buffer, 0, nRead);
+            out.commit();
+            return out.contentHash();
+        }
+    }
+
+    /**
+     * Wahlfreier Lesezugriff auf den Klartext, der nur die benötigten Teile entschlüsselt;
+     * null, wenn {@code name} nicht in einem solchen Format vorliegt.
+     */
+    default PlaintextReader openPlaintextReader(String name) throws IOException, GeneralSecurityException {
+        return null;
+    }
+
+    /**
+     * Stand beim Öffnen; spätere Änderungen am Eintrag sind nicht sichtbar. Thread-sicher.
+     */
+    interface PlaintextReader extends Closeable {
+        long length();
+
+        /**
+         * Liest bis zu {@code length} Bytes ab {@code position}.
+         *
+         * @return Anzahl gelesener Bytes, -1 am Ende
+         */
+        int read(long position, byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    boolean rename(String from, String to);
+
+    boolean delete(String name);
+
+    abstract class Output extends OutputStream {
+        public abstract void commit() throws IOException;
+
+        /**
+         * Fingerabdruck der gespeicherten (verschlüsselten) Daten nach {@link #commit()}.
+         */
+        public abstract long contentHash();
+    }
+}
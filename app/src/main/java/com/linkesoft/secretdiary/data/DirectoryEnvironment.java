@@ -0,0 +1,61 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.File;
+
+/**
+ * Umgebung unter einem Verzeichnis, ohne Android: Eintragsdateien in {@code root}/files, Hilfsdateien in
+ * {@code root}/diary, temporäre Dateien in {@code root}/cache. Die Speicher-Einstellung gilt nur bis zum
+ * Prozessende. Für Tests und Profiling auf der JVM, z.B. mit {@link JceKeyProvider}.
+ */
+public class DirectoryEnvironment implements DiaryEnvironment {
+
+    private final File root;
+    private final KeyProvider keys;
+    private String storeBackend;
+
+    public DirectoryEnvironment(File root, KeyProvider keys) {
+        this(root, keys, Diary.backendFiles);
+    }
+
+    public DirectoryEnvironment(File root, KeyProvider keys, String storeBackend) {
+        this.root = root;
+        this.keys = keys;
+        this.storeBackend = storeBackend;
+    }
+
+    private File dir(String name) {
+        File dir = new File(root, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    @Override
+    public File filesDir() {
+        return dir("files");
+    }
+
+    @Override
+    public File dataDir() {
+        return dir("diary");
+    }
+
+    @Override
+    public File cacheDir() {
+        return dir("cache");
+    }
+
+    @Override
+    public KeyProvider keys() {
+        return keys;
+    }
+
+    @Override
+    public synchronized String storeBackend() {
+        return storeBackend;
+    }
+
+    @Override
+    public synchronized void setStoreBackend(String backend) {
+        storeBackend = backend;
+    }
+}
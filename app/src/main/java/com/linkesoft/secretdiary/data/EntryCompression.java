@@ -0,0 +1,497 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Kompression der Einträge vor dem Verschlüsseln, für die Aufrufer der {@link DiaryStore}s unsichtbar.
+ * <p>
+ * Das erste Klartext-Byte ist die Formatversion: bisherige, kurze und kaum komprimierbare Einträge beginnen
+ * direkt mit UTF-8 Text (Format 0), {@link #formatDeflate} (in UTF-8 nie gültig) kennzeichnet einen zlib-Stream. Dieser kann ein
+ * aus den eigenen Einträgen trainiertes Wörterbuch verwenden, erkennbar an dessen Adler-32 im zlib-Kopf.
+ * Wörterbücher liegen verschlüsselt im Datenverzeichnis und werden nie gelöscht, solange Einträge sie brauchen
+ * könnten; ein neues wird erst trainiert, wenn sich die Zahl der Einträge verdoppelt hat.
+ * Geladene Wörterbücher enthalten häufige Wortfolgen im Klartext und werden wie {@link TextCache} beim Sperren
+ * überschrieben und verworfen ({@link #clear()}); Streams arbeiten mit eigenen, danach gelöschten Kopien.
+ */
+public class EntryCompression {
+
+    static final int formatDeflate = 0xF8;
+
+    private static final String dictionaryPrefix = "dict-";
+    private static final int dictionarySize = 16 * 1024;
+    private static final int sampleChars = 1024 * 1024;
+    private static final int minEntries = 16;
+    private static final int maxPhraseWords = 3;
+    private static final int maxCandidates = 4096;
+    // sehr kurze Einträge bleiben unkomprimiert, längere nur, wenn ihr Anfang mindestens 1/8 kleiner wird
+    private static final int minDeflateBytes = 64;
+    private static final int probeBytes = 4 * 1024;
+
+    private static final class Dictionary {
+        final int generation;
+        final int trainedEntries;
+        final byte[] bytes;
+        final int id;
+
+        Dictionary(int generation, int trainedEntries, byte[] bytes) {
+            this.generation = generation;
+            this.trainedEntries = trainedEntries;
+            this.bytes = bytes;
+            Adler32 adler = new Adler32();
+            adler.update(bytes, 0, bytes.length);
+            id = (int) adler.getValue();
+        }
+    }
+
+    // Ablage der Wörterbücher, ohne configure() wird ohne Wörterbuch komprimiert
+    private static File dictionaryDir;
+    private static KeyProvider keys;
+    // Adler-32 -> Wörterbuch, current ist das jüngste
+    private static Map<Integer, Dictionary> dictionaries;
+    private static Dictionary current;
+    private static boolean loaded; // false: noch nicht oder nicht alle lesbar, z.B. Schlüssel gesperrt
+
+    /**
+     * Komprimierender Stream vor {@code out}; {@code close()} schließt {@code out}.
+     * Ohne geschriebene Bytes bleibt der Inhalt leer (Format 0), ebenso unkomprimiert bleiben kurze Einträge und
+     * solche, deren erste {@link #probeBytes} sich kaum komprimieren lassen.
+     */
+    static OutputStream output(OutputStream out) {
+        return new CompressingOutputStream(out, currentDictionaryBytes());
+    }
+
+    /**
+     * Klartext über {@code in}, unabhängig vom Format; schließt {@code in} beim Schließen.
+     */
+    static InputStream input(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 1);
+        int format = pushback.read();
+        if (format != formatDeflate) {
+            if (format != -1)
+                pushback.unread(format);
+            return pushback; // Format 0, unkomprimiert
+        }
+        return new DecompressingInputStream(pushback);
+    }
+
+    private static class CompressingOutputStream extends FilterOutputStream {
+        private byte[] dictionary; // Kopie, nach der Übergabe an zlib gelöscht
+        private byte[] probe = new byte[probeBytes]; // Anfang des Klartexts, bis entschieden ist
+        private int probeLength;
+        private boolean raw;
+        private Deflater deflater;
+        private final byte[] buffer = new byte[TextCodec.bufferSize];
+        private boolean closed;
+
+        CompressingOutputStream(OutputStream out, byte[] dictionary) {
+            super(out);
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0)
+                return;
+            if (probe != null) {
+                int n = Math.min(length, probe.length - probeLength);
+                System.arraycopy(bytes, offset, probe, probeLength, n);
+                probeLength += n;
+                offset += n;
+                length -= n;
+                if (probeLength < probe.length)
+                    return;
+                decide();
+            }
+            if (length == 0)
+                return;
+            if (raw) {
+                out.write(bytes, offset, length);
+                return;
+            }
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput())
+                drain();
+        }
+
+        // komprimiert nur, wenn der Anfang lang genug ist und sich merklich verkleinert
+        private void decide() throws IOException {
+            byte[] start = probe;
+            int length = probeLength;
+            probe = null;
+            try {
+                raw = (length < minDeflateBytes || deflatedSize(start, length) > length - length / 8)
+                        && (start[0] & 0xFF) != formatDeflate; // sonst nicht von Format 0 unterscheidbar
+                if (raw) {
+                    out.write(start, 0, length);
+                } else {
+                    out.write(formatDeflate);
+                    deflater = newDeflater();
+                    deflater.setInput(start, 0, length);
+                    while (!deflater.needsInput())
+                        drain();
+                }
+            } finally {
+                Arrays.fill(start, (byte) 0);
+                if (dictionary != null)
+                    Arrays.fill(dictionary, (byte) 0);
+                dictionary = null;
+            }
+        }
+
+        private Deflater newDeflater() {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            if (dictionary != null)
+                deflater.setDictionary(dictionary);
+            return deflater;
+        }
+
+        private int deflatedSize(byte[] bytes, int length) {
+            if (length < minDeflateBytes)
+                return length;
+            Deflater probeDeflater = newDeflater();
+            try {
+                probeDeflater.setInput(bytes, 0, length);
+                probeDeflater.finish();
+                int size = 0;
+                while (!probeDeflater.finished())
+                    size += probeDeflater.deflate(buffer, 0, buffer.length);
+                return size;
+            } finally {
+                probeDeflater.end();
+            }
+        }
+
+        private void drain() throws IOException {
+            int n = deflater.deflate(buffer, 0, buffer.length);
+            if (n > 0)
+                out.write(buffer, 0, n);
+        }
+
+        @Override
+        public void flush() {
+            // kein SYNC_FLUSH, das kostet Kompression; gespeichert wird erst beim Schließen
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                if (probe != null && probeLength > 0)
+                    decide(); // kurzer Eintrag
+                if (deflater != null) {
+                    deflater.finish();
+                    while (!deflater.finished())
+                        drain();
+                }
+            } finally {
+                if (deflater != null)
+                    deflater.end();
+                if (probe != null)
+                    Arrays.fill(probe, (byte) 0);
+                if (dictionary != null)
+                    Arrays.fill(dictionary, (byte) 0); // nichts geschrieben
+                Arrays.fill(buffer, (byte) 0);
+                out.close();
+            }
+        }
+    }
+
+    private static class DecompressingInputStream extends InflaterInputStream {
+        private boolean closed;
+
+        DecompressingInputStream(InputStream in) {
+            super(in, new Inflater(), TextCodec.bufferSize);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int n = super.read(bytes, offset, length);
+            if (n == -1 && inf.needsDictionary()) {
+                byte[] dictionary = dictionaryBytes(inf.getAdler());
+                if (dictionary == null)
+                    throw new IOException("unknown compression dictionary " + Integer.toHexString(inf.getAdler()));
+                inf.setDictionary(dictionary);
+                Arrays.fill(dictionary, (byte) 0);
+                n = super.read(bytes, offset, length);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                inf.end(); // eigener Inflater, wird von InflaterInputStream nicht freigegeben
+            }
+        }
+    }
+
+    // Wörterbücher
+
+    /**
+     * Wörterbücher liegen in {@code dir}, verschlüsselt mit {@code keys}; verwirft die geladenen wie {@link #clear()}.
+     */
+    static synchronized void configure(File dir, KeyProvider keys) {
+        clear();
+        dictionaryDir = dir;
+        EntryCompression.keys = keys;
+    }
+
+    private static synchronized Dictionary currentDictionary() {
+        loadDictionaries();
+        return current;
+    }
+
+    // Kopien für die Streams, die Originale können beim Sperren jederzeit gelöscht werden
+    private static synchronized byte[] currentDictionaryBytes() {
+        loadDictionaries();
+        return current != null ? current.bytes.clone() : null;
+    }
+
+    private static synchronized byte[] dictionaryBytes(int id) {
+        loadDictionaries();
+        Dictionary dictionary = dictionaries.get(id);
+        return dictionary != null ? dictionary.bytes.clone() : null;
+    }
+
+    // lädt alle Wörterbücher einmal; nicht lesbare werden übersprungen und beim nächsten Mal erneut versucht
+    private static void loadDictionaries() {
+        if (loaded)
+            return;
+        dictionaries = new HashMap<>();
+        current = null;
+        loaded = true;
+        String[] names = dictionaryDir != null ? dictionaryDir.list() : null;
+        if (names == null)
+            return;
+        for (String name : names) {
+            if (!name.startsWith(dictionaryPrefix) || name.endsWith(FileDiaryStore.tmpSuffix))
+                continue;
+            try {
+                Dictionary dictionary = readDictionary(name);
+                dictionaries.put(dictionary.id, dictionary);
+                if (current == null || dictionary.generation > current.generation)
+                    current = dictionary;
+            } catch (IOException | GeneralSecurityException | NumberFormatException e) {
+                Log.e("EntryCompression", "could not read " + name, e);
+                loaded = false;
+            }
+        }
+    }
+
+    private static Dictionary readDictionary(String name) throws IOException, GeneralSecurityException {
+        int generation = Integer.parseInt(name.substring(dictionaryPrefix.length()));
+        try (DataInputStream in = new DataInputStream(keys.openInput(new FileInputStream(new File(dictionaryDir, name)), name))) {
+            int trainedEntries = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new Dictionary(generation, trainedEntries, bytes);
+        }
+    }
+
+    private static void writeDictionary(Dictionary dictionary) throws IOException, GeneralSecurityException {
+        File dir = dictionaryDir;
+        dir.mkdirs();
+        String name = dictionaryPrefix + dictionary.generation;
+        File file = new File(dir, name);
+        File tmpFile = new File(dir, name + FileDiaryStore.tmpSuffix);
+        try (DataOutputStream out = new DataOutputStream(keys.openOutput(FileDiaryStore.syncingOutput(tmpFile), name))) {
+            out.writeInt(dictionary.trainedEntries);
+            out.writeInt(dictionary.bytes.length);
+            out.write(dictionary.bytes);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile);
+        }
+    }
+
+    /**
+     * Trainiert ein neues Wörterbuch aus den neuesten Einträgen, wenn es noch keines gibt oder sich die Zahl
+     * der Einträge ({@code count}) seitdem verdoppelt hat; erst dann werden die Einträge aus {@code source} geholt (neueste zuerst).
+     * Neue Einträge verwenden es beim nächsten Speichern, bestehende werden nicht umgeschrieben.
+     *
+     * @return true, wenn ein neues Wörterbuch angelegt wurde
+     */
+    static boolean trainIfNeeded(int count, Supplier<List<DiaryEntry>> source) throws IOException, GeneralSecurityException {
+        Dictionary dictionary = currentDictionary();
+        synchronized (EntryCompression.class) {
+            if (!loaded || dictionaryDir == null)
+                return false; // sonst könnte ein neues Wörterbuch ein nicht lesbares überschreiben
+        }
+        if (count < minEntries || (dictionary != null && count < 2 * dictionary.trainedEntries))
+            return false;
+        List<DiaryEntry> entries = source.get();
+        long start = System.nanoTime();
+        StringBuilder sample = new StringBuilder();
+        char[] buffer = new char[TextCodec.bufferSize];
+        byte[] bytes;
+        int sampled;
+        try {
+            for (DiaryEntry entry : entries) { // neueste zuerst
+                if (sample.length() >= sampleChars)
+                    break;
+                try (Reader in = entry.openReader()) {
+                    int nRead;
+                    while (sample.length() < sampleChars && (nRead = in.read(buffer)) != -1)
+                        sample.append(buffer, 0, nRead);
+                }
+                sample.append('\n');
+            }
+            sampled = sample.length();
+            bytes = train(sample);
+        } finally {
+            wipe(sample);
+            Arrays.fill(buffer, '\0');
+        }
+        if (bytes.length == 0)
+            return false;
+        synchronized (EntryCompression.class) {
+            if (!loaded)
+                return false; // inzwischen gesperrt, current wäre unbekannt
+            int generation = current != null ? current.generation + 1 : 1;
+            Dictionary trained = new Dictionary(generation, entries.size(), bytes);
+            writeDictionary(trained);
+            dictionaries.put(trained.id, trained);
+            current = trained;
+        }
+        Log.v("EntryCompression", "dictionary of " + bytes.length + " bytes from " + sampled + " chars in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+        return true;
+    }
+
+    // Klartext nicht bis zur nächsten Garbage Collection im Speicher lassen
+    private static void wipe(StringBuilder text) {
+        for (int i = 0; i < text.length(); i++)
+            text.setCharAt(i, '\0');
+        text.setLength(0);
+    }
+
+    /**
+     * Wörterbuch aus häufigen Wortfolgen (ein bis drei Wörter) nach Ersparnis (Häufigkeit × Länge);
+     * die wertvollsten stehen am Ende, wo Deflate sie mit den kürzesten Distanzen erreicht.
+     */
+    static byte[] train(CharSequence sample) {
+        Map<String, Integer> counts = new HashMap<>();
+        List<Integer> wordStarts = new ArrayList<>();
+        int length = sample.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && Character.isWhitespace(sample.charAt(i)))
+                i++;
+            if (i < length)
+                wordStarts.add(i);
+            while (i < length && !Character.isWhitespace(sample.charAt(i)))
+                i++;
+        }
+        wordStarts.add(length);
+        for (int w = 0; w < wordStarts.size() - 1; w++) {
+            for (int n = 1; n <= maxPhraseWords && w + n < wordStarts.size(); n++) {
+                // Wortfolge einschließlich folgendem Leerraum, so wie sie im Text vorkommt
+                String phrase = sample.subSequence(wordStarts.get(w), wordStarts.get(w + n)).toString();
+                if (phrase.length() >= 4 && phrase.length() <= 64)
+                    counts.merge(phrase, 1, Integer::sum);
+            }
+        }
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> candidate : counts.entrySet()) {
+            if (candidate.getValue() >= 3)
+                candidates.add(candidate);
+        }
+        Collections.sort(candidates, (a, b) -> Long.compare(score(b), score(a)));
+        if (candidates.size() > maxCandidates)
+            candidates = candidates.subList(0, maxCandidates);
+
+        List<byte[]> selected = new ArrayList<>();
+        StringBuilder chosen = new StringBuilder();
+        int size = 0;
+        try {
+            for (Map.Entry<String, Integer> candidate : candidates) {
+                String phrase = candidate.getKey();
+                if (chosen.indexOf(phrase) >= 0)
+                    continue; // bereits in einer längeren Folge enthalten
+                byte[] phraseBytes = phrase.getBytes(StandardCharsets.UTF_8);
+                if (size + phraseBytes.length > dictionarySize)
+                    continue;
+                selected.add(phraseBytes);
+                chosen.append(phrase);
+                size += phraseBytes.length;
+            }
+        } finally {
+            wipe(chosen);
+        }
+        byte[] dictionary = new byte[size];
+        int offset = size;
+        for (byte[] phraseBytes : selected) { // umgekehrt: zuerst gewählte ans Ende
+            offset -= phraseBytes.length;
+            System.arraycopy(phraseBytes, 0, dictionary, offset, phraseBytes.length);
+            Arrays.fill(phraseBytes, (byte) 0);
+        }
+        return dictionary;
+    }
+
+    private static long score(Map.Entry<String, Integer> candidate) {
+        return (long) (candidate.getValue() - 1) * candidate.getKey().length();
+    }
+
+    /**
+     * Schreibt alle Wörterbücher mit dem aktuellen Schlüssel neu, vor dem Abschluss einer Schlüsselrotation.
+     */
+    static synchronized void rewriteDictionaries() throws IOException, GeneralSecurityException {
+        loadDictionaries();
+        for (Dictionary dictionary : dictionaries.values())
+            writeDictionary(dictionary);
+    }
+
+    /**
+     * Überschreibt und verwirft die geladenen Wörterbücher, z.B. beim Sperren oder nach {@link Diary#configure};
+     * sie werden beim nächsten Ver- oder Entschlüsseln neu geladen.
+     */
+    public static synchronized void clear() {
+        if (dictionaries != null) {
+            for (Dictionary dictionary : dictionaries.values())
+                Arrays.fill(dictionary.bytes, (byte) 0);
+        }
+        dictionaries = null;
+        current = null;
+        loaded = false;
+    }
+}
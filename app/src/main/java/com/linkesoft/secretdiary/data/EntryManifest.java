@@ -0,0 +1,171 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Gespeicherte {@link EntryMetadataStore}-Daten in festen Datensätzen, per {@link FileChannel#map} gelesen.
+ * Beim Start kann die Liste so direkt aus der Datei angezeigt werden, ohne das Verzeichnis zu lesen
+ * und alle Dateinamen zu parsen; nur die sichtbaren Datensätze werden überhaupt angefasst.
+ * <p>
+ * Kopf: magic, Version, Datensatzgröße, Anzahl. Datensatz (aufsteigend nach Tag):
+ * Tag (int), Stimmung (byte), 3 Byte frei, Größe, Inhalts-Hash und Änderungszeit (long).
+ * Enthält nur, was auch die Dateinamen und -attribute preisgeben, daher unverschlüsselt; dafür ungeschützt,
+ * gelesene Werte werden also geprüft ({@link #verify()}) statt direkt z.B. als Index verwendet.
+ */
+class EntryManifest {
+
+    private static final int magic = 0x53444d46; // SDMF
+    private static final int version = 1;
+    private static final int headerSize = 16;
+    private static final int recordSize = 32;
+    private static final String tmpSuffix = ".tmp";
+
+    private static final int dayOffset = 0;
+    private static final int moodOffset = 4;
+    private static final int lengthOffset = 8;
+    private static final int hashOffset = 16;
+    private static final int modifiedOffset = 24;
+
+    // vierstellige Jahre, wie in den Dateinamen
+    private static final int firstDay = EpochDay.of(1, 1, 1);
+    private static final int lastDay = EpochDay.of(9999, 12, 31);
+
+    private final ByteBuffer buffer;
+    private final int size;
+
+    private EntryManifest(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * @return null, wenn die Datei fehlt oder nicht zum Format passt
+     */
+    static EntryManifest open(File file) {
+        if (!file.exists())
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long fileSize = channel.size();
+            if (fileSize < headerSize)
+                return null;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize); // bleibt nach close gültig
+            int count = buffer.getInt(12);
+            if (buffer.getInt(0) != magic || buffer.getInt(4) != version || buffer.getInt(8) != recordSize
+                    || count < 0 || fileSize != headerSize + (long) count * recordSize) {
+                Log.w("EntryManifest", "invalid manifest, ignored");
+                return null;
+            }
+            return new EntryManifest(buffer, count);
+        } catch (IOException e) {
+            Log.e("EntryManifest", "could not map manifest", e);
+            return null;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int record(int index) {
+        return headerSize + index * recordSize;
+    }
+
+    int epochDay(int index) {
+        return buffer.getInt(record(index) + dayOffset);
+    }
+
+    /**
+     * Ungültige Codes (beschädigte Datei) werden als {@link Mood#happy} gelesen, {@link #verify()} meldet sie.
+     */
+    byte mood(int index) {
+        byte mood = buffer.get(record(index) + moodOffset);
+        return mood >= 0 && mood < Mood.count ? mood : Mood.happy;
+    }
+
+    long length(int index) {
+        return buffer.getLong(record(index) + lengthOffset);
+    }
+
+    long contentHash(int index) {
+        return buffer.getLong(record(index) + hashOffset);
+    }
+
+    long lastModified(int index) {
+        return buffer.getLong(record(index) + modifiedOffset);
+    }
+
+    /**
+     * @return Position des Tages oder (-(Einfügeposition) - 1) wie {@link EntryMetadataStore#indexOf}
+     */
+    int indexOf(int epochDay) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int day = epochDay(mid);
+            if (day < epochDay)
+                low = mid + 1;
+            else if (day > epochDay)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * false, wenn ein Datensatz nicht passt: Stimmung unbekannt, Tage nicht aufsteigend oder außerhalb
+     * vierstelliger Jahre; das Manifest ist dann aus dem Speicher neu aufzubauen.
+     */
+    boolean verify() {
+        int previous = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            byte mood = buffer.get(record(i) + moodOffset);
+            int day = epochDay(i);
+            if (mood < 0 || mood >= Mood.count || day <= previous || day < firstDay || day > lastDay)
+                return false;
+            previous = day;
+        }
+        return true;
+    }
+
+    void loadInto(EntryMetadataStore metadata) {
+        for (int i = 0; i < size; i++)
+            metadata.put(epochDay(i), mood(i), length(i), lastModified(i), contentHash(i));
+    }
+
+    /**
+     * Schreibt alle Metadaten in eine temporäre Datei und benennt diese danach um.
+     */
+    static void write(File file, EntryMetadataStore metadata) throws IOException {
+        int count = metadata.size();
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + count * recordSize);
+        buffer.putInt(magic).putInt(version).putInt(recordSize).putInt(count);
+        EntryMetadataStore.Cursor cursor = metadata.cursor();
+        for (int i = 0; i < count; i++) {
+            cursor.moveTo(i);
+            buffer.putInt(cursor.epochDay()).put(cursor.mood()).put((byte) 0).putShort((short) 0)
+                    .putLong(cursor.size()).putLong(cursor.contentHash()).putLong(cursor.lastModified());
+        }
+        buffer.flip();
+        File tmpFile = new File(file.getPath() + tmpSuffix);
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.linkesoft.secretdiary.data;
+
+import java.util.Arrays;
+
+/**
+ * Spaltenweise Metadaten aller Einträge in primitiven Arrays, aufsteigend sortiert nach Epoch-Tag:
+ * Tag (int), Stimmung (byte), Größe, Änderungszeit und Inhalts-Hash der verschlüsselten Daten (long).
+ * Rund 29 Byte pro Eintrag, zehn Jahre tägliche Einträge belegen also etwa 106 KB.
+ * Wird als {@link EntryManifest} gespeichert; Stimmungs-Histogramme laufen in {@link MoodStatistics} mit.
+ * Zugriff über einen wiederverwendbaren {@link Cursor} statt eines Objekts pro Eintrag.
+ * Nicht thread-sicher, Zugriff wie bei {@link Diary#entryMap} nur unter dem Diary-Lock.
+ */
+public class EntryMetadataStore {
+
+    private static final int initialCapacity = 64;
+
+    private int[] days = new int[initialCapacity];
+    private byte[] moods = new byte[initialCapacity];
+    private long[] sizes = new long[initialCapacity];
+    private long[] modified = new long[initialCapacity];
+    private long[] hashes = new long[initialCapacity];
+    private int size;
+    private final MoodStatistics statistics = new MoodStatistics();
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Position des Tages oder (-(Einfügeposition) - 1) wie {@link Arrays#binarySearch}
+     */
+    public int indexOf(int epochDay) {
+        return Arrays.binarySearch(days, 0, size, epochDay);
+    }
+
+    public boolean contains(int epochDay) {
+        return indexOf(epochDay) >= 0;
+    }
+
+    public void put(int epochDay, byte mood, long length, long lastModified, long contentHash) {
+        int index = indexOf(epochDay);
+        if (index < 0) {
+            index = -index - 1;
+            ensureCapacity(size + 1);
+            int tail = size - index;
+            System.arraycopy(days, index, days, index + 1, tail);
+            System.arraycopy(moods, index, moods, index + 1, tail);
+            System.arraycopy(sizes, index, sizes, index + 1, tail);
+            System.arraycopy(modified, index, modified, index + 1, tail);
+            System.arraycopy(hashes, index, hashes, index + 1, tail);
+            size++;
+            days[index] = epochDay;
+            statistics.add(epochDay, mood);
+        } else {
+            statistics.change(epochDay, moods[index], mood);
+        }
+        moods[index] = mood;
+        sizes[index] = length;
+        modified[index] = lastModified;
+        hashes[index] = contentHash;
+    }
+
+    public boolean setMood(int epochDay, byte mood) {
+        int index = indexOf(epochDay);
+        if (index < 0)
+            return false;
+        statistics.change(epochDay, moods[index], mood);
+        moods[index] = mood;
+        return true;
+    }
+
+    public boolean remove(int epochDay) {
+        int index = indexOf(epochDay);
+        if (index < 0)
+            return false;
+        statistics.remove(epochDay, moods[index]);
+        int tail = size - index - 1;
+        System.arraycopy(days, index + 1, days, index, tail);
+        System.arraycopy(moods, index + 1, moods, index, tail);
+        System.arraycopy(sizes, index + 1, sizes, index, tail);
+        System.arraycopy(modified, index + 1, modified, index, tail);
+        System.arraycopy(hashes, index + 1, hashes, index, tail);
+        size--;
+        return true;
+    }
+
+    public void clear() {
+        size = 0;
+        statistics.clear();
+    }
+
+    public MoodStatistics statistics() {
+        return statistics;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= days.length)
+            return;
+        int newCapacity = Math.max(capacity, days.length + (days.length >> 1));
+        days = Arrays.copyOf(days, newCapacity);
+        moods = Arrays.copyOf(moods, newCapacity);
+        sizes = Arrays.copyOf(sizes, newCapacity);
+        modified = Arrays.copyOf(modified, newCapacity);
+        hashes = Arrays.copyOf(hashes, newCapacity);
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Flyweight über eine Zeile; {@link #moveTo} wechselt die Zeile ohne neue Objekte.
+     */
+    public class Cursor {
+        private int index = -1;
+
+        public Cursor moveTo(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("index " + index + " size " + size);
+            this.index = index;
+            return this;
+        }
+
+        /**
+         * Zeile in absteigender Reihenfolge (neuester Eintrag zuerst), wie in der Liste angezeigt.
+         */
+        public Cursor moveToDescending(int position) {
+            return moveTo(size - 1 - position);
+        }
+
+        public boolean moveToDay(int epochDay) {
+            int found = indexOf(epochDay);
+            if (found < 0)
+                return false;
+            index = found;
+            return true;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public int epochDay() {
+            return days[index];
+        }
+
+        public byte mood() {
+            return moods[index];
+        }
+
+        public long size() {
+            return sizes[index];
+        }
+
+        public long lastModified() {
+            return modified[index];
+        }
+
+        /**
+         * Fingerabdruck der verschlüsselten Daten, {@link Fingerprint#none} falls unbekannt.
+         */
+        public long contentHash() {
+            return hashes[index];
+        }
+    }
+}
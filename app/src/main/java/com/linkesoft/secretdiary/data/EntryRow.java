@@ -0,0 +1,28 @@
+package com.linkesoft.secretdiary.data;
+
+/**
+ * Unveränderliche Momentaufnahme einer Listenzeile (Tag und Stimmung), damit DiffUtil
+ * alte und neue Liste vergleichen kann. Texte werden erst beim Anzeigen formatiert.
+ */
+public final class EntryRow {
+
+    public final int epochDay;
+    public final byte mood;
+
+    EntryRow(int epochDay, byte mood) {
+        this.epochDay = epochDay;
+        this.mood = mood;
+    }
+
+    public String key() {
+        return EpochDay.format(epochDay);
+    }
+
+    public String title() {
+        return DiaryEntry.title(epochDay);
+    }
+
+    public String moodEmoji() {
+        return Mood.emoji(mood);
+    }
+}
@@ -0,0 +1,127 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Signieren und Prüfen mit SHA256withECDSA über wiederverwendbare, bereits initialisierte
+ * Signature-Objekte. Nach sign()/verify() ist ein Signature-Objekt wieder im initialisierten Zustand;
+ * ein vorbereiteter Export kostet so nur noch die ECDSA-Operation selbst.
+ * Signature ist nicht thread-sicher, daher ein kleiner Pool: ausleihen, benutzen, zurückgeben.
+ * <p>
+ * Gespeicherte Einträge werden blockweise direkt aus dem entschlüsselnden Stream signiert
+ * ({@link #sign(InputStream, MessageDigest)}), also mit konstantem Speicher und immer über genau die gespeicherten Bytes.
+ */
+class EntrySigner {
+
+    static final String algorithm = "SHA256withECDSA";
+    static final String digestAlgorithm = "SHA-256";
+
+    private static final ConcurrentLinkedQueue<Prepared> signers = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Prepared> verifiers = new ConcurrentLinkedQueue<>();
+
+    private static final class Prepared {
+        final Key key;
+        final Signature signature;
+
+        Prepared(Key key, Signature signature) {
+            this.key = key;
+            this.signature = signature;
+        }
+    }
+
+    // Objekte zu einem anderen Schlüssel (z.B. nach Diary.configure) werden verworfen
+    private static Prepared take(ConcurrentLinkedQueue<Prepared> pool, Key key) throws GeneralSecurityException {
+        Prepared prepared;
+        while ((prepared = pool.poll()) != null) {
+            if (prepared.key == key)
+                return prepared;
+        }
+        Signature signature = Signature.getInstance(algorithm);
+        if (key instanceof PrivateKey)
+            signature.initSign((PrivateKey) key);
+        else
+            signature.initVerify((PublicKey) key);
+        return new Prepared(key, signature);
+    }
+
+    /**
+     * Lädt die Schlüssel und legt je ein initialisiertes Objekt zum Signieren und Prüfen bereit;
+     * für einen Hintergrund-Thread, bevor ein Export angeboten wird.
+     */
+    static void prepare() throws GeneralSecurityException, IOException {
+        KeyProvider keys = Diary.keys();
+        if (signers.isEmpty())
+            signers.offer(take(signers, keys.privateKey()));
+        if (verifiers.isEmpty())
+            verifiers.offer(take(verifiers, keys.publicKey()));
+    }
+
+    // bei einer Ausnahme ist der Zustand unklar, das Objekt wird dann nicht zurückgegeben
+
+    static byte[] sign(byte[] data) throws GeneralSecurityException, IOException {
+        long start = System.nanoTime();
+        Prepared signer = take(signers, Diary.keys().privateKey());
+        signer.signature.update(data);
+        byte[] signatureBytes = signer.signature.sign();
+        signers.offer(signer);
+        Metrics.sign.recordSince(start);
+        return signatureBytes;
+    }
+
+    /**
+     * Signiert alle Bytes aus {@code in} in Blöcken, ohne sie im Speicher zu sammeln.
+     *
+     * @param digest falls nicht null, wird zusätzlich über dieselben Bytes gerechnet (z.B. zum Abgleich
+     *               mit dem Inhalts-Digest beim Schreiben)
+     */
+    static byte[] sign(InputStream in, MessageDigest digest) throws GeneralSecurityException, IOException {
+        long start = System.nanoTime();
+        Prepared signer = take(signers, Diary.keys().privateKey());
+        update(signer.signature, digest != null ? new DigestInputStream(in, digest) : in);
+        byte[] signatureBytes = signer.signature.sign();
+        signers.offer(signer);
+        Metrics.sign.recordSince(start);
+        return signatureBytes;
+    }
+
+    static boolean verify(byte[] data, byte[] signatureBytes) throws GeneralSecurityException, IOException {
+        Prepared verifier = take(verifiers, Diary.keys().publicKey());
+        verifier.signature.update(data);
+        boolean valid = verifier.signature.verify(signatureBytes);
+        verifiers.offer(verifier);
+        return valid;
+    }
+
+    static boolean verify(InputStream in, byte[] signatureBytes) throws GeneralSecurityException, IOException {
+        Prepared verifier = take(verifiers, Diary.keys().publicKey());
+        update(verifier.signature, in);
+        boolean valid = verifier.signature.verify(signatureBytes);
+        verifiers.offer(verifier);
+        return valid;
+    }
+
+    private static void update(Signature signature, InputStream in) throws GeneralSecurityException, IOException {
+        byte[] buffer = new byte[TextCodec.bufferSize];
+        int nRead;
+        while ((nRead = in.read(buffer)) != -1)
+            signature.update(buffer, 0, nRead);
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
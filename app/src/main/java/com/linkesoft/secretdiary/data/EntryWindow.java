@@ -0,0 +1,307 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+/**
+ * Sehr lange Einträge abschnittsweise: der Klartext wird in Abschnitte von etwa {@link #segmentBytes}
+ * geteilt, möglichst an Zeilenenden, und nur die gerade angezeigten Abschnitte (plus etwas Vorlauf) werden
+ * entschlüsselt. Das Öffnen kostet so unabhängig von der Länge etwa so viel wie ein kurzer Eintrag.
+ * <p>
+ * Grundlage ist der Stand beim Öffnen ({@link DiaryStore.PlaintextReader}); geänderte Abschnitte liegen im
+ * Speicher und werden beim Speichern einzeln an ihre Stelle im gespeicherten Stand geschrieben
+ * ({@link DiaryStore#replaceRange}), die übrigen werden dafür weder entschlüsselt noch neu verschlüsselt.
+ */
+public class EntryWindow implements Closeable {
+
+    // gespeicherte Größe, ab der Einträge abschnittsweise angezeigt werden
+    public static final long threshold = 256 * 1024;
+    static final int segmentBytes = 8 * 1024;
+    // so weit wird nach einem Zeilenende als Abschnittsgrenze gesucht
+    private static final int boundarySearch = 1024;
+    private static final int cachedSegments = 16;
+
+    private final DiaryEntry entry;
+    private final DiaryStore.PlaintextReader reader;
+    private final int segmentCount;
+    private final long[] boundaries; // Anfang jedes Abschnitts im Klartext, -1 solange unbekannt
+    private final TreeMap<Integer, String> edited = new TreeMap<>();
+    // zuletzt gespeicherter Text geänderter Abschnitte; gespeicherter Stand = Stand beim Öffnen mit diesen Abschnitten
+    private final TreeMap<Integer, String> stored = new TreeMap<>();
+    private final LinkedHashMap<Integer, String> segments = new LinkedHashMap<Integer, String>(cachedSegments, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > cachedSegments;
+        }
+    };
+    private boolean unsaved;
+    private boolean closed;
+
+    private EntryWindow(DiaryEntry entry, DiaryStore.PlaintextReader reader) {
+        this.entry = entry;
+        this.reader = reader;
+        long length = reader.length();
+        segmentCount = (int) Math.max(1, (length + segmentBytes - 1) / segmentBytes);
+        boundaries = new long[segmentCount + 1];
+        Arrays.fill(boundaries, -1);
+        boundaries[0] = 0;
+        boundaries[segmentCount] = length;
+    }
+
+    /**
+     * null, wenn der Eintrag nicht wahlfrei lesbar ist (anderer Speicher, kurzer Eintrag) oder noch
+     * ungespeicherter Text vorliegt; dann wie bisher komplett laden.
+     */
+    static EntryWindow open(DiaryEntry entry) throws IOException, GeneralSecurityException {
+        if (EntryWriter.pendingText(entry) != null)
+            return null;
+        DiaryStore.PlaintextReader reader = Diary.store().openPlaintextReader(entry.fileName());
+        return reader != null ? new EntryWindow(entry, reader) : null;
+    }
+
+    public int segmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Text des Abschnitts, ggf. mit Änderungen; entschlüsselt nur die betroffenen Blöcke.
+     */
+    public synchronized CharSequence segment(int index) throws IOException {
+        String text = edited.get(index);
+        if (text == null)
+            text = segments.get(index);
+        if (text == null) {
+            long start = boundary(index);
+            byte[] bytes = read(start, (int) (boundary(index + 1) - start));
+            text = TextCodec.get().decode(new ByteArrayInputStream(bytes), new StringBuilder(bytes.length)).toString();
+            segments.put(index, text);
+        }
+        return text;
+    }
+
+    /**
+     * Entschlüsselt den Abschnitt im Hintergrund und liefert ihn auf dem Main-Thread.
+     */
+    public Future<CharSequence> loadSegmentAsync(int index, DiaryIO.Callback<CharSequence> callback) {
+        return DiaryIO.submit(() -> segment(index), callback);
+    }
+
+    /**
+     * Entschlüsselt Abschnitte vorab, z.B. den Vorlauf beim Scrollen; verworfen, wenn der Pool ausgelastet ist.
+     */
+    public void prefetch(int from, int to) {
+        for (int index = Math.max(0, from); index < Math.min(to, segmentCount); index++) {
+            int segment = index;
+            DiaryIO.submitSpeculative(() -> {
+                try {
+                    segment(segment);
+                } catch (IOException e) {
+                    Log.w("EntryWindow", "could not prefetch segment " + segment, e);
+                }
+            });
+        }
+    }
+
+    public synchronized void setSegment(int index, String text) {
+        edited.put(index, text);
+        unsaved = true;
+    }
+
+    public synchronized boolean isModified() {
+        return !edited.isEmpty();
+    }
+
+    // Grenze vor Abschnitt index: erstes Zeilenende ab der nominellen Position, sonst der nächste Zeichenanfang
+    private synchronized long boundary(int index) throws IOException {
+        if (boundaries[index] >= 0)
+            return boundaries[index];
+        long nominal = (long) index * segmentBytes;
+        byte[] bytes = read(nominal, (int) Math.min(boundarySearch, reader.length() - nominal));
+        int boundary = -1;
+        for (int i = 1; i <= bytes.length && boundary < 0; i++) {
+            if (bytes[i - 1] == '\n')
+                boundary = i;
+        }
+        for (int i = 0; i < bytes.length && boundary < 0; i++) {
+            if ((bytes[i] & 0xC0) != 0x80) // kein UTF-8 Folgebyte
+                boundary = i;
+        }
+        boundaries[index] = nominal + Math.max(0, boundary);
+        return boundaries[index];
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        if (closed)
+            throw new IOException("entry window closed");
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = reader.read(position + offset, bytes, offset, length - offset);
+            if (n < 0)
+                throw new IOException("unexpected end of entry");
+            offset += n;
+        }
+        return bytes;
+    }
+
+    synchronized TreeMap<Integer, String> edits() {
+        return new TreeMap<>(edited);
+    }
+
+    /**
+     * Ganzer Text: unveränderte Abschnitte aus dem Stand beim Öffnen, dazu {@code edits}.
+     */
+    CharSequence text(Map<Integer, String> edits) throws IOException {
+        StringBuilder text = new StringBuilder((int) Math.min(reader.length(), Integer.MAX_VALUE - 8));
+        for (int index = 0; index < segmentCount; index++) {
+            String changed = edits.get(index);
+            if (changed != null) {
+                text.append(changed);
+            } else {
+                long start = boundary(index);
+                byte[] bytes = read(start, (int) (boundary(index + 1) - start));
+                TextCodec.get().decode(new ByteArrayInputStream(bytes), text);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Schreibt den ganzen Text als UTF-8 nach {@code out}, Abschnitt für Abschnitt; unveränderte Abschnitte
+     * werden nur entschlüsselt, nicht dekodiert.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Map<Integer, String> edits = edits();
+        for (int index = 0; index < segmentCount; index++) {
+            String changed = edits.get(index);
+            if (changed != null) {
+                TextCodec.get().encode(changed, out);
+            } else {
+                long start = boundary(index);
+                out.write(read(start, (int) (boundary(index + 1) - start)));
+            }
+        }
+    }
+
+    /**
+     * {@link #writeTo} im Hintergrund nach {@code file}, z.B. für den Export; liefert die Datei auf dem Main-Thread.
+     */
+    public Future<File> writeToAsync(File file, DiaryIO.Callback<File> callback) {
+        return DiaryIO.submit(() -> {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                writeTo(out);
+            } catch (IOException | RuntimeException e) {
+                file.delete();
+                throw e;
+            }
+            return file;
+        }, callback);
+    }
+
+    // Abschnitte, deren Text vom zuletzt gespeicherten abweicht
+    synchronized TreeMap<Integer, String> unsavedSegments() {
+        TreeMap<Integer, String> unsaved = new TreeMap<>();
+        for (Map.Entry<Integer, String> segment : edited.entrySet()) {
+            if (!segment.getValue().equals(stored.get(segment.getKey())))
+                unsaved.put(segment.getKey(), segment.getValue());
+        }
+        return unsaved;
+    }
+
+    /**
+     * Schreibt {@code segments} einzeln an ihre Stelle im gespeicherten Stand, auf dem Schreib-Thread.
+     *
+     * @return contentHash nach dem letzten Abschnitt, {@link Fingerprint#none} wenn der Speicher das nicht kann
+     * (z.B. inzwischen anderes Format); dann den ganzen Text schreiben und {@link #markSaved} aufrufen
+     */
+    long saveSegments(DiaryStore store, String fileName, Map<Integer, String> segments) throws IOException, GeneralSecurityException {
+        long contentHash = Fingerprint.none;
+        for (Map.Entry<Integer, String> segment : segments.entrySet()) {
+            int index = segment.getKey();
+            long from;
+            long to;
+            long storedLength;
+            synchronized (this) {
+                from = storedStart(index);
+                to = storedStart(index + 1);
+                storedLength = storedStart(segmentCount);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(segmentBytes + segmentBytes / 2);
+            TextCodec.get().encode(segment.getValue(), bytes);
+            byte[] replacement = bytes.toByteArray();
+            contentHash = store.replaceRange(fileName, storedLength, from, to, replacement, replacement.length);
+            if (contentHash == Fingerprint.none)
+                return contentHash;
+            synchronized (this) {
+                stored.put(index, segment.getValue());
+            }
+        }
+        return contentHash;
+    }
+
+    synchronized void markSaved(Map<Integer, String> segments) {
+        stored.putAll(segments);
+    }
+
+    // Anfang von Abschnitt index im gespeicherten Stand
+    private long storedStart(int index) throws IOException {
+        long start = boundary(index);
+        for (Map.Entry<Integer, String> segment : stored.headMap(index).entrySet()) {
+            int saved = segment.getKey();
+            start += TextCodec.encodedLength(segment.getValue(), 0, segment.getValue().length())
+                    - (boundary(saved + 1) - boundary(saved));
+        }
+        return start;
+    }
+
+    // Speichern fehlgeschlagen: beim nächsten saveAsync erneut
+    synchronized void saveFailed() {
+        unsaved = true;
+    }
+
+    /**
+     * Speichert im Hintergrund, falls seit dem letzten Speichern Abschnitte geändert wurden, siehe {@link DiaryEntry#saveWindowAsync}.
+     */
+    public void saveAsync() {
+        synchronized (this) {
+            if (!unsaved)
+                return;
+            unsaved = false;
+        }
+        entry.saveWindowAsync(this);
+    }
+
+    /**
+     * Schließt nach ausstehenden Speichervorgängen, die den Stand beim Öffnen noch lesen.
+     */
+    @Override
+    public void close() {
+        EntryWriter.afterPendingWrites(() -> {
+            synchronized (this) {
+                closed = true;
+                segments.clear();
+                edited.clear();
+                stored.clear();
+            }
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.w("EntryWindow", "could not close reader", e);
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind Speichern von Einträgen auf einem Hintergrund-Thread.
+ * Mehrere Speicheraufträge für denselben Eintrag werden zusammengefasst: es wird nur der jeweils
+ * letzte Text verschlüsselt. Bis der Schreibvorgang abgeschlossen ist, liefert {@link #pendingText}
+ * den noch nicht geschriebenen Text.
+ */
+public class EntryWriter {
+
+    private static volatile Thread writerThread;
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EntryWriter");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        writerThread = thread;
+        return thread;
+    });
+    // eingeplante, noch nicht beendete Aufträge
+    private static final AtomicInteger queued = new AtomicInteger();
+
+    private static final ConcurrentHashMap<String, PendingWrite> pending = new ConcurrentHashMap<>();
+
+    private static class PendingWrite {
+        final DiaryEntry entry;
+        final String text;
+
+        PendingWrite(DiaryEntry entry, String text) {
+            this.entry = entry;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Speichert {@code text} asynchron; {@code text} darf danach nicht mehr verändert werden.
+     */
+    public static void save(DiaryEntry entry, String text) {
+        entry.markSaved(text);
+        String key = entry.key();
+        if (pending.put(key, new PendingWrite(entry, text)) == null)
+            execute(() -> write(key));
+        // sonst übernimmt der bereits eingeplante Auftrag den neuen Text
+    }
+
+    private static void write(String key) {
+        PendingWrite write;
+        while ((write = pending.get(key)) != null) {
+            try {
+                write.entry.setText(write.text);
+            } catch (RuntimeException e) {
+                Log.e("EntryWriter", "could not save " + key, e);
+            }
+            if (pending.remove(key, write))
+                break;
+            // zwischenzeitlich neuer Text, nochmal schreiben
+        }
+        if (pending.isEmpty())
+            Diary.trainCompression(); // meist nur ein Vergleich der Anzahl Einträge
+    }
+
+    static CharSequence pendingText(DiaryEntry entry) {
+        PendingWrite write = pending.get(entry.key());
+        return write != null ? write.text : null;
+    }
+
+    static void cancel(DiaryEntry entry) {
+        pending.remove(entry.key());
+    }
+
+    /**
+     * Führt {@code runnable} auf dem Schreib-Thread aus, nachdem alle bisher eingeplanten Aufträge erledigt sind.
+     */
+    public static void afterPendingWrites(Runnable runnable) {
+        execute(runnable);
+    }
+
+    private static void execute(Runnable runnable) {
+        queued.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                runnable.run();
+            } finally {
+                queued.decrementAndGet();
+            }
+        });
+    }
+
+    static boolean isIdle() {
+        return queued.get() == 0;
+    }
+
+    static boolean isWriterThread() {
+        return Thread.currentThread() == writerThread;
+    }
+}
@@ -0,0 +1,140 @@
+package com.linkesoft.secretdiary.data;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Kalendertage als int (Tage seit 1970-01-01), ohne SimpleDateFormat.
+ * Alle Methoden sind zustandslos und damit thread-sicher; {@link #formatTo} alloziert nicht.
+ * (java.time steht erst ab API 26 zur Verfügung.)
+ */
+public class EpochDay {
+
+    public static final int invalid = Integer.MIN_VALUE;
+    static final int keyLength = 10; // yyyy-MM-dd
+
+    private static final long millisPerDay = 24L * 60 * 60 * 1000;
+
+    // nach Howard Hinnant, "chrono-Compatible Low-Level Date Algorithms"
+    public static int of(int year, int month, int dayOfMonth) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dayOfMonth - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * @return Jahr * 10000 + Monat * 100 + Tag
+     */
+    public static int yyyymmdd(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = z - era * 146097;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int y = yoe + era * 400;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int d = doy - (153 * mp + 2) / 5 + 1;
+        int m = mp < 10 ? mp + 3 : mp - 9;
+        if (m <= 2)
+            y++;
+        return y * 10000 + m * 100 + d;
+    }
+
+    public static int year(int epochDay) {
+        return yyyymmdd(epochDay) / 10000;
+    }
+
+    public static int month(int epochDay) {
+        return yyyymmdd(epochDay) / 100 % 100;
+    }
+
+    public static int dayOfMonth(int epochDay) {
+        return yyyymmdd(epochDay) % 100;
+    }
+
+    /**
+     * @return 0 = Montag ... 6 = Sonntag
+     */
+    public static int dayOfWeek(int epochDay) {
+        return Math.floorMod(epochDay + 3, 7); // 1970-01-01 war ein Donnerstag
+    }
+
+    /**
+     * Liest yyyy-MM-dd ab {@code offset}.
+     *
+     * @return Epoch-Tag oder {@link #invalid}
+     */
+    public static int parse(CharSequence text, int offset) {
+        if (text.length() < offset + keyLength || text.charAt(offset + 4) != '-' || text.charAt(offset + 7) != '-')
+            return invalid;
+        int year = digits(text, offset, 4);
+        int month = digits(text, offset + 5, 2);
+        int day = digits(text, offset + 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31)
+            return invalid;
+        return of(year, month, day);
+    }
+
+    private static int digits(CharSequence text, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Schreibt yyyy-MM-dd (10 Zeichen) nach {@code dst}, ohne Objekte anzulegen.
+     */
+    public static void formatTo(int epochDay, char[] dst, int offset) {
+        int ymd = yyyymmdd(epochDay);
+        int year = ymd / 10000;
+        int month = ymd / 100 % 100;
+        int day = ymd % 100;
+        dst[offset] = (char) ('0' + year / 1000 % 10);
+        dst[offset + 1] = (char) ('0' + year / 100 % 10);
+        dst[offset + 2] = (char) ('0' + year / 10 % 10);
+        dst[offset + 3] = (char) ('0' + year % 10);
+        dst[offset + 4] = '-';
+        dst[offset + 5] = (char) ('0' + month / 10);
+        dst[offset + 6] = (char) ('0' + month % 10);
+        dst[offset + 7] = '-';
+        dst[offset + 8] = (char) ('0' + day / 10);
+        dst[offset + 9] = (char) ('0' + day % 10);
+    }
+
+    public static String format(int epochDay) {
+        char[] chars = new char[keyLength];
+        formatTo(epochDay, chars, 0);
+        return new String(chars);
+    }
+
+    // Umrechnung in lokale Zeit
+
+    public static int fromMillis(long millis) {
+        long local = millis + TimeZone.getDefault().getOffset(millis);
+        return (int) Math.floorDiv(local, millisPerDay);
+    }
+
+    public static int today() {
+        return fromMillis(System.currentTimeMillis());
+    }
+
+    /**
+     * Mitternacht (lokale Zeit) des Tages.
+     */
+    public static Date toDate(int epochDay) {
+        int ymd = yyyymmdd(epochDay);
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(ymd / 10000, ymd / 100 % 100 - 1, ymd % 100);
+        return calendar.getTime();
+    }
+}
@@ -0,0 +1,191 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Eine verschlüsselte Datei pro Eintrag (bisheriges Format, kompatibel zu EncryptedFile).
+ * Geschrieben wird in eine temporäre Datei, die beim commit atomar umbenannt wird.
+ * Lange Einträge, die per {@link #replace} gespeichert werden, liegen im {@link BlockFile}-Format;
+ * beim Lesen wird das Format am Dateianfang erkannt. Alle anderen werden vor dem Verschlüsseln komprimiert
+ * ({@link EntryCompression}).
+ */
+public class FileDiaryStore implements DiaryStore {
+
+    static final String tmpSuffix = ".tmp";
+    // Zeitstempel mit grober Auflösung: kurz nach einer Änderung dem Verzeichnis-Zeitstempel nicht trauen
+    private static final long timestampGranularityMillis = 2000;
+
+    private final File dir;
+    private final KeyProvider keys;
+
+    public FileDiaryStore(File dir, KeyProvider keys) {
+        this.dir = dir;
+        this.keys = keys;
+    }
+
+    private File file(String name) {
+        return new File(dir, name);
+    }
+
+    @Override
+    public String[] list() {
+        String[] names = dir.list();
+        if (names == null)
+            return new String[0];
+        int count = 0;
+        for (String name : names) {
+            if (!name.endsWith(tmpSuffix)) // unvollständig geschrieben oder gerade in Arbeit
+                names[count++] = name;
+        }
+        return count == names.length ? names : Arrays.copyOf(names, count);
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return file(name).exists();
+    }
+
+    @Override
+    public long lastModified(String name) {
+        return file(name).lastModified();
+    }
+
+    @Override
+    public long length(String name) {
+        return file(name).length();
+    }
+
+    @Override
+    public long listingStamp() {
+        long modified = dir.lastModified();
+        if (System.currentTimeMillis() - modified <= timestampGranularityMillis)
+            return unknownStamp;
+        return modified;
+    }
+
+    @Override
+    public InputStream openInput(String name) throws IOException, GeneralSecurityException {
+        File file = file(name);
+        if (BlockFile.isBlockFile(file))
+            return BlockFile.openInput(file, DiaryStore.dayKey(name), keys);
+        return EntryCompression.input(keys.openInput(new FileInputStream(file), name));
+    }
+
+    @Override
+    public PlaintextReader openPlaintextReader(String name) throws IOException, GeneralSecurityException {
+        File file = file(name);
+        return BlockFile.isBlockFile(file) ? BlockFile.openReader(file, DiaryStore.dayKey(name), keys) : null;
+    }
+
+    @Override
+    public long replace(String name, byte[] plaintext, int length) throws IOException, GeneralSecurityException {
+        return BlockFile.write(file(name), new File(dir, name + tmpSuffix), DiaryStore.dayKey(name), plaintext, length, keys);
+    }
+
+    @Override
+    public long replaceRange(String name, long storedLength, long from, long to, byte[] replacement, int length) throws IOException, GeneralSecurityException {
+        return BlockFile.replaceRange(file(name), new File(dir, name + tmpSuffix), DiaryStore.dayKey(name), storedLength, from, to, replacement, length, keys);
+    }
+
+    @Override
+    public long reencrypt(String name) throws IOException, GeneralSecurityException {
+        File file = file(name);
+        if (BlockFile.isBlockFile(file))
+            return BlockFile.reencrypt(file, new File(dir, name + tmpSuffix), DiaryStore.dayKey(name), keys);
+        return DiaryStore.super.reencrypt(name);
+    }
+
+    @Override
+    public Output openOutput(String name) throws IOException, GeneralSecurityException {
+        File file = file(name);
+        File tmpFile = new File(dir, name + tmpSuffix);
+        Fingerprint.Stream hashed = new Fingerprint.Stream(syncingOutput(tmpFile));
+        OutputStream out = EntryCompression.output(keys.openOutput(hashed, name));
+        return new Output() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                closed = true;
+                out.close(); // mit fsync
+                if (!tmpFile.renameTo(file)) {
+                    tmpFile.delete();
+                    throw new IOException("Could not rename " + tmpFile);
+                }
+            }
+
+            @Override
+            public long contentHash() {
+                return hashed.value();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+                try {
+                    out.close();
+                } finally {
+                    tmpFile.delete();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean rename(String from, String to) {
+        return file(from).renameTo(file(to));
+    }
+
+    @Override
+    public boolean delete(String name) {
+        return file(name).delete();
+    }
+
+    /**
+     * Schreibt beim Schließen mit fsync auf den Datenträger.
+     */
+    static FileOutputStream syncingOutput(File file) throws FileNotFoundException {
+        return new SyncingFileOutputStream(file);
+    }
+
+    private static class SyncingFileOutputStream extends FileOutputStream {
+        private boolean closed;
+
+        SyncingFileOutputStream(File file) throws FileNotFoundException {
+            super(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                flush();
+                getFD().sync();
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Schneller 64-Bit Inhalts-Fingerabdruck (FNV-1a über die UTF-16 Zeichen), um unveränderte Texte
+ * nicht erneut zu verschlüsseln. Kein kryptografischer Hash.
+ */
+public class Fingerprint {
+
+    static final long none = 0;
+
+    private static final long offsetBasis = 0xcbf29ce484222325L;
+    private static final long prime = 0x100000001b3L;
+
+    public static long of(CharSequence text) {
+        long hash = offsetBasis;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            hash ^= c & 0xff;
+            hash *= prime;
+            hash ^= c >>> 8;
+            hash *= prime;
+        }
+        hash ^= length;
+        hash *= prime;
+        return hash == none ? 1 : hash;
+    }
+
+    // wie Stream, für Daten am Stück
+    static long of(byte[] bytes) {
+        long hash = offsetBasis;
+        for (byte b : bytes)
+            hash = (hash ^ (b & 0xff)) * prime;
+        return hash == none ? 1 : hash;
+    }
+
+    /**
+     * FNV-1a über die geschriebenen Bytes, z.B. über die verschlüsselten Daten als Inhalts-Hash im Manifest.
+     */
+    static class Stream extends FilterOutputStream {
+        private long hash = offsetBasis;
+
+        Stream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            hash = (hash ^ (b & 0xff)) * prime;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            long h = hash;
+            for (int i = offset; i < offset + length; i++)
+                h = (h ^ (bytes[i] & 0xff)) * prime;
+            hash = h;
+        }
+
+        long value() {
+            return hash == none ? 1 : hash;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.linkesoft.secretdiary.data;
+
+import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.JsonKeysetReader;
+import com.google.crypto.tink.JsonKeysetWriter;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.StreamingAead;
+import com.google.crypto.tink.streamingaead.StreamingAeadConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Software-Schlüssel ohne Android Keystore, mit demselben Tink-Schema und Signaturverfahren wie die App.
+ * Ohne Verzeichnis nur im Speicher, sonst unverschlüsselt(!) in {@code dir} abgelegt,
+ * damit ein Testdatenbestand wieder geöffnet werden kann. Nur für Tests und Profiling.
+ * <p>
+ * Schlüsselrotation wie bei {@link AndroidKeyProvider} über Generationen, je ein Keyset pro Generation;
+ * aktuelle und vorige Generation stehen in {@code dir}/generations.
+ */
+public class JceKeyProvider implements KeyProvider {
+
+    private static final String fileEncryptionScheme = "AES256_GCM_HKDF_4KB";
+    private static final String keysetFileName = "keyset.json";
+    private static final String privateKeyFileName = "sign.pkcs8";
+    private static final String publicKeyFileName = "sign.x509";
+    private static final String generationsFileName = "generations";
+    private static final int noGeneration = -1;
+
+    private final File dir;
+    private final Map<Integer, StreamingAead> streamingAeads = new HashMap<>();
+    private boolean generationsLoaded;
+    private int generation;
+    private int previous = noGeneration;
+    private KeyPair keyPair;
+
+    public JceKeyProvider() {
+        this(null);
+    }
+
+    public JceKeyProvider(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public synchronized StreamingAead streamingAead() throws GeneralSecurityException, IOException {
+        loadGenerations();
+        return streamingAead(generation);
+    }
+
+    @Override
+    public synchronized StreamingAead previousStreamingAead() throws GeneralSecurityException, IOException {
+        loadGenerations();
+        return previous == noGeneration ? null : streamingAead(previous);
+    }
+
+    private StreamingAead streamingAead(int generation) throws GeneralSecurityException, IOException {
+        StreamingAead streamingAead = streamingAeads.get(generation);
+        if (streamingAead == null) {
+            StreamingAeadConfig.register();
+            KeysetHandle keysetHandle;
+            File file = keysetFile(generation);
+            if (file != null && file.exists()) {
+                keysetHandle = CleartextKeysetHandle.read(JsonKeysetReader.withFile(file));
+            } else {
+                keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(fileEncryptionScheme));
+                if (file != null)
+                    CleartextKeysetHandle.write(keysetHandle, JsonKeysetWriter.withFile(file));
+            }
+            streamingAead = keysetHandle.getPrimitive(StreamingAead.class);
+            streamingAeads.put(generation, streamingAead);
+        }
+        return streamingAead;
+    }
+
+    // Generation 0 unter dem bisherigen Namen
+    private File keysetFile(int generation) {
+        if (dir == null)
+            return null;
+        return new File(dir, generation == 0 ? keysetFileName : "keyset" + generation + ".json");
+    }
+
+    @Override
+    public synchronized int beginRotation() throws GeneralSecurityException, IOException {
+        loadGenerations();
+        if (previous != noGeneration)
+            return generation; // unterbrochene Rotation fortsetzen
+        streamingAead(generation + 1); // Keyset anlegen, bevor die Generation gilt
+        previous = generation;
+        generation++;
+        saveGenerations();
+        return generation;
+    }
+
+    @Override
+    public synchronized void finishRotation() throws GeneralSecurityException, IOException {
+        loadGenerations();
+        if (previous == noGeneration)
+            return;
+        int removed = previous;
+        previous = noGeneration;
+        saveGenerations();
+        streamingAeads.remove(removed);
+        File file = keysetFile(removed);
+        if (file != null)
+            file.delete();
+    }
+
+    @Override
+    public synchronized boolean isRotating() {
+        try {
+            loadGenerations();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return previous != noGeneration;
+    }
+
+    private void loadGenerations() throws IOException {
+        if (generationsLoaded)
+            return;
+        File file = dir != null ? new File(dir, generationsFileName) : null;
+        if (file != null && file.exists()) {
+            String[] generations = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            try {
+                generation = Integer.parseInt(generations[0]);
+                previous = Integer.parseInt(generations[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("invalid " + file, e);
+            }
+        }
+        generationsLoaded = true;
+    }
+
+    // synchron und per Umbenennen, bevor der erste Eintrag mit der neuen Generation geschrieben wird
+    private void saveGenerations() throws IOException {
+        if (dir == null)
+            return;
+        File file = new File(dir, generationsFileName);
+        File tmpFile = new File(dir, generationsFileName + ".tmp");
+        Files.write(tmpFile.toPath(), (generation + " " + previous).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized KeyPair keyPair() throws GeneralSecurityException, IOException {
+        if (keyPair == null) {
+            File privateKeyFile = dir != null ? new File(dir, privateKeyFileName) : null;
+            File publicKeyFile = dir != null ? new File(dir, publicKeyFileName) : null;
+            if (privateKeyFile != null && privateKeyFile.exists() && publicKeyFile.exists()) {
+                KeyFactory factory = KeyFactory.getInstance("EC");
+                keyPair = new KeyPair(
+                        factory.generatePublic(new X509EncodedKeySpec(Files.readAllBytes(publicKeyFile.toPath()))),
+                        factory.generatePrivate(new PKCS8EncodedKeySpec(Files.readAllBytes(privateKeyFile.toPath()))));
+            } else {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec("secp256r1"));
+                keyPair = generator.generateKeyPair();
+                if (privateKeyFile != null) {
+                    Files.write(privateKeyFile.toPath(), keyPair.getPrivate().getEncoded());
+                    Files.write(publicKeyFile.toPath(), keyPair.getPublic().getEncoded());
+                }
+            }
+        }
+        return keyPair;
+    }
+
+    @Override
+    public PrivateKey privateKey() throws GeneralSecurityException, IOException {
+        return keyPair().getPrivate();
+    }
+
+    @Override
+    public PublicKey publicKey() throws GeneralSecurityException, IOException {
+        return keyPair().getPublic();
+    }
+}
@@ -0,0 +1,151 @@
+package com.linkesoft.secretdiary.data;
+
+import com.google.crypto.tink.StreamingAead;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * Schlüssel für Verschlüsselung und Signatur: Android Keystore in der App ({@link AndroidKeyProvider}),
+ * Software-Schlüssel auf der JVM ({@link JceKeyProvider}), z.B. für Profiling mit großen Testdaten.
+ */
+public interface KeyProvider {
+
+    StreamingAead streamingAead() throws GeneralSecurityException, IOException;
+
+    PrivateKey privateKey() throws GeneralSecurityException, IOException;
+
+    PublicKey publicKey() throws GeneralSecurityException, IOException;
+
+    // Schlüsselrotation, siehe KeyRotation
+
+    /**
+     * Schlüssel der vorigen Generation, solange eine Rotation läuft, sonst null.
+     */
+    default StreamingAead previousStreamingAead() throws GeneralSecurityException, IOException {
+        return null;
+    }
+
+    /**
+     * Macht einen neuen Schlüssel zum aktuellen, der bisherige bleibt zum Lesen erhalten.
+     * Läuft bereits eine Rotation, bleibt es bei deren Ziel.
+     *
+     * @return neue Generation
+     */
+    int beginRotation() throws GeneralSecurityException, IOException;
+
+    /**
+     * Verwirft den vorigen Schlüssel, wenn alles mit dem neuen verschlüsselt ist.
+     */
+    default void finishRotation() throws GeneralSecurityException, IOException {
+    }
+
+    default boolean isRotating() {
+        return false;
+    }
+
+    /**
+     * Lädt Schlüssel vorab, auch während der App-Sperre, siehe {@link Startup#warmUp()}.
+     */
+    default void warmUp() throws GeneralSecurityException, IOException {
+        streamingAead();
+    }
+
+    /**
+     * true, wenn Schlüssel ohne Keystore-Zugriff oder Authentifizierung verfügbar sind;
+     * spekulative Arbeit (Vorladen) unterbleibt sonst.
+     */
+    default boolean isOpen() {
+        return true;
+    }
+
+    // Associated Data ist wie bei EncryptedFile der Dateiname
+
+    static byte[] associatedData(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Kopf und erstes Segment (AES256_GCM_HKDF_4KB) passen hinein
+    int probeLimit = 16 * 1024;
+
+    /**
+     * Entschlüsselnder Stream über {@code in}; schließt {@code in}, falls das nicht gelingt.
+     * Während einer Rotation wird erst der neue, dann der vorige Schlüssel versucht: Tink prüft den Kopf
+     * und das erste Segment beim ersten Lesen, danach wird gegebenenfalls zurückgespult.
+     */
+    default InputStream openInput(InputStream in, String associatedName) throws GeneralSecurityException, IOException {
+        try {
+            StreamingAead previous = previousStreamingAead();
+            if (previous == null)
+                return streamingAead().newDecryptingStream(in, associatedData(associatedName));
+            BufferedInputStream buffered = new BufferedInputStream(in, TextCodec.bufferSize);
+            buffered.mark(probeLimit);
+            try {
+                return probe(streamingAead().newDecryptingStream(buffered, associatedData(associatedName)));
+            } catch (IOException e) {
+                buffered.reset();
+                return probe(previous.newDecryptingStream(buffered, associatedData(associatedName)));
+            }
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    static InputStream probe(InputStream decrypting) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(decrypting, 1);
+        int b = in.read();
+        if (b != -1)
+            in.unread(b);
+        return in;
+    }
+
+    /**
+     * Wahlfreier Zugriff auf den Klartext, z.B. zum Abspielen; wie {@link #openInput} während einer Rotation
+     * mit Rückfall auf den vorigen Schlüssel. Schließt {@code file}, falls das nicht gelingt.
+     */
+    default SeekableByteChannel openChannel(FileChannel file, String associatedName) throws GeneralSecurityException, IOException {
+        try {
+            StreamingAead previous = previousStreamingAead();
+            if (previous == null)
+                return streamingAead().newSeekableDecryptingChannel(file, associatedData(associatedName));
+            try {
+                return probe(streamingAead().newSeekableDecryptingChannel(file, associatedData(associatedName)));
+            } catch (IOException e) {
+                return probe(previous.newSeekableDecryptingChannel(file, associatedData(associatedName)));
+            }
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // Tink prüft Kopf und Segment erst beim ersten Lesen
+    static SeekableByteChannel probe(SeekableByteChannel decrypting) throws IOException {
+        decrypting.read(ByteBuffer.allocate(1));
+        decrypting.position(0);
+        return decrypting;
+    }
+
+    /**
+     * Verschlüsselnder Stream nach {@code out}; schließt {@code out}, falls das nicht gelingt.
+     */
+    default OutputStream openOutput(OutputStream out, String associatedName) throws GeneralSecurityException, IOException {
+        try {
+            return streamingAead().newEncryptingStream(out, associatedData(associatedName));
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verschlüsselt alle Einträge mit einem neuen Schlüssel ({@link KeyProvider#beginRotation}) in parallelen Stapeln.
+ * Bis zum Abschluss liest {@link KeyProvider#openInput} mit dem neuen und notfalls dem vorigen Schlüssel,
+ * die App bleibt also währenddessen benutzbar.
+ * <p>
+ * Ein Journal im Datenverzeichnis hält fest, welche Einträge fertig sind: Kopfzeile "rotate &lt;Generation&gt;",
+ * danach ein Name pro Zeile, nach jedem Stapel mit fsync. Eine unterbrochene Rotation (Sperren, Absturz)
+ * setzt beim nächsten Aufruf dort fort.
+ */
+public class KeyRotation {
+
+    private static final String journalName = "rotation.journal";
+    private static final String journalHeader = "rotate ";
+    private static final int batchSize = 32;
+
+    private static volatile boolean pauseRequested;
+
+    /**
+     * Beginnt oder setzt eine Rotation fort; nach {@link #pause()} endet sie nach dem laufenden Stapel.
+     *
+     * @return Anzahl in diesem Aufruf neu verschlüsselter Einträge
+     */
+    public static synchronized int rotate() throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        KeyProvider keys = Diary.keys();
+        int generation = keys.beginRotation();
+        File journalFile = new File(Diary.dataDir(), journalName);
+        Set<String> done = readJournal(journalFile, generation);
+
+        Diary.refresh();
+        List<DiaryEntry> todo = new ArrayList<>();
+        for (DiaryEntry entry : Diary.entries()) {
+            if (!done.contains(entry.fileName()))
+                todo.add(entry);
+        }
+        Log.d("KeyRotation", "generation " + generation + ": " + done.size() + " done, " + todo.size() + " to go");
+
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int rotated = 0;
+        int failed = 0;
+        try (FileOutputStream journalStream = new FileOutputStream(journalFile, !done.isEmpty())) {
+            Writer journal = new OutputStreamWriter(journalStream, StandardCharsets.UTF_8);
+            if (done.isEmpty())
+                journal.write(journalHeader + generation + "\n");
+            for (int from = 0; from < todo.size(); from += batchSize) {
+                if (pauseRequested)
+                    throw new InterruptedIOException("key rotation paused");
+                List<Future<String>> batch = new ArrayList<>(batchSize);
+                for (DiaryEntry entry : todo.subList(from, Math.min(from + batchSize, todo.size())))
+                    batch.add(executor.submit(entry::reencrypt));
+                for (Future<String> future : batch) {
+                    try {
+                        String name = future.get();
+                        if (name != null) {
+                            journal.write(name + "\n");
+                            rotated++;
+                        }
+                    } catch (ExecutionException e) {
+                        Log.e("KeyRotation", "could not re-encrypt entry", e.getCause());
+                        failed++;
+                    }
+                }
+                journal.flush();
+                journalStream.getFD().sync();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("key rotation paused");
+        } finally {
+            executor.shutdown(); // laufende Schreibvorgänge nicht unterbrechen
+        }
+        if (failed > 0)
+            throw new IOException(failed + " entries could not be re-encrypted, previous key kept");
+
+        SearchIndex.rewrite();
+        EntryCompression.rewriteDictionaries();
+        Attachments.rewrite();
+        keys.finishRotation();
+        journalFile.delete();
+        Log.v("KeyRotation", rotated + " entries re-encrypted in " + (System.nanoTime() - start) / 1000000 + "ms");
+        return rotated;
+    }
+
+    /**
+     * Hält eine laufende Rotation nach dem aktuellen Stapel an; das Journal bleibt für die Fortsetzung.
+     */
+    public static void pause() {
+        pauseRequested = true;
+    }
+
+    static void resetPause() {
+        pauseRequested = false;
+    }
+
+    /**
+     * true, wenn eine begonnene Rotation noch nicht abgeschlossen ist.
+     */
+    public static boolean isPending() {
+        return Diary.keys().isRotating();
+    }
+
+    // fertige Namen aus dem Journal derselben Generation; ein fremdes oder kaputtes Journal wird verworfen
+    private static Set<String> readJournal(File journalFile, int generation) throws IOException {
+        Set<String> done = new HashSet<>();
+        if (!journalFile.exists())
+            return done;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String header = in.readLine();
+            if (!(journalHeader + generation).equals(header)) {
+                Log.w("KeyRotation", "discarding journal " + header);
+            } else {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.isEmpty())
+                        done.add(line);
+                }
+            }
+        }
+        if (done.isEmpty())
+            journalFile.delete();
+        return done;
+    }
+}
@@ -0,0 +1,134 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+
+/**
+ * Verschlüsselte Einträge nur im Speicher, z.B. für Profiling mit großen synthetischen Tagebüchern
+ * ohne Datenträger-Einfluss. Gleiches Format und gleiche Associated Data wie {@link FileDiaryStore}.
+ */
+public class MemoryDiaryStore implements DiaryStore {
+
+    private final KeyProvider keys;
+    private final HashMap<String, Stored> entries = new HashMap<>();
+    private long stamp = 1;
+
+    private static final class Stored {
+        final byte[] ciphertext;
+        final long lastModified;
+
+        Stored(byte[] ciphertext, long lastModified) {
+            this.ciphertext = ciphertext;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public MemoryDiaryStore(KeyProvider keys) {
+        this.keys = keys;
+    }
+
+    private synchronized Stored stored(String name) {
+        return entries.get(name);
+    }
+
+    @Override
+    public synchronized String[] list() {
+        return entries.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return stored(name) != null;
+    }
+
+    @Override
+    public long lastModified(String name) {
+        Stored stored = stored(name);
+        return stored != null ? stored.lastModified : 0;
+    }
+
+    @Override
+    public long length(String name) {
+        Stored stored = stored(name);
+        return stored != null ? stored.ciphertext.length : 0;
+    }
+
+    @Override
+    public synchronized long listingStamp() {
+        return stamp;
+    }
+
+    @Override
+    public InputStream openInput(String name) throws IOException, GeneralSecurityException {
+        Stored stored = stored(name);
+        if (stored == null)
+            throw new FileNotFoundException(name);
+        return EntryCompression.input(keys.openInput(new ByteArrayInputStream(stored.ciphertext), name));
+    }
+
+    @Override
+    public Output openOutput(String name) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Fingerprint.Stream hashed = new Fingerprint.Stream(buffer);
+        OutputStream out = EntryCompression.output(keys.openOutput(hashed, name));
+        return new Output() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+                out.close();
+                synchronized (MemoryDiaryStore.this) {
+                    entries.put(name, new Stored(buffer.toByteArray(), System.currentTimeMillis()));
+                    stamp++;
+                }
+            }
+
+            @Override
+            public long contentHash() {
+                return hashed.value();
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean rename(String from, String to) {
+        Stored stored = entries.remove(from);
+        if (stored == null)
+            return false;
+        entries.put(to, stored);
+        stamp++;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        if (entries.remove(name) == null)
+            return false;
+        stamp++;
+        return true;
+    }
+}
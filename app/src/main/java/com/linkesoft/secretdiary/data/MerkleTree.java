@@ -0,0 +1,154 @@
+package com.linkesoft.secretdiary.data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle-Baum nach RFC 6962 (Certificate Transparency) über SHA-256:
+ * Blatt = H(0x00 || Daten), Knoten = H(0x01 || links || rechts), linker Teilbaum mit der größten
+ * Zweierpotenz &lt; n Blättern. Mit dem signierten Wurzel-Hash und dem Prüfpfad eines Blatts lässt sich
+ * ein einzelner Eintrag prüfen, ohne die anderen zu kennen.
+ */
+public class MerkleTree {
+
+    static final String hashAlgorithm = "SHA-256";
+    private static final byte leafPrefix = 0;
+    private static final byte nodePrefix = 1;
+
+    private final int size;
+    private final Node root;
+    private final Node[] leaves;
+
+    private static final class Node {
+        final byte[] hash;
+        Node parent;
+        Node sibling;
+
+        Node(byte[] hash) {
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param leafHashes mit {@link #leafHash} berechnet, in Baum-Reihenfolge
+     */
+    public MerkleTree(byte[][] leafHashes) {
+        size = leafHashes.length;
+        leaves = new Node[size];
+        MessageDigest digest = digest();
+        root = size == 0 ? new Node(digest.digest()) : build(leafHashes, 0, size, digest);
+    }
+
+    private Node build(byte[][] leafHashes, int start, int count, MessageDigest digest) {
+        if (count == 1) {
+            Node leaf = new Node(leafHashes[start]);
+            leaves[start] = leaf;
+            return leaf;
+        }
+        int split = Integer.highestOneBit(count - 1); // größte Zweierpotenz < count
+        Node left = build(leafHashes, start, split, digest);
+        Node right = build(leafHashes, start + split, count - split, digest);
+        Node node = new Node(nodeHash(digest, left.hash, right.hash));
+        left.parent = node;
+        right.parent = node;
+        left.sibling = right;
+        right.sibling = left;
+        return node;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] root() {
+        return root.hash.clone();
+    }
+
+    /**
+     * Prüfpfad (Geschwister-Hashes vom Blatt zur Wurzel) für Blatt {@code index}.
+     */
+    public List<byte[]> path(int index) {
+        List<byte[]> path = new ArrayList<>();
+        for (Node node = leaves[index]; node.parent != null; node = node.parent)
+            path.add(node.sibling.hash);
+        return path;
+    }
+
+    /**
+     * Hash eines Eintrags: H(0x00 || Schlüssel yyyy-MM-dd || '\n' || Text als UTF-8).
+     */
+    public static byte[] leafHash(MessageDigest digest, String key, byte[] text, int length) {
+        digest.reset();
+        digest.update(leafPrefix);
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+        digest.update(text, 0, length);
+        return digest.digest();
+    }
+
+    private static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+        digest.reset();
+        digest.update(nodePrefix);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * Prüft, ob {@code leafHash} an Position {@code index} in einem Baum mit {@code size} Blättern
+     * und Wurzel {@code root} liegt (RFC 9162, Abschnitt 2.1.3.2).
+     */
+    public static boolean verifyInclusion(byte[] leafHash, int index, int size, List<byte[]> path, byte[] root) {
+        if (index < 0 || index >= size)
+            return false;
+        MessageDigest digest = digest();
+        long fn = index;
+        long sn = size - 1;
+        byte[] r = leafHash;
+        for (byte[] p : path) {
+            if (sn == 0)
+                return false;
+            if ((fn & 1) == 1 || fn == sn) {
+                r = nodeHash(digest, p, r);
+                if ((fn & 1) == 0) {
+                    while ((fn & 1) == 0 && fn != 0) {
+                        fn >>= 1;
+                        sn >>= 1;
+                    }
+                }
+            } else {
+                r = nodeHash(digest, r, p);
+            }
+            fn >>= 1;
+            sn >>= 1;
+        }
+        return sn == 0 && MessageDigest.isEqual(r, root);
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(hashAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,167 @@
+package com.linkesoft.secretdiary.data;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Zähler und Latenz-Histogramme der Datenschicht, z.B. um langsame Geräte zu erkennen.
+ * Erfassen ist lock- und allokationsfrei; {@link #report()} bzw. {@link #dump(File)} fassen zusammen.
+ * Werte gelten seit Prozessstart.
+ */
+public class Metrics {
+
+    public static final Histogram decrypt = new Histogram("decrypt");
+    public static final Histogram encrypt = new Histogram("encrypt");
+    public static final Histogram refresh = new Histogram("refresh");
+    public static final Histogram keystoreLoad = new Histogram("keystoreLoad");
+    public static final Histogram sign = new Histogram("sign");
+    public static final Histogram rename = new Histogram("rename");
+
+    public static final Counter bytesRead = new Counter("bytesRead");
+    public static final Counter bytesWritten = new Counter("bytesWritten");
+
+    private static final Histogram[] histograms = {decrypt, encrypt, refresh, keystoreLoad, sign, rename};
+    private static final Counter[] counters = {bytesRead, bytesWritten};
+
+    public static final class Counter {
+        private final String name;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Latenzen in µs, logarithmisch in Zweierpotenzen mit je 8 linearen Unterteilungen (wie HdrHistogram
+     * mit einer signifikanten Stelle): relativer Fehler unter 12,5 %, feste Größe von 488 Zählern.
+     */
+    public static final class Histogram {
+        private static final int subBits = 3;
+        private static final int subBuckets = 1 << subBits;
+        private static final int buckets = (63 - subBits + 1) * subBuckets; // long ist höchstens 2^63 - 1
+
+        private final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(buckets);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Erfasst die Zeit seit {@code startNanos} (System.nanoTime()).
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public void record(long micros) {
+            if (micros < 0)
+                micros = 0;
+            counts.incrementAndGet(index(micros));
+            count.increment();
+            totalMicros.add(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros))
+                ; // anderer Thread war schneller, erneut vergleichen
+        }
+
+        static int index(long micros) {
+            if (micros < subBuckets)
+                return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - subBits)) & (subBuckets - 1);
+            return (exponent - subBits + 1) * subBuckets + sub;
+        }
+
+        // kleinster Wert im Bucket
+        static long lowerBound(int index) {
+            if (index < subBuckets)
+                return index;
+            int exponent = index / subBuckets + subBits - 1;
+            return (long) (subBuckets + index % subBuckets) << (exponent - subBits);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long maxMicros() {
+            return maxMicros.get();
+        }
+
+        /**
+         * Obere Grenze des Buckets mit dem Anteil {@code quantile} (0..1) der Werte, in µs.
+         */
+        public long percentileMicros(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[buckets];
+            for (int i = 0; i < buckets; i++)
+                total += snapshot[i] = counts.get(i);
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < buckets; i++) {
+                seen += snapshot[i];
+                if (seen >= rank)
+                    return i + 1 < buckets ? Math.min(lowerBound(i + 1) - 1, maxMicros()) : maxMicros();
+            }
+            return maxMicros();
+        }
+
+        void appendTo(StringBuilder out) {
+            long n = count();
+            out.append(String.format(Locale.ROOT, "%-13s n=%d mean=%dµs p50=%dµs p90=%dµs p99=%dµs max=%dµs%n",
+                    name, n, n == 0 ? 0 : totalMicros.sum() / n,
+                    percentileMicros(0.5), percentileMicros(0.9), percentileMicros(0.99), maxMicros()));
+        }
+    }
+
+    /**
+     * Zusammenfassung als Text, z.B. für eine Debug-Anzeige.
+     */
+    public static String report() {
+        StringBuilder out = new StringBuilder();
+        out.append("SDK ").append(Build.VERSION.SDK_INT).append(", ")
+                .append(Runtime.getRuntime().availableProcessors()).append(" cores\n");
+        for (Histogram histogram : histograms)
+            histogram.appendTo(out);
+        for (Counter counter : counters)
+            out.append(String.format(Locale.ROOT, "%-13s %d%n", counter.name, counter.value()));
+        out.append(String.format(Locale.ROOT, "%-13s hits=%d misses=%d evictions=%d bytes=%d%n", "textCache",
+                TextCache.hits(), TextCache.misses(), TextCache.evictions(), TextCache.bytes()));
+        return out.toString();
+    }
+
+    /**
+     * Schreibt {@link #report()} nach {@code file}, z.B. zum Teilen.
+     */
+    public static File dump(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(report());
+        }
+        return file;
+    }
+}
@@ -0,0 +1,33 @@
+package com.linkesoft.secretdiary.data;
+
+/**
+ * Stimmung als byte-Code, für kompakte Speicherung und Statistik.
+ */
+public class Mood {
+
+    public static final byte happy = 0;
+    public static final byte neutral = 1;
+    public static final byte angry = 2;
+    public static final int count = 3;
+
+    private static final String[] emojis = {"😀", "😐", "😠"};
+
+    public static String emoji(byte code) {
+        return emojis[code];
+    }
+
+    /**
+     * unbekannte Emojis zählen wie 😀 (Vorgabe für neue Einträge)
+     */
+    public static byte code(String emoji) {
+        for (byte code = 0; code < count; code++) {
+            if (emojis[code].equals(emoji))
+                return code;
+        }
+        return happy;
+    }
+
+    public static byte next(byte code) {
+        return (byte) ((code + 1) % count);
+    }
+}
@@ -0,0 +1,215 @@
+package com.linkesoft.secretdiary.data;
+
+import java.util.Arrays;
+
+/**
+ * Stimmungs-Histogramme pro Tag, Woche (ab Montag), Monat und Jahr in primitiven Zählern,
+ * von {@link EntryMetadataStore} bei jeder Änderung in O(1) mitgeführt.
+ * Zeiträume werden aus möglichst großen Kalender-Einheiten zusammengesetzt (Jahre, Monate, Wochen, Tage),
+ * ohne die Einträge selbst anzufassen.
+ * Nicht thread-sicher, Zugriff wie bei {@link EntryMetadataStore} nur unter dem Diary-Lock.
+ */
+public class MoodStatistics {
+
+    public static final byte anyMood = -1;
+
+    private final Histogram days = new Histogram();
+    private final Histogram weeks = new Histogram();
+    private final Histogram months = new Histogram();
+    private final Histogram years = new Histogram();
+    private final int[] totals = new int[Mood.count];
+
+    /**
+     * Zähler pro Einheit und Stimmung, dicht ab {@code base}; wächst in beide Richtungen.
+     */
+    private static final class Histogram {
+        private int base;
+        private int[] counts = new int[0];
+
+        void add(int unit, byte mood, int delta) {
+            ensureRange(unit);
+            counts[(unit - base) * Mood.count + mood] += delta;
+        }
+
+        int count(int unit, byte mood) {
+            int index = (unit - base) * Mood.count;
+            if (unit < base || index >= counts.length)
+                return 0;
+            if (mood != anyMood)
+                return counts[index + mood];
+            int sum = 0;
+            for (int m = 0; m < Mood.count; m++)
+                sum += counts[index + m];
+            return sum;
+        }
+
+        private void ensureRange(int unit) {
+            int units = counts.length / Mood.count;
+            if (units == 0) {
+                base = unit;
+                counts = new int[16 * Mood.count];
+            } else if (unit < base) {
+                int grow = Math.max(base - unit, units / 2);
+                int[] grown = new int[(units + grow) * Mood.count];
+                System.arraycopy(counts, 0, grown, grow * Mood.count, counts.length);
+                counts = grown;
+                base -= grow;
+            } else if (unit - base >= units) {
+                counts = Arrays.copyOf(counts, Math.max(unit - base + 1, units + units / 2) * Mood.count);
+            }
+        }
+
+        void clear() {
+            counts = new int[0];
+        }
+    }
+
+    // Einheiten als fortlaufende Nummern
+
+    private static int week(int epochDay) {
+        return Math.floorDiv(epochDay + 3, 7); // Woche ab Montag, 1970-01-01 war ein Donnerstag
+    }
+
+    private static int month(int yyyymmdd) {
+        return yyyymmdd / 10000 * 12 + yyyymmdd / 100 % 100 - 1;
+    }
+
+    void add(int epochDay, byte mood) {
+        update(epochDay, mood, 1);
+    }
+
+    void remove(int epochDay, byte mood) {
+        update(epochDay, mood, -1);
+    }
+
+    void change(int epochDay, byte from, byte to) {
+        if (from == to)
+            return;
+        update(epochDay, from, -1);
+        update(epochDay, to, 1);
+    }
+
+    private void update(int epochDay, byte mood, int delta) {
+        int yyyymmdd = EpochDay.yyyymmdd(epochDay);
+        days.add(epochDay, mood, delta);
+        weeks.add(week(epochDay), mood, delta);
+        months.add(month(yyyymmdd), mood, delta);
+        years.add(yyyymmdd / 10000, mood, delta);
+        totals[mood] += delta;
+    }
+
+    void clear() {
+        days.clear();
+        weeks.clear();
+        months.clear();
+        years.clear();
+        Arrays.fill(totals, 0);
+    }
+
+    /**
+     * Anzahl aller Einträge mit {@code mood} ({@link #anyMood} für alle).
+     */
+    public int total(byte mood) {
+        if (mood != anyMood)
+            return totals[mood];
+        int sum = 0;
+        for (int count : totals)
+            sum += count;
+        return sum;
+    }
+
+    /**
+     * Stimmung am Tag oder {@link #anyMood}, wenn es keinen Eintrag gibt.
+     */
+    public byte moodOn(int epochDay) {
+        for (byte mood = 0; mood < Mood.count; mood++) {
+            if (days.count(epochDay, mood) > 0)
+                return mood;
+        }
+        return anyMood;
+    }
+
+    public int countInWeek(int epochDay, byte mood) {
+        return weeks.count(week(epochDay), mood);
+    }
+
+    public int countInMonth(int epochDay, byte mood) {
+        return months.count(month(EpochDay.yyyymmdd(epochDay)), mood);
+    }
+
+    public int countInYear(int year, byte mood) {
+        return years.count(year, mood);
+    }
+
+    /**
+     * Einträge mit {@code mood} von {@code fromDay} bis einschließlich {@code toDay}.
+     */
+    public int count(byte mood, int fromDay, int toDay) {
+        int count = 0;
+        int day = fromDay;
+        while (day <= toDay) {
+            int yyyymmdd = EpochDay.yyyymmdd(day);
+            int year = yyyymmdd / 10000;
+            int month = yyyymmdd / 100 % 100;
+            if (yyyymmdd % 10000 == 101) {
+                int nextYear = EpochDay.of(year + 1, 1, 1);
+                if (nextYear - 1 <= toDay) {
+                    count += years.count(year, mood);
+                    day = nextYear;
+                    continue;
+                }
+            }
+            if (yyyymmdd % 100 == 1) {
+                int nextMonth = month == 12 ? EpochDay.of(year + 1, 1, 1) : EpochDay.of(year, month + 1, 1);
+                if (nextMonth - 1 <= toDay) {
+                    count += months.count(month(yyyymmdd), mood);
+                    day = nextMonth;
+                    continue;
+                }
+            }
+            if (EpochDay.dayOfWeek(day) == 0 && day + 6 <= toDay) {
+                count += weeks.count(week(day), mood);
+                day += 7;
+                continue;
+            }
+            count += days.count(day, mood);
+            day++;
+        }
+        return count;
+    }
+
+    /**
+     * Anteil von {@code mood} an allen Einträgen im Zeitraum, 0 ohne Einträge.
+     */
+    public float ratio(byte mood, int fromDay, int toDay) {
+        int all = count(anyMood, fromDay, toDay);
+        return all == 0 ? 0 : (float) count(mood, fromDay, toDay) / all;
+    }
+
+    /**
+     * Aufeinanderfolgende Tage mit Eintrag (mit {@code mood}), die an {@code lastDay} enden.
+     */
+    public int streak(byte mood, int lastDay) {
+        int streak = 0;
+        while (days.count(lastDay - streak, mood) > 0)
+            streak++;
+        return streak;
+    }
+
+    /**
+     * Längste Folge aufeinanderfolgender Tage mit Eintrag (mit {@code mood}) im Zeitraum.
+     */
+    public int longestStreak(byte mood, int fromDay, int toDay) {
+        int longest = 0;
+        int current = 0;
+        for (int day = fromDay; day <= toDay; day++) {
+            if (days.count(day, mood) > 0) {
+                current++;
+                longest = Math.max(longest, current);
+            } else {
+                current = 0;
+            }
+        }
+        return longest;
+    }
+}
@@ -0,0 +1,647 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Invertierter Volltext-Index (Begriff -> Tage mit Wortpositionen) in einer eigenen verschlüsselten Datei.
+ * Wird bei jedem Speichern eines Eintrags nur um die geänderten Begriffe aktualisiert und beantwortet
+ * Präfix- und Phrasensuchen ohne einen Eintrag zu entschlüsseln.
+ * Postinglisten liegen auch im Speicher kompakt vor: Tage und Positionen delta- und varint-kodiert.
+ * Enthält Klartext-Begriffe und wird deshalb wie {@link TextCache} beim Sperren verworfen.
+ */
+public class SearchIndex {
+
+    private static final int magic = 0x53444958; // SDIX
+    private static final int formatVersion = 1;
+    private static final String fileName = "search.idx";
+    private static final int maxTermLength = 64;
+    // spätestens nach so vielen Änderungen bzw. so langer Zeit speichern, nicht erst beim Sperren
+    private static final int saveEveryUpdates = 64;
+    private static final long saveEveryNanos = 60L * 1000 * 1000 * 1000;
+
+    private static SearchIndex instance;
+
+    // Begriff -> Postingliste
+    private final TreeMap<String, byte[]> postings = new TreeMap<>();
+    // Tag -> Begriffe des Eintrags, um beim Ändern das Delta zu bestimmen
+    private final HashMap<Integer, String[]> termsByDay = new HashMap<>();
+    // Tag -> Änderungszeit der Eintragsdatei beim Indizieren
+    private final HashMap<Integer, Long> indexedStamps = new HashMap<>();
+    private boolean dirty;
+    // seit dem letzten Speichern, siehe saveIfDue
+    private int unsavedUpdates;
+    private long savedAt = System.nanoTime();
+
+    /**
+     * Lädt den Index bei Bedarf (einmal pro Sitzung) und gleicht ihn im Hintergrund mit den Einträgen ab,
+     * auf dem Thread für lange Aufträge, damit Speichervorgänge nicht warten.
+     */
+    static synchronized SearchIndex get() {
+        if (instance == null) {
+            long start = System.nanoTime();
+            SearchIndex index = new SearchIndex();
+            instance = index;
+            index.load();
+            Log.v("SearchIndex", index.postings.size() + " terms loaded in " + (System.nanoTime() - start) / 1000000 + "ms");
+            DiaryIO.submitLong(() -> {
+                index.reconcile(Diary.entries());
+                return null;
+            }, null);
+        }
+        return instance;
+    }
+
+    private static synchronized SearchIndex instanceIfLoaded() {
+        return instance;
+    }
+
+    /**
+     * Speichert Änderungen und verwirft den Index im Speicher, z.B. beim Sperren. Ist die Sitzung bereits
+     * geschlossen, gehen ungespeicherte Änderungen verloren; die betroffenen Einträge werden beim nächsten
+     * Laden anhand ihres Stands neu indiziert.
+     */
+    public static synchronized void close() {
+        if (instance != null) {
+            if (Diary.keys().isOpen())
+                instance.saveIfDirty();
+            instance = null;
+        }
+    }
+
+    // Aufruf auf dem Schreib-Thread nach dem Speichern eines Eintrags
+    static void entryChanged(DiaryEntry entry, CharSequence text, long stamp) {
+        SearchIndex index = get();
+        index.update(entry.epochDay(), text, stamp);
+        index.saveIfDue();
+    }
+
+    // nach dem abschnittsweisen Speichern (EntryWindow): der ganze Text liegt nicht im Speicher, er wird auf dem
+    // Thread für lange Aufträge aus dem Speicher gelesen; bei mehreren Aufträgen indiziert nur der erste
+    static void entryChanged(DiaryEntry entry) {
+        SearchIndex index = get();
+        DiaryIO.submitLong(() -> {
+            index.reindex(entry);
+            return null;
+        }, null);
+    }
+
+    static void entryDeleted(int epochDay) {
+        SearchIndex index = get();
+        index.remove(epochDay);
+        index.saveIfDue();
+    }
+
+    /**
+     * Tage aller Einträge, die alle Begriffe enthalten, neuester zuerst. Der letzte Begriff gilt als Präfix,
+     * solange die Anfrage nicht mit einem Leerzeichen endet. In Anführungszeichen: Phrase.
+     */
+    public static int[] search(String query) {
+        return get().find(query);
+    }
+
+    // Inhalt unverändert neu geschrieben (Schlüsselrotation): nur den Stand anpassen statt neu zu indizieren
+    static void entryRewritten(DiaryEntry entry, long oldStamp, long stamp) {
+        get().restamp(entry.epochDay(), oldStamp, stamp);
+    }
+
+    /**
+     * Schreibt den Index mit dem aktuellen Schlüssel neu, z.B. vor dem Abschluss einer Schlüsselrotation.
+     */
+    static void rewrite() {
+        SearchIndex index = get();
+        synchronized (index) {
+            index.dirty = true;
+        }
+        index.saveIfDirty();
+    }
+
+    // Indizieren
+
+    synchronized void restamp(int epochDay, long oldStamp, long stamp) {
+        Long indexed = indexedStamps.get(epochDay);
+        if (indexed != null && indexed == oldStamp) {
+            indexedStamps.put(epochDay, stamp);
+            dirty = true;
+        }
+    }
+
+    // beim Abgleich: nicht übernehmen, wenn der Schreib-Thread den Eintrag inzwischen neuer indiziert hat
+    private synchronized boolean updateUnlessChanged(int epochDay, Long indexed, CharSequence text, long stamp) {
+        Long current = indexedStamps.get(epochDay);
+        if (current == null ? indexed != null : !current.equals(indexed))
+            return false;
+        update(epochDay, text, stamp);
+        return true;
+    }
+
+    synchronized void update(int epochDay, CharSequence text, long stamp) {
+        Map<String, Positions> terms = tokenize(text);
+        String[] oldTerms = termsByDay.get(epochDay);
+        if (oldTerms != null) {
+            for (String term : oldTerms) {
+                if (!terms.containsKey(term))
+                    setPositions(term, epochDay, null);
+            }
+        }
+        for (Map.Entry<String, Positions> term : terms.entrySet()) {
+            setPositions(term.getKey(), epochDay, term.getValue().toArray());
+        }
+        if (terms.isEmpty())
+            termsByDay.remove(epochDay);
+        else
+            termsByDay.put(epochDay, terms.keySet().toArray(new String[0]));
+        indexedStamps.put(epochDay, stamp);
+        dirty = true;
+        unsavedUpdates++;
+    }
+
+    synchronized void remove(int epochDay) {
+        String[] oldTerms = termsByDay.remove(epochDay);
+        if (oldTerms != null) {
+            for (String term : oldTerms)
+                setPositions(term, epochDay, null);
+        }
+        indexedStamps.remove(epochDay);
+        dirty = true;
+        unsavedUpdates++;
+    }
+
+    // ersetzt die Positionen eines Tages in der Postingliste des Begriffs (null = entfernen)
+    private void setPositions(String term, int epochDay, int[] positions) {
+        byte[] encoded = postings.get(term);
+        Posting posting = encoded != null ? Posting.decode(encoded) : new Posting();
+        int index = Arrays.binarySearch(posting.days, 0, posting.size, epochDay);
+        if (index >= 0) {
+            if (positions == null)
+                posting.remove(index);
+            else if (Arrays.equals(posting.positions[index], positions))
+                return; // unverändert
+            else
+                posting.positions[index] = positions;
+        } else if (positions != null) {
+            posting.insert(-index - 1, epochDay, positions);
+        } else {
+            return;
+        }
+        if (posting.size == 0)
+            postings.remove(term);
+        else
+            postings.put(term, posting.encode());
+    }
+
+    /**
+     * Indiziert Einträge neu, deren Datei sich seit dem Indizieren geändert hat (z.B. Absturz vor dem
+     * Speichern des Index), und entfernt gelöschte.
+     */
+    void reconcile(Collection<DiaryEntry> entries) {
+        Set<Integer> present = new HashSet<>();
+        int reindexed = 0;
+        DiaryStore store = Diary.store();
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[TextCodec.bufferSize];
+        try {
+            for (DiaryEntry entry : entries) {
+                if (instanceIfLoaded() != this)
+                    return; // inzwischen gesperrt
+                long stamp = store.lastModified(entry.fileName());
+                if (stamp == 0)
+                    continue; // noch nicht gespeichert
+                present.add(entry.epochDay());
+                if (reindexIfChanged(entry, stamp, text, buffer))
+                    reindexed++;
+                saveIfDue();
+            }
+        } catch (GeneralSecurityException e) {
+            Log.w("SearchIndex", "reconcile interrupted", e);
+            return;
+        } finally {
+            wipe(text);
+            Arrays.fill(buffer, '\0');
+        }
+        synchronized (this) {
+            for (Integer day : new ArrayList<>(indexedStamps.keySet())) {
+                if (!present.contains(day))
+                    remove(day);
+            }
+        }
+        saveIfDirty();
+        Log.v("SearchIndex", "reconciled, " + reindexed + " entries reindexed");
+    }
+
+    private void reindex(DiaryEntry entry) {
+        if (instanceIfLoaded() != this)
+            return; // inzwischen gesperrt
+        long stamp = Diary.store().lastModified(entry.fileName());
+        if (stamp == 0)
+            return;
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[TextCodec.bufferSize];
+        try {
+            reindexIfChanged(entry, stamp, text, buffer);
+            saveIfDue();
+        } catch (GeneralSecurityException e) {
+            Log.w("SearchIndex", "reindex interrupted", e);
+        } finally {
+            wipe(text);
+            Arrays.fill(buffer, '\0');
+        }
+    }
+
+    // direkt aus dem Speicher statt über den TextCache, der sonst mit allen Einträgen gefüllt würde
+    private boolean reindexIfChanged(DiaryEntry entry, long stamp, StringBuilder text, char[] buffer) throws GeneralSecurityException {
+        Long indexed;
+        synchronized (this) {
+            indexed = indexedStamps.get(entry.epochDay());
+        }
+        if (indexed != null && indexed == stamp)
+            return false;
+        try {
+            try (Reader in = entry.openReader()) {
+                int nRead;
+                while ((nRead = in.read(buffer)) != -1)
+                    text.append(buffer, 0, nRead);
+            }
+            return updateUnlessChanged(entry.epochDay(), indexed, text, stamp);
+        } catch (IOException e) {
+            Log.e("SearchIndex", "could not read " + entry.fileName(), e);
+            return false;
+        } finally {
+            wipe(text);
+        }
+    }
+
+    private static void wipe(StringBuilder text) {
+        for (int i = 0; i < text.length(); i++)
+            text.setCharAt(i, '\0');
+        text.setLength(0);
+    }
+
+    // Suche
+
+    synchronized int[] find(String query) {
+        String trimmed = query.trim();
+        boolean phrase = trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"");
+        List<String> terms = queryTerms(trimmed, phrase);
+        if (terms.isEmpty())
+            return new int[0];
+        boolean lastIsPrefix = !phrase && !query.isEmpty() && Character.isLetterOrDigit(query.charAt(query.length() - 1));
+
+        int[] days = null;
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            int[] termDays = (lastIsPrefix && i == terms.size() - 1) ? prefixDays(term) : exactDays(term);
+            days = days == null ? termDays : intersect(days, termDays);
+            if (days.length == 0)
+                return days;
+        }
+        if (phrase && terms.size() > 1)
+            days = phraseDays(terms, days);
+        // neuester zuerst
+        for (int i = 0, j = days.length - 1; i < j; i++, j--) {
+            int day = days[i];
+            days[i] = days[j];
+            days[j] = day;
+        }
+        return days;
+    }
+
+    private int[] exactDays(String term) {
+        byte[] encoded = postings.get(term);
+        if (encoded == null)
+            return new int[0];
+        Posting posting = Posting.decode(encoded);
+        return Arrays.copyOf(posting.days, posting.size);
+    }
+
+    private int[] prefixDays(String prefix) {
+        SortedMap<String, byte[]> matches = postings.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (matches.size() == 1)
+            return exactDays(matches.firstKey());
+        Set<Integer> union = new HashSet<>();
+        for (byte[] encoded : matches.values()) {
+            Posting posting = Posting.decode(encoded);
+            for (int i = 0; i < posting.size; i++)
+                union.add(posting.days[i]);
+        }
+        int[] days = new int[union.size()];
+        int i = 0;
+        for (int day : union)
+            days[i++] = day;
+        Arrays.sort(days);
+        return days;
+    }
+
+    // Tage, an denen die Begriffe direkt aufeinander folgen
+    private int[] phraseDays(List<String> terms, int[] candidates) {
+        Posting[] termPostings = new Posting[terms.size()];
+        for (int t = 0; t < terms.size(); t++)
+            termPostings[t] = Posting.decode(postings.get(terms.get(t)));
+        int[] result = new int[candidates.length];
+        int count = 0;
+        for (int day : candidates) {
+            int[][] positions = new int[terms.size()][];
+            for (int t = 0; t < terms.size(); t++)
+                positions[t] = termPostings[t].positionsOf(day);
+            if (containsPhrase(positions))
+                result[count++] = day;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static boolean containsPhrase(int[][] positions) {
+        for (int start : positions[0]) {
+            boolean match = true;
+            for (int t = 1; t < positions.length && match; t++)
+                match = Arrays.binarySearch(positions[t], start + t) >= 0;
+            if (match)
+                return true;
+        }
+        return false;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // Phrasen behalten Reihenfolge und Wiederholungen, sonst genügt jeder Begriff einmal; das letzte Wort der
+    // Anfrage steht in jedem Fall am Ende, da es als Präfix gelten kann (bei "fo bar fo" ist das "fo", nicht "bar")
+    private static List<String> queryTerms(String query, boolean phrase) {
+        Map<String, Positions> terms = tokenize(query);
+        String[] ordered = new String[0];
+        for (Map.Entry<String, Positions> term : terms.entrySet()) {
+            for (int position : term.getValue().toArray()) {
+                if (position >= ordered.length)
+                    ordered = Arrays.copyOf(ordered, position + 1);
+                ordered[position] = term.getKey();
+            }
+        }
+        if (phrase || ordered.length == 0)
+            return Arrays.asList(ordered);
+        List<String> unique = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(ordered).subList(0, ordered.length - 1)));
+        unique.add(ordered[ordered.length - 1]);
+        return unique;
+    }
+
+    // Wörter: Folgen von Buchstaben/Ziffern, klein geschrieben; Positionen = laufende Wortnummer
+    static Map<String, Positions> tokenize(CharSequence text) {
+        Map<String, Positions> terms = new LinkedHashMap<>();
+        StringBuilder term = new StringBuilder(maxTermLength);
+        int position = 0;
+        int length = text.length();
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < maxTermLength)
+                    term.append(Character.toLowerCase(c));
+            } else if (term.length() > 0) {
+                String key = term.toString();
+                Positions positions = terms.get(key);
+                if (positions == null) {
+                    positions = new Positions();
+                    terms.put(key, positions);
+                }
+                positions.add(position++);
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    static final class Positions {
+        private int[] values = new int[2];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Dekodierte Postingliste. Kodierung: Tag (erster zigzag, danach Differenz), Anzahl Positionen,
+     * Positionen als Differenzen, alles als varint.
+     */
+    static final class Posting {
+        int[] days = new int[4];
+        int[][] positions = new int[4][];
+        int size;
+
+        static Posting decode(byte[] encoded) {
+            Posting posting = new Posting();
+            int[] offset = {0};
+            int day = 0;
+            while (offset[0] < encoded.length) {
+                int value = readVarint(encoded, offset);
+                day = posting.size == 0 ? (value >>> 1) ^ -(value & 1) : day + value;
+                int count = readVarint(encoded, offset);
+                int[] dayPositions = new int[count];
+                int position = 0;
+                for (int i = 0; i < count; i++) {
+                    position += readVarint(encoded, offset);
+                    dayPositions[i] = position;
+                }
+                posting.insert(posting.size, day, dayPositions);
+            }
+            return posting;
+        }
+
+        byte[] encode() {
+            VarintBuffer out = new VarintBuffer();
+            for (int i = 0; i < size; i++) {
+                out.write(i == 0 ? (days[0] << 1) ^ (days[0] >> 31) : days[i] - days[i - 1]);
+                int[] dayPositions = positions[i];
+                out.write(dayPositions.length);
+                int previous = 0;
+                for (int position : dayPositions) {
+                    out.write(position - previous);
+                    previous = position;
+                }
+            }
+            return out.toByteArray();
+        }
+
+        void insert(int index, int day, int[] dayPositions) {
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            System.arraycopy(days, index, days, index + 1, size - index);
+            System.arraycopy(positions, index, positions, index + 1, size - index);
+            days[index] = day;
+            positions[index] = dayPositions;
+            size++;
+        }
+
+        void remove(int index) {
+            System.arraycopy(days, index + 1, days, index, size - index - 1);
+            System.arraycopy(positions, index + 1, positions, index, size - index - 1);
+            size--;
+            positions[size] = null;
+        }
+
+        int[] positionsOf(int day) {
+            int index = Arrays.binarySearch(days, 0, size, day);
+            return index >= 0 ? positions[index] : new int[0];
+        }
+    }
+
+    static int readVarint(byte[] bytes, int[] offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[offset[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static final class VarintBuffer {
+        private byte[] bytes = new byte[32];
+        private int size;
+
+        void write(int value) {
+            if (size + 5 > bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((value & ~0x7f) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    // verschlüsselte Datei
+
+    private static File file() {
+        return new File(Diary.dataDir(), fileName);
+    }
+
+    private void load() {
+        File file = file();
+        if (!file.exists())
+            return; // wird beim Abgleich aufgebaut
+        try (InputStream inputStream = Diary.keys().openInput(new FileInputStream(file), fileName)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream, TextCodec.bufferSize));
+            if (in.readInt() != magic || in.readInt() != formatVersion) {
+                Log.w("SearchIndex", "unknown index format, rebuilding");
+                return;
+            }
+            int stampCount = in.readInt();
+            for (int i = 0; i < stampCount; i++)
+                indexedStamps.put(in.readInt(), in.readLong());
+            int termCount = in.readInt();
+            Map<Integer, List<String>> terms = new HashMap<>();
+            for (int i = 0; i < termCount; i++) {
+                String term = in.readUTF();
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                postings.put(term, encoded);
+                Posting posting = Posting.decode(encoded);
+                for (int d = 0; d < posting.size; d++) {
+                    List<String> dayTerms = terms.get(posting.days[d]);
+                    if (dayTerms == null) {
+                        dayTerms = new ArrayList<>();
+                        terms.put(posting.days[d], dayTerms);
+                    }
+                    dayTerms.add(term);
+                }
+            }
+            for (Map.Entry<Integer, List<String>> dayTerms : terms.entrySet())
+                termsByDay.put(dayTerms.getKey(), dayTerms.getValue().toArray(new String[0]));
+        } catch (Exception e) {
+            Log.e("SearchIndex", "could not load index, rebuilding", e);
+            postings.clear();
+            termsByDay.clear();
+            indexedStamps.clear();
+        }
+    }
+
+    synchronized void saveIfDue() {
+        if (unsavedUpdates >= saveEveryUpdates || dirty && System.nanoTime() - savedAt >= saveEveryNanos)
+            saveIfDirty();
+    }
+
+    synchronized void saveIfDirty() {
+        if (!dirty)
+            return;
+        File file = file();
+        File tmpFile = new File(file.getPath() + FileDiaryStore.tmpSuffix);
+        try {
+            try (OutputStream outputStream = Diary.keys().openOutput(FileDiaryStore.syncingOutput(tmpFile), fileName)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, TextCodec.bufferSize));
+                out.writeInt(magic);
+                out.writeInt(formatVersion);
+                out.writeInt(indexedStamps.size());
+                for (Map.Entry<Integer, Long> stamp : indexedStamps.entrySet()) {
+                    out.writeInt(stamp.getKey());
+                    out.writeLong(stamp.getValue());
+                }
+                out.writeInt(postings.size());
+                for (Iterator<Map.Entry<String, byte[]>> it = postings.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, byte[]> posting = it.next();
+                    out.writeUTF(posting.getKey());
+                    out.writeInt(posting.getValue().length);
+                    out.write(posting.getValue());
+                }
+                out.flush();
+            }
+            if (tmpFile.renameTo(file)) {
+                dirty = false;
+                unsavedUpdates = 0;
+                savedAt = System.nanoTime();
+            }
+        } catch (Exception e) {
+            Log.e("SearchIndex", "could not save index", e);
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,853 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Alle Einträge als Datensätze in wenigen, nur angehängten Segmentdateien statt einer Datei pro Eintrag.
+ * <p>
+ * Datensatz: magic, Typ (PUT/DELETE/RENAME), Zeit, Name [, neuer Name | Länge + verschlüsselte Nutzdaten], CRC32.
+ * Die Nutzdaten sind mit dem Tag (yyyy-MM-dd) als Associated Data verschlüsselt, ein Umbenennen
+ * (Stimmung) ist daher nur ein kleiner RENAME-Datensatz und die Kompaktierung kopiert Nutzdaten unverändert.
+ * <p>
+ * Ein Offset-Index (Name -> Segment/Position) liegt im Speicher und wird regelmäßig als Checkpoint
+ * gesichert; beim Öffnen wird ab dem Checkpoint weitergelesen und ein abgebrochener letzter Datensatz abgeschnitten.
+ * Schreiben ist exklusiv: zwischen {@link #openOutput} und commit/close hält der schreibende Thread die Sperre.
+ */
+public class SegmentDiaryStore implements DiaryStore {
+
+    private static final int recordMagic = 0x53454752; // SEGR
+    private static final int checkpointMagic = 0x53454743; // SEGC
+    private static final int checkpointVersion = 1;
+    private static final byte typePut = 1;
+    private static final byte typeDelete = 2;
+    private static final byte typeRename = 3;
+    private static final String segmentSuffix = ".seg";
+    private static final String checkpointName = "checkpoint";
+    private static final long maxSegmentSize = 8L << 20;
+    private static final int recordsPerCheckpoint = 64;
+    // Kompaktieren, wenn mehr als die Hälfte eines Segments und insgesamt genug Platz frei würde
+    private static final long minGarbageBytes = 256 * 1024;
+
+    private final File dir;
+    private final KeyProvider keys;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // geschützt durch index-Monitor
+    private final HashMap<String, Location> index = new HashMap<>();
+    private final HashMap<Integer, Long> liveBytes = new HashMap<>();
+    private long stamp = 1;
+
+    // geschützt durch writeLock
+    private int activeSegment;
+    private RandomAccessFile active;
+    private long activeEnd;
+    private int recordsSinceCheckpoint;
+
+    static final class Location {
+        final int segment;
+        final long recordOffset;
+        final long recordLength;
+        final long payloadOffset;
+        final long payloadLength;
+        final long timestamp;
+
+        Location(int segment, long recordOffset, long recordLength, long payloadOffset, long payloadLength, long timestamp) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public SegmentDiaryStore(File dir, KeyProvider keys) throws IOException {
+        this.dir = dir;
+        this.keys = keys;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        recover();
+    }
+
+    // Lesen
+
+    @Override
+    public String[] list() {
+        synchronized (index) {
+            return index.keySet().toArray(new String[0]);
+        }
+    }
+
+    private Location location(String name) {
+        synchronized (index) {
+            return index.get(name);
+        }
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return location(name) != null;
+    }
+
+    @Override
+    public long lastModified(String name) {
+        Location location = location(name);
+        return location != null ? location.timestamp : 0;
+    }
+
+    @Override
+    public long length(String name) {
+        Location location = location(name);
+        return location != null ? location.payloadLength : 0;
+    }
+
+    @Override
+    public long listingStamp() {
+        synchronized (index) {
+            return stamp;
+        }
+    }
+
+    @Override
+    public InputStream openInput(String name) throws IOException, GeneralSecurityException {
+        return EntryCompression.input(keys.openInput(openPayload(name), DiaryStore.dayKey(name)));
+    }
+
+    // verschlüsselte Nutzdaten eines Eintrags
+    InputStream openPayload(String name) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Location location = location(name);
+            if (location == null)
+                throw new FileNotFoundException(name);
+            try {
+                FileInputStream in = new FileInputStream(segmentFile(location.segment));
+                in.getChannel().position(location.payloadOffset);
+                return new RegionInputStream(in, location.payloadLength);
+            } catch (FileNotFoundException e) {
+                if (attempt > 0)
+                    throw e;
+                // Segment wurde gerade kompaktiert, neue Lage nachschlagen
+            }
+        }
+    }
+
+    // Schreiben
+
+    @Override
+    public Output openOutput(String name) throws IOException, GeneralSecurityException {
+        writeLock.lock();
+        try {
+            PutWriter writer = new PutWriter(name, System.currentTimeMillis());
+            OutputStream encrypting = EntryCompression.output(
+                    keys.streamingAead().newEncryptingStream(writer.payload, KeyProvider.associatedData(DiaryStore.dayKey(name))));
+            return new Output() {
+                private boolean done;
+
+                @Override
+                public void write(int b) throws IOException {
+                    encrypting.write(b);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    encrypting.write(bytes, offset, length);
+                }
+
+                @Override
+                public void commit() throws IOException {
+                    if (done)
+                        return;
+                    done = true;
+                    try {
+                        encrypting.close(); // letztes Segment, schließt die Datei nicht
+                        writer.commit();
+                    } catch (IOException | RuntimeException e) {
+                        writer.abort();
+                        throw e;
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+
+                @Override
+                public long contentHash() {
+                    return writer.hashed.value();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (done)
+                        return;
+                    done = true;
+                    try {
+                        writer.abort();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            };
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            abortPending();
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    private void abortPending() {
+        try {
+            active.setLength(activeEnd);
+            active.seek(activeEnd);
+        } catch (IOException e) {
+            Log.e("SegmentDiaryStore", "could not truncate segment", e);
+        }
+    }
+
+    /**
+     * Schreibt einen PUT-Datensatz direkt in das aktive Segment; die Länge wird beim commit nachgetragen.
+     */
+    private class PutWriter {
+        final String name;
+        final long timestamp;
+        final long recordOffset;
+        final long lengthOffset;
+        final long payloadOffset;
+        final CRC32 crc = new CRC32();
+        final BufferedOutputStream buffered;
+        final Fingerprint.Stream hashed;
+        final OutputStream payload;
+
+        PutWriter(String name, long timestamp) throws IOException {
+            this.name = name;
+            this.timestamp = timestamp;
+            recordOffset = activeEnd;
+            active.seek(recordOffset);
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8 + 2 + nameBytes.length + 8);
+            header.putInt(recordMagic).put(typePut).putLong(timestamp).putShort((short) nameBytes.length).put(nameBytes);
+            lengthOffset = recordOffset + header.position();
+            header.putLong(0); // Platzhalter für die Länge
+            crc.update(header.array(), 4, 1 + 8 + 2 + nameBytes.length);
+            active.write(header.array());
+            payloadOffset = active.getFilePointer();
+            // Tink schließt den darunterliegenden Stream, das Segment muss aber offen bleiben
+            buffered = new BufferedOutputStream(Channels.newOutputStream(active.getChannel()), TextCodec.bufferSize);
+            hashed = new Fingerprint.Stream(new CheckedOutputStream(buffered, crc));
+            payload = new FilterOutputStream(hashed) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+
+        void commit() throws IOException {
+            buffered.flush();
+            long end = active.getChannel().position();
+            long payloadLength = end - payloadOffset;
+            crc.update(ByteBuffer.allocate(8).putLong(payloadLength).array());
+            active.seek(lengthOffset);
+            active.writeLong(payloadLength);
+            active.seek(end);
+            active.writeInt((int) crc.getValue());
+            active.getChannel().force(false);
+            long recordEnd = active.getFilePointer();
+            applyPut(name, new Location(activeSegment, recordOffset, recordEnd - recordOffset, payloadOffset, payloadLength, timestamp));
+            activeEnd = recordEnd;
+            afterRecord();
+        }
+
+        void abort() {
+            abortPending();
+        }
+    }
+
+    @Override
+    public boolean rename(String from, String to) {
+        writeLock.lock();
+        try {
+            if (location(from) == null)
+                return false;
+            appendSmallRecord(typeRename, from, to);
+            applyRename(from, to);
+            afterRecord();
+            return true;
+        } catch (IOException e) {
+            Log.e("SegmentDiaryStore", "rename failed", e);
+            abortPending();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String name) {
+        writeLock.lock();
+        try {
+            if (location(name) == null)
+                return false;
+            appendSmallRecord(typeDelete, name, null);
+            applyDelete(name);
+            afterRecord();
+            return true;
+        } catch (IOException e) {
+            Log.e("SegmentDiaryStore", "delete failed", e);
+            abortPending();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void appendSmallRecord(byte type, String name, String to) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] toBytes = to != null ? to.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + 8 + 2 + nameBytes.length + (to != null ? 2 + toBytes.length : 0) + 4);
+        record.putInt(recordMagic).put(type).putLong(System.currentTimeMillis()).putShort((short) nameBytes.length).put(nameBytes);
+        if (to != null)
+            record.putShort((short) toBytes.length).put(toBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        active.seek(activeEnd);
+        active.write(record.array());
+        active.getChannel().force(false);
+        activeEnd += record.capacity();
+    }
+
+    private void afterRecord() throws IOException {
+        if (activeEnd >= maxSegmentSize) {
+            openSegment(activeSegment + 1);
+            writeCheckpoint();
+        } else if (++recordsSinceCheckpoint >= recordsPerCheckpoint) {
+            writeCheckpoint();
+        }
+    }
+
+    // Index
+
+    private void applyPut(String name, Location location) {
+        synchronized (index) {
+            Location old = index.put(name, location);
+            if (old != null)
+                addLive(old.segment, -old.recordLength);
+            addLive(location.segment, location.recordLength);
+            stamp++;
+        }
+    }
+
+    private void applyDelete(String name) {
+        synchronized (index) {
+            Location old = index.remove(name);
+            if (old != null)
+                addLive(old.segment, -old.recordLength);
+            stamp++;
+        }
+    }
+
+    private void applyRename(String from, String to) {
+        synchronized (index) {
+            Location location = index.remove(from);
+            if (location == null)
+                return;
+            Location old = index.put(to, location);
+            if (old != null)
+                addLive(old.segment, -old.recordLength);
+            stamp++;
+        }
+    }
+
+    private void addLive(int segment, long bytes) {
+        Long live = liveBytes.get(segment);
+        liveBytes.put(segment, (live != null ? live : 0) + bytes);
+    }
+
+    // Kompaktierung
+
+    /**
+     * Kopiert die noch gültigen Datensätze aus Segmenten mit überwiegend überholten Daten in das aktive
+     * Segment (ohne Neuverschlüsselung) und löscht diese Segmente; was deren DELETE/RENAME in älteren
+     * Segmenten verdecken, bleibt verdeckt ({@link #keepTombstones}). Für einen Hintergrund-Thread.
+     *
+     * @return Anzahl freigegebener Bytes
+     */
+    public long compact() {
+        List<Integer> candidates = new ArrayList<>();
+        long garbage = 0;
+        for (int segment : segments()) {
+            if (segment == activeSegmentId())
+                continue;
+            long total = segmentFile(segment).length();
+            long live;
+            synchronized (index) {
+                Long bytes = liveBytes.get(segment);
+                live = bytes != null ? bytes : 0;
+            }
+            if (live * 2 < total) {
+                candidates.add(segment);
+                garbage += total - live;
+            }
+        }
+        if (candidates.isEmpty() || garbage < minGarbageBytes)
+            return 0;
+        long freed = 0;
+        byte[] buffer = new byte[TextCodec.bufferSize];
+        for (int segment : candidates) {
+            try {
+                copyLiveRecords(segment, buffer);
+                writeLock.lock();
+                try {
+                    // inzwischen umbenannte Datensätze verweisen unter dem neuen Namen noch auf das Segment
+                    List<Map.Entry<String, Location>> live;
+                    while (!(live = liveRecords(segment)).isEmpty()) {
+                        for (Map.Entry<String, Location> entry : live)
+                            copyRecord(entry.getKey(), entry.getValue(), buffer);
+                    }
+                    writeCheckpoint(); // erst danach das alte Segment löschen
+                    freed += segmentFile(segment).length();
+                    segmentFile(segment).delete();
+                    synchronized (index) {
+                        liveBytes.remove(segment);
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            } catch (IOException e) {
+                Log.e("SegmentDiaryStore", "compaction of segment " + segment + " failed", e);
+                return freed;
+            }
+        }
+        Log.d("SegmentDiaryStore", "compaction freed " + freed + " bytes");
+        return freed;
+    }
+
+    private int activeSegmentId() {
+        writeLock.lock();
+        try {
+            return activeSegment;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Namen und Lage aller Datensätze, auf die der Index in {@code segment} verweist
+    private List<Map.Entry<String, Location>> liveRecords(int segment) {
+        List<Map.Entry<String, Location>> live = new ArrayList<>();
+        synchronized (index) {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (entry.getValue().segment == segment)
+                    live.add(new HashMap.SimpleEntry<>(entry.getKey(), entry.getValue()));
+            }
+        }
+        return live;
+    }
+
+    // Sperre je Datensatz, damit Speichervorgänge zwischendurch nicht warten; was dabei umbenannt wird,
+    // kopiert compact() danach unter der Sperre
+    private void copyLiveRecords(int segment, byte[] buffer) throws IOException {
+        for (Map.Entry<String, Location> entry : liveRecords(segment)) {
+            writeLock.lock();
+            try {
+                if (location(entry.getKey()) != entry.getValue())
+                    continue; // inzwischen überschrieben, umbenannt oder gelöscht
+                copyRecord(entry.getKey(), entry.getValue(), buffer);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        keepTombstones(segment, buffer);
+    }
+
+    /**
+     * DELETE- und RENAME-Datensätze verdecken PUTs in älteren Segmenten; ohne sie lebten diese beim Einlesen
+     * ohne Checkpoint wieder auf. Statt sie zu kopieren (hinter neuere Datensätze, was deren Wirkung umkehren
+     * könnte), wird für jeden betroffenen Namen der aktuelle Stand festgehalten: ein DELETE, solange ein älteres
+     * Segment den Namen noch enthält, bzw. eine Kopie der Nutzdaten, wenn sie in einem älteren Segment unter
+     * einem anderen Namen stehen.
+     */
+    private void keepTombstones(int segment, byte[] buffer) throws IOException {
+        HashSet<String> shadowing = new HashSet<>();
+        readNames(segment, true, shadowing);
+        if (shadowing.isEmpty())
+            return;
+        HashSet<String> older = new HashSet<>();
+        for (int olderSegment : segments().headSet(segment))
+            readNames(olderSegment, false, older);
+        for (String name : shadowing) {
+            writeLock.lock();
+            try {
+                Location location = location(name);
+                if (location == null) {
+                    if (older.contains(name)) {
+                        appendSmallRecord(typeDelete, name, null);
+                        afterRecord();
+                    }
+                } else if (location.segment < segment) {
+                    copyRecord(name, location, buffer);
+                }
+            } catch (IOException e) {
+                abortPending();
+                throw e;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    // unter writeLock: Nutzdaten unverändert als neuer PUT in das aktive Segment
+    private void copyRecord(String name, Location location, byte[] buffer) throws IOException {
+        PutWriter writer = new PutWriter(name, location.timestamp);
+        try (InputStream payload = openPayload(name)) {
+            int nRead;
+            while ((nRead = payload.read(buffer)) != -1)
+                writer.payload.write(buffer, 0, nRead);
+            writer.commit();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Namen der Datensätze eines Segments, ohne Nutzdaten zu lesen; bei {@code tombstones} nur die von
+     * DELETE und RENAME (beide Namen).
+     */
+    private void readNames(int segment, boolean tombstones, Set<String> names) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(segment)), TextCodec.bufferSize))) {
+            while (true) {
+                if (in.readInt() != recordMagic)
+                    return;
+                byte type = in.readByte();
+                in.readLong(); // Zeit
+                byte[] nameBytes = new byte[in.readUnsignedShort()];
+                in.readFully(nameBytes);
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                if (type == typePut) {
+                    long remaining = in.readLong();
+                    while (remaining > 0) {
+                        long skipped = in.skip(remaining);
+                        if (skipped <= 0) {
+                            if (in.read() < 0)
+                                return;
+                            skipped = 1;
+                        }
+                        remaining -= skipped;
+                    }
+                    if (!tombstones)
+                        names.add(name);
+                } else if (type == typeDelete || type == typeRename) {
+                    names.add(name);
+                    if (type == typeRename) {
+                        byte[] toBytes = new byte[in.readUnsignedShort()];
+                        in.readFully(toBytes);
+                        names.add(new String(toBytes, StandardCharsets.UTF_8));
+                    }
+                } else {
+                    return;
+                }
+                in.readInt(); // CRC, beim Einlesen geprüft
+            }
+        } catch (EOFException e) {
+            // Ende des Segments
+        }
+    }
+
+    /**
+     * Schließt den Speicher und löscht alle Segmente und den Checkpoint, z.B. nach dem Wechsel auf
+     * {@link FileDiaryStore}; danach nicht mehr verwenden.
+     */
+    void deleteFiles() {
+        writeLock.lock();
+        try {
+            try {
+                active.close();
+            } catch (IOException e) {
+                Log.w("SegmentDiaryStore", "could not close segment", e);
+            }
+            for (int segment : segments())
+                segmentFile(segment).delete();
+            new File(dir, checkpointName).delete();
+            synchronized (index) {
+                index.clear();
+                liveBytes.clear();
+                stamp++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Dateien
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format(Locale.US, "%08d%s", segment, segmentSuffix));
+    }
+
+    private TreeSet<Integer> segments() {
+        TreeSet<Integer> segments = new TreeSet<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(segmentSuffix)) {
+                    try {
+                        segments.add(Integer.parseInt(name.substring(0, name.length() - segmentSuffix.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w("SegmentDiaryStore", "unexpected file " + name);
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private void openSegment(int segment) throws IOException {
+        if (active != null)
+            active.close();
+        activeSegment = segment;
+        active = new RandomAccessFile(segmentFile(segment), "rw");
+        activeEnd = active.length();
+        active.seek(activeEnd);
+    }
+
+    // Checkpoint: Index-Stand und Position im aktiven Segment, ab der beim Öffnen weitergelesen wird
+    private void writeCheckpoint() throws IOException {
+        File file = new File(dir, checkpointName);
+        File tmpFile = new File(dir, checkpointName + FileDiaryStore.tmpSuffix);
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        try {
+            out.writeInt(checkpointMagic);
+            out.writeInt(checkpointVersion);
+            out.writeInt(activeSegment);
+            out.writeLong(activeEnd);
+            synchronized (index) {
+                out.writeInt(index.size());
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    Location location = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(location.segment);
+                    out.writeLong(location.recordOffset);
+                    out.writeLong(location.recordLength);
+                    out.writeLong(location.payloadOffset);
+                    out.writeLong(location.payloadLength);
+                    out.writeLong(location.timestamp);
+                }
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Could not rename " + tmpFile);
+        recordsSinceCheckpoint = 0;
+    }
+
+    private long[] readCheckpoint() {
+        File file = new File(dir, checkpointName);
+        if (!file.exists())
+            return null;
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != checkpointMagic || in.readInt() != checkpointVersion)
+                return null;
+            int segment = in.readInt();
+            long end = in.readLong();
+            int count = in.readInt();
+            HashMap<String, Location> locations = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                locations.put(name, new Location(in.readInt(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected)
+                return null;
+            for (Map.Entry<String, Location> entry : locations.entrySet())
+                applyPut(entry.getKey(), entry.getValue());
+            return new long[]{segment, end};
+        } catch (IOException e) {
+            Log.w("SegmentDiaryStore", "invalid checkpoint, scanning all segments", e);
+            synchronized (index) {
+                index.clear();
+                liveBytes.clear();
+            }
+            return null;
+        }
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        TreeSet<Integer> segments = segments();
+        long[] checkpoint = readCheckpoint();
+        int fromSegment = checkpoint != null ? (int) checkpoint[0] : Integer.MIN_VALUE;
+        int scanned = 0;
+        for (int segment : segments) {
+            if (segment < fromSegment)
+                continue;
+            long from = segment == fromSegment ? checkpoint[1] : 0;
+            scanned += scan(segment, from, segment == segments.last());
+        }
+        openSegment(segments.isEmpty() ? 1 : segments.last());
+        if (scanned > 0 || checkpoint == null)
+            writeCheckpoint();
+        Log.d("SegmentDiaryStore", index.size() + " entries, " + scanned + " records replayed in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    /**
+     * Liest Datensätze ab {@code from} und wendet sie auf den Index an. Ein unvollständiger oder
+     * beschädigter Datensatz beendet das Segment; im letzten Segment wird dort abgeschnitten.
+     */
+    private int scan(int segment, long from, boolean last) throws IOException {
+        File file = segmentFile(segment);
+        int records = 0;
+        long position = from;
+        long validEnd = from;
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            fileIn.getChannel().position(from);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, TextCodec.bufferSize));
+            byte[] buffer = new byte[TextCodec.bufferSize];
+            while (true) {
+                long recordOffset = position;
+                CRC32 crc = new CRC32();
+                try {
+                    if (in.readInt() != recordMagic)
+                        break;
+                    byte type = in.readByte();
+                    long timestamp = in.readLong();
+                    byte[] nameBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(nameBytes);
+                    ByteBuffer header = ByteBuffer.allocate(1 + 8 + 2 + nameBytes.length);
+                    header.put(type).putLong(timestamp).putShort((short) nameBytes.length).put(nameBytes);
+                    crc.update(header.array());
+                    position += 4 + header.capacity();
+                    String name = new String(nameBytes, StandardCharsets.UTF_8);
+                    if (type == typePut) {
+                        long payloadLength = in.readLong();
+                        long payloadOffset = position + 8;
+                        long remaining = payloadLength;
+                        while (remaining > 0) {
+                            int nRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (nRead < 0)
+                                throw new EOFException();
+                            crc.update(buffer, 0, nRead);
+                            remaining -= nRead;
+                        }
+                        crc.update(ByteBuffer.allocate(8).putLong(payloadLength).array());
+                        if (in.readInt() != (int) crc.getValue())
+                            break;
+                        position = payloadOffset + payloadLength + 4;
+                        applyPut(name, new Location(segment, recordOffset, position - recordOffset, payloadOffset, payloadLength, timestamp));
+                    } else if (type == typeDelete || type == typeRename) {
+                        String to = null;
+                        if (type == typeRename) {
+                            byte[] toBytes = new byte[in.readUnsignedShort()];
+                            in.readFully(toBytes);
+                            crc.update(ByteBuffer.allocate(2).putShort((short) toBytes.length).array());
+                            crc.update(toBytes);
+                            position += 2 + toBytes.length;
+                            to = new String(toBytes, StandardCharsets.UTF_8);
+                        }
+                        if (in.readInt() != (int) crc.getValue())
+                            break;
+                        position += 4;
+                        if (to != null)
+                            applyRename(name, to);
+                        else
+                            applyDelete(name);
+                    } else {
+                        break;
+                    }
+                    records++;
+                    validEnd = position;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        if (validEnd < file.length()) {
+            Log.w("SegmentDiaryStore", "segment " + segment + ": discarding " + (file.length() - validEnd) + " bytes after " + validEnd);
+            if (last) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validEnd);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Liest höchstens {@code remaining} Bytes, ohne Daten des nächsten Datensatzes preiszugeben.
+     */
+    private static class RegionInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        RegionInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int nRead = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (nRead > 0)
+                remaining -= nRead;
+            return nRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Export des ganzen Tagebuchs als ZIP mit nur einer Signatur: alle Einträge werden parallel gehasht,
+ * zu einem {@link MerkleTree} zusammengefasst und nur dessen Wurzel mit dem Signaturschlüssel signiert.
+ * <p>
+ * Inhalt: entries/&lt;Name&gt;.txt (Text), proofs/&lt;Name&gt;.proof (Prüfpfad), manifest.txt,
+ * root.bin (Wurzel-Hash), root.sig (SHA256withECDSA über root.bin) und publickey.der.
+ * Ein einzelner Eintrag lässt sich mit Text, Prüfpfad, root.sig und öffentlichem Schlüssel prüfen
+ * ({@link #verifyEntry}); die Wurzel selbst auch per
+ * openssl dgst -sha256 -keyform der -verify publickey.der -signature root.sig root.bin
+ */
+public class SignedExport {
+
+    static final String format = "SecretDiary Merkle export 1";
+
+    private static final class Leaf {
+        final String key;
+        final String fileName;
+        final byte[] text;
+        final byte[] hash;
+
+        Leaf(String key, String fileName, byte[] text, byte[] hash) {
+            this.key = key;
+            this.fileName = fileName;
+            this.text = text;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Schreibt den Export nach {@code file}. Einträge werden parallel entschlüsselt und gehasht und
+     * in Reihenfolge ins ZIP geschrieben; höchstens ein paar Einträge liegen gleichzeitig im Speicher.
+     */
+    public static File export(File file) throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        DiaryStore store = Diary.store();
+        List<DiaryEntry> entries = new ArrayList<>();
+        for (DiaryEntry entry : Diary.entries()) {
+            if (EntryWriter.pendingText(entry) != null || store.exists(entry.fileName()))
+                entries.add(entry);
+        }
+        Collections.reverse(entries); // älteste zuerst, Blatt-Index = chronologische Position
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        byte[][] leafHashes = new byte[entries.size()][];
+        List<String> fileNames = new ArrayList<>(entries.size());
+        List<String> keys = new ArrayList<>(entries.size());
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            ArrayDeque<Future<Leaf>> window = new ArrayDeque<>();
+            int written = 0;
+            for (DiaryEntry entry : entries) {
+                window.add(executor.submit(() -> hash(entry, store)));
+                if (window.size() >= 2 * threads)
+                    written = writeEntry(zip, window.poll(), written, leafHashes, keys, fileNames);
+            }
+            while (!window.isEmpty())
+                written = writeEntry(zip, window.poll(), written, leafHashes, keys, fileNames);
+
+            MerkleTree tree = new MerkleTree(leafHashes);
+            byte[] root = tree.root();
+            byte[] rootSignature = EntrySigner.sign(root);
+            for (int i = 0; i < tree.size(); i++) {
+                zip.putNextEntry(new ZipEntry("proofs/" + fileNames.get(i) + ".proof"));
+                zip.write(proof(keys.get(i), i, tree.size(), leafHashes[i], tree.path(i), root).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            writeBytes(zip, "manifest.txt", manifest(tree, leafHashes, fileNames).getBytes(StandardCharsets.UTF_8));
+            writeBytes(zip, "root.bin", root);
+            writeBytes(zip, "root.sig", rootSignature);
+            writeBytes(zip, "publickey.der", Diary.keys().publicKey().getEncoded());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.v("SignedExport", entries.size() + " entries exported in " + (System.nanoTime() - start) / 1000000 + "ms");
+        return file;
+    }
+
+    private static Leaf hash(DiaryEntry entry, DiaryStore store) throws IOException, GeneralSecurityException {
+        String key = entry.key();
+        String fileName = entry.fileName();
+        byte[] text;
+        CharSequence pendingText = EntryWriter.pendingText(entry);
+        if (pendingText != null) {
+            text = pendingText.toString().getBytes(StandardCharsets.UTF_8);
+        } else {
+            // der gespeicherte Klartext ist bereits UTF-8, ohne Umweg über String
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(store.length(fileName), Integer.MAX_VALUE - 8));
+            try (InputStream in = store.openInput(fileName)) {
+                byte[] buffer = new byte[TextCodec.bufferSize];
+                int nRead;
+                while ((nRead = in.read(buffer)) != -1)
+                    out.write(buffer, 0, nRead);
+            }
+            text = out.toByteArray();
+        }
+        return new Leaf(key, fileName, text, MerkleTree.leafHash(MerkleTree.digest(), key, text, text.length));
+    }
+
+    private static int writeEntry(ZipOutputStream zip, Future<Leaf> future, int index, byte[][] leafHashes,
+                                  List<String> keys, List<String> fileNames) throws IOException, GeneralSecurityException, InterruptedException {
+        Leaf leaf;
+        try {
+            leaf = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            throw new RuntimeException(cause);
+        }
+        writeBytes(zip, "entries/" + leaf.fileName + ".txt", leaf.text);
+        leafHashes[index] = leaf.hash;
+        keys.add(leaf.key);
+        fileNames.add(leaf.fileName);
+        return index + 1;
+    }
+
+    private static void writeBytes(ZipOutputStream zip, String name, byte[] bytes) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+
+    private static String manifest(MerkleTree tree, byte[][] leafHashes, List<String> fileNames) {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(format).append('\n');
+        manifest.append("hash: ").append(MerkleTree.hashAlgorithm)
+                .append(", leaf = H(0x00 || yyyy-MM-dd || '\\n' || text), node = H(0x01 || left || right) (RFC 6962)\n");
+        manifest.append("signature: ").append(EntrySigner.algorithm).append(" over root.bin (root.sig, publickey.der)\n");
+        manifest.append("size: ").append(tree.size()).append('\n');
+        manifest.append("root: ").append(MerkleTree.hex(tree.root())).append('\n');
+        for (int i = 0; i < tree.size(); i++)
+            manifest.append(i).append(' ').append(MerkleTree.hex(leafHashes[i])).append(' ').append(fileNames.get(i)).append('\n');
+        return manifest.toString();
+    }
+
+    private static String proof(String key, int index, int size, byte[] leafHash, List<byte[]> path, byte[] root) {
+        StringBuilder proof = new StringBuilder();
+        proof.append(format).append('\n');
+        proof.append("entry: ").append(key).append('\n');
+        proof.append("index: ").append(index).append('\n');
+        proof.append("size: ").append(size).append('\n');
+        proof.append("leaf: ").append(MerkleTree.hex(leafHash)).append('\n');
+        for (byte[] hash : path)
+            proof.append("path: ").append(MerkleTree.hex(hash)).append('\n');
+        proof.append("root: ").append(MerkleTree.hex(root)).append('\n');
+        return proof.toString();
+    }
+
+    /**
+     * Prüft einen exportierten Eintrag für sich allein: Text und Schlüssel ergeben das Blatt, der Prüfpfad
+     * führt zur Wurzel, und die Wurzel ist mit dem öffentlichen Schlüssel signiert.
+     *
+     * @param proof Inhalt der .proof-Datei
+     */
+    public static boolean verifyEntry(byte[] text, String proof, byte[] rootSignature, PublicKey publicKey) throws GeneralSecurityException {
+        String key = null;
+        int index = -1;
+        int size = -1;
+        byte[] root = null;
+        List<byte[]> path = new ArrayList<>();
+        for (String line : proof.split("\n")) {
+            int colon = line.indexOf(": ");
+            if (colon < 0)
+                continue;
+            String value = line.substring(colon + 2).trim();
+            switch (line.substring(0, colon)) {
+                case "entry":
+                    key = value;
+                    break;
+                case "index":
+                    index = Integer.parseInt(value);
+                    break;
+                case "size":
+                    size = Integer.parseInt(value);
+                    break;
+                case "path":
+                    path.add(MerkleTree.unhex(value));
+                    break;
+                case "root":
+                    root = MerkleTree.unhex(value);
+                    break;
+            }
+        }
+        if (key == null || root == null)
+            return false;
+        MessageDigest digest = MerkleTree.digest();
+        byte[] leafHash = MerkleTree.leafHash(digest, key, text, text.length);
+        if (!MerkleTree.verifyInclusion(leafHash, index, size, path, root))
+            return false;
+        Signature signature = Signature.getInstance(EntrySigner.algorithm);
+        signature.initVerify(publicKey);
+        signature.update(root);
+        return signature.verify(rootSignature);
+    }
+}
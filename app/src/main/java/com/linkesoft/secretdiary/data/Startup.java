@@ -0,0 +1,81 @@
+package com.linkesoft.secretdiary.data;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Kaltstart: lädt Manifest, Master-Key und Keyset im Hintergrund, während der Biometrie-Dialog angezeigt wird,
+ * statt nacheinander auf dem Main-Thread beim ersten Zugriff.
+ * <p>
+ * Misst dabei die Phasen seit Prozessstart bis zur entsperrten, abgeglichenen Liste und schreibt sie einmal
+ * pro Prozess ins Log (Tag "Startup"), z.B. zum Vergleich zwischen Versionen:
+ * adb logcat -s Startup
+ */
+public class Startup {
+
+    private static final String tag = "Startup";
+
+    private static final StringBuilder phases = new StringBuilder();
+    private static long lastMillis = -1;
+    private static boolean unlocked;
+    private static boolean listRefreshed;
+    private static boolean done;
+
+    /**
+     * Aus Application.onCreate: Aufwärmen im Hintergrund starten.
+     */
+    public static void begin() {
+        mark("application");
+        warmUp();
+    }
+
+    /**
+     * Baut Schlüssel und Tink-Primitive auf, falls die Sitzung nach dem Sperren geschlossen wurde;
+     * nicht blockierend, z.B. auch beim Wechsel in den Vordergrund.
+     */
+    public static void warmUp() {
+        if (CryptoSession.isOpen())
+            return;
+        DiaryIO.submitSpeculative(() -> {
+            Trace.beginSection("warmUp");
+            try {
+                Diary.openManifest();
+                mark("manifest");
+                CryptoSession.open();
+                mark("masterKey");
+                Diary.keys().warmUp();
+                mark("streamingAead");
+            } catch (Exception e) {
+                Log.w(tag, "warm-up failed, keys load on first use", e);
+            } finally {
+                Trace.endSection();
+            }
+        });
+    }
+
+    /**
+     * Zeitpunkt einer Startphase seit Prozessstart; nach der ersten entsperrten, abgeglichenen Liste ohne Wirkung.
+     */
+    public static synchronized void mark(String phase) {
+        if (done)
+            return;
+        long millis = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        long delta = lastMillis < 0 ? millis : millis - lastMillis;
+        lastMillis = millis;
+        Log.d(tag, phase + " " + millis + "ms (+" + delta + "ms)");
+        if (phases.length() > 0)
+            phases.append(", ");
+        phases.append(phase).append('=').append(millis);
+        if ("unlocked".equals(phase))
+            unlocked = true;
+        else if ("listRefreshed".equals(phase))
+            listRefreshed = true;
+        if (unlocked && listRefreshed) {
+            done = true;
+            Log.i(tag, "unlocked list after " + millis + "ms: " + phases);
+            phases.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.linkesoft.secretdiary.data;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Entschlüsselte Texte der zuletzt geöffneten bzw. vorab geladenen Einträge, LRU mit Byte-Budget.
+ * Gilt nur, solange die App entsperrt ist: {@link #clear()} beim Sperren überschreibt und verwirft alles,
+ * und Ergebnisse von Ladevorgängen, die vor dem Sperren begonnen haben, werden nicht mehr übernommen.
+ * <p>
+ * Der Cache hält eigene char-Kopien, die beim Verdrängen, Ersetzen und Leeren mit Nullen überschrieben werden;
+ * Aufrufer bekommen jeweils eine Kopie. Gültig ist ein Text nur für den Inhaltsstand ({@link #nextVersion()}),
+ * mit dem er abgelegt wurde.
+ */
+public class TextCache {
+
+    private static final long maxBytes = 2 * 1024 * 1024;
+    // größere Texte würden den Cache für sich allein belegen
+    private static final long maxEntryBytes = maxBytes / 2;
+
+    private static final class Cached {
+        final long version;
+        final char[] chars;
+
+        Cached(long version, char[] chars) {
+            this.version = version;
+            this.chars = chars;
+        }
+
+        long bytes() {
+            return 2L * chars.length;
+        }
+    }
+
+    private static final LinkedHashMap<String, Cached> texts = new LinkedHashMap<>(16, 0.75f, true);
+    private static final AtomicLong versions = new AtomicLong();
+    private static long bytes;
+    private static long generation;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    /**
+     * Neuer Inhaltsstand, größer als alle bisherigen.
+     */
+    static long nextVersion() {
+        return versions.incrementAndGet();
+    }
+
+    static synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Kopie des Texts zum Stand {@code version}, sonst null; ein veralteter Stand wird dabei verworfen.
+     */
+    static synchronized CharSequence get(String key, long version) {
+        Cached cached = texts.get(key);
+        if (cached == null || cached.version != version) {
+            misses++;
+            if (cached != null)
+                discard(texts.remove(key));
+            return null;
+        }
+        hits++;
+        return new StringBuilder(cached.chars.length).append(cached.chars);
+    }
+
+    static synchronized boolean contains(String key, long version) {
+        Cached cached = texts.get(key);
+        return cached != null && cached.version == version;
+    }
+
+    /**
+     * Übernimmt eine Kopie von {@code text} nur, wenn seit {@code generation} nicht gesperrt wurde
+     * und kein neuerer Stand vorliegt.
+     */
+    static synchronized void put(String key, long version, CharSequence text, long generation) {
+        if (generation != TextCache.generation)
+            return;
+        Cached existing = texts.get(key);
+        if (existing != null && existing.version > version)
+            return; // später begonnenes Speichern oder Laden war schneller
+        discard(texts.remove(key));
+        int length = text.length();
+        if (2L * length > maxEntryBytes)
+            return;
+        char[] chars = new char[length];
+        if (text instanceof String)
+            ((String) text).getChars(0, length, chars, 0);
+        else if (text instanceof StringBuilder)
+            ((StringBuilder) text).getChars(0, length, chars, 0);
+        else
+            for (int i = 0; i < length; i++)
+                chars[i] = text.charAt(i);
+        Cached cached = new Cached(version, chars);
+        texts.put(key, cached);
+        bytes += cached.bytes();
+        for (Iterator<Cached> eldest = texts.values().iterator(); bytes > maxBytes && eldest.hasNext(); ) {
+            Cached evicted = eldest.next();
+            if (evicted == cached)
+                break;
+            eldest.remove();
+            discard(evicted);
+            evictions++;
+        }
+    }
+
+    static synchronized void remove(String key) {
+        discard(texts.remove(key));
+    }
+
+    private static void discard(Cached cached) {
+        if (cached == null)
+            return;
+        Arrays.fill(cached.chars, '\0');
+        bytes -= cached.bytes();
+    }
+
+    public static synchronized void clear() {
+        for (Cached cached : texts.values())
+            discard(cached);
+        texts.clear();
+        generation++;
+        Log.v("TextCache", "cleared, " + hits + " hits " + misses + " misses " + evictions + " evictions");
+    }
+
+    // Zähler seit dem Start
+
+    public static synchronized long hits() {
+        return hits;
+    }
+
+    public static synchronized long misses() {
+        return misses;
+    }
+
+    public static synchronized long evictions() {
+        return evictions;
+    }
+
+    public static synchronized long bytes() {
+        return bytes;
+    }
+}
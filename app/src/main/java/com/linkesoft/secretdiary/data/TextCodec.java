@@ -0,0 +1,144 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 Kodierung/Dekodierung des Eintragstexts über feste, wiederverwendbare Puffer.
+ * Liest bis EOF (kein Abschneiden bei kurzen Reads) und legt keine Zwischenkopien an;
+ * der Speicherbedarf neben dem Ergebnis ist unabhängig von der Länge des Eintrags.
+ * Nicht thread-sicher, daher eine Instanz pro Thread über {@link #get()}.
+ */
+public class TextCodec {
+
+    static final int bufferSize = 8 * 1024;
+
+    private static final ThreadLocal<TextCodec> perThread = new ThreadLocal<TextCodec>() {
+        @Override
+        protected TextCodec initialValue() {
+            return new TextCodec();
+        }
+    };
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(bufferSize);
+    private final CharBuffer chars = CharBuffer.allocate(bufferSize);
+
+    public static TextCodec get() {
+        return perThread.get();
+    }
+
+    /**
+     * Dekodiert den kompletten Stream in {@code out}.
+     */
+    public StringBuilder decode(InputStream in, StringBuilder out) throws IOException {
+        decoder.reset();
+        bytes.clear();
+        byte[] array = bytes.array();
+        int nRead;
+        while ((nRead = in.read(array, bytes.position(), bytes.remaining())) != -1) {
+            bytes.position(bytes.position() + nRead);
+            bytes.flip();
+            decodeChunk(out, false);
+            bytes.compact();
+        }
+        bytes.flip();
+        decodeChunk(out, true);
+        CoderResult result;
+        do {
+            result = decoder.flush(chars);
+            drainChars(out);
+        } while (result.isOverflow());
+        return out;
+    }
+
+    private void decodeChunk(StringBuilder out, boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, endOfInput);
+            drainChars(out);
+        } while (result.isOverflow());
+    }
+
+    private void drainChars(StringBuilder out) {
+        out.append(chars.array(), 0, chars.position());
+        chars.clear();
+    }
+
+    /**
+     * Kodiert {@code text} direkt aus der CharSequence (ohne getBytes-Kopie) nach {@code out}.
+     *
+     * @return Anzahl geschriebener Bytes
+     */
+    public long encode(CharSequence text, OutputStream out) throws IOException {
+        encoder.reset();
+        bytes.clear();
+        CharBuffer in = CharBuffer.wrap(text);
+        long written = 0;
+        CoderResult result;
+        do {
+            result = encoder.encode(in, bytes, true);
+            written += drainBytes(out);
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(bytes);
+            written += drainBytes(out);
+        } while (result.isOverflow());
+        return written;
+    }
+
+    private int drainBytes(OutputStream out) throws IOException {
+        int n = bytes.position();
+        out.write(bytes.array(), 0, n);
+        bytes.clear();
+        return n;
+    }
+
+    /**
+     * Anzahl Bytes, die {@link #encode} für die Zeichen [from, to) schreibt, ohne zu kodieren;
+     * einzelne Surrogate werden wie beim Kodieren durch ein Byte ersetzt.
+     */
+    static long encodedLength(CharSequence text, int from, int to) {
+        long length = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reader-Sicht auf einen UTF-8 Stream, für Verbraucher, die den Text nicht am Stück brauchen.
+     */
+    public static Reader reader(InputStream in) {
+        return new InputStreamReader(in, StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+}
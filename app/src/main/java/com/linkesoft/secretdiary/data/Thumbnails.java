@@ -0,0 +1,160 @@
+package com.linkesoft.secretdiary.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Vorschaubilder der Foto-Anhänge. Beim ersten Anzeigen wird das Original zweimal gestreamt (erst nur die
+ * Größe, dann mit inSampleSize verkleinert dekodiert) und das Ergebnis verschlüsselt neben dem Anhang abgelegt.
+ * Dekodierte Bitmaps liegen in einem LRU mit Byte-Budget, das wie {@link TextCache} beim Sperren geleert wird;
+ * Ergebnisse von Ladevorgängen, die vor dem Sperren begonnen haben, werden nicht mehr übernommen.
+ */
+public class Thumbnails {
+
+    // längere Seite in Pixeln
+    private static final int size = 256;
+    private static final int quality = 80;
+    private static final long maxBytes = 4 * 1024 * 1024;
+
+    private static final LinkedHashMap<String, Bitmap> bitmaps = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+    private static long generation;
+
+    private static String cacheKey(String key, String name) {
+        return key + "/" + name;
+    }
+
+    /**
+     * Vorschaubild aus dem Speicher, sonst null.
+     */
+    public static synchronized Bitmap peek(String key, String name) {
+        return bitmaps.get(cacheKey(key, name));
+    }
+
+    /**
+     * Dekodiert im Hintergrund und liefert das Vorschaubild auf dem Main-Thread; ist es bereits im Speicher,
+     * wird {@code callback} sofort aufgerufen.
+     *
+     * @return zum Abbrechen, z.B. wenn die Ansicht wiederverwendet wird
+     */
+    public static Future<Bitmap> loadAsync(String key, String name, DiaryIO.Callback<Bitmap> callback) {
+        Bitmap bitmap = peek(key, name);
+        if (bitmap != null) {
+            callback.onResult(bitmap);
+            return CompletableFuture.completedFuture(bitmap);
+        }
+        return DiaryIO.submit(() -> load(key, name), callback);
+    }
+
+    static Bitmap load(String key, String name) throws IOException, GeneralSecurityException {
+        long cacheGeneration = generation();
+        Bitmap bitmap;
+        if (Attachments.hasThumbnail(key, name)) {
+            try (InputStream in = Attachments.openThumbnail(key, name)) {
+                bitmap = BitmapFactory.decodeStream(in);
+            }
+        } else {
+            bitmap = create(key, name);
+        }
+        if (bitmap == null)
+            throw new IOException("could not decode " + name);
+        put(cacheKey(key, name), bitmap, cacheGeneration);
+        return bitmap;
+    }
+
+    // aus dem Original, ohne es komplett zu dekodieren
+    private static Bitmap create(String key, String name) throws IOException, GeneralSecurityException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = Attachments.open(key, name)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= size)
+            sampleSize *= 2;
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap sampled;
+        try (InputStream in = Attachments.open(key, name)) {
+            sampled = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (sampled == null)
+            return null;
+        float scale = Math.min(1f, (float) size / Math.max(sampled.getWidth(), sampled.getHeight()));
+        Bitmap bitmap = Bitmap.createScaledBitmap(sampled, Math.max(1, Math.round(sampled.getWidth() * scale)),
+                Math.max(1, Math.round(sampled.getHeight() * scale)), true);
+        if (bitmap != sampled)
+            sampled.recycle();
+        try (OutputStream out = Attachments.createThumbnail(key, name)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        } catch (IOException e) {
+            Log.w("Thumbnails", "could not store thumbnail of " + name, e); // beim nächsten Mal erneut
+        }
+        return bitmap;
+    }
+
+    private static synchronized long generation() {
+        return generation;
+    }
+
+    private static synchronized void put(String cacheKey, Bitmap bitmap, long generation) {
+        if (generation != Thumbnails.generation)
+            return;
+        Bitmap existing = bitmaps.put(cacheKey, bitmap);
+        if (existing != null)
+            bytes -= existing.getByteCount();
+        bytes += bitmap.getByteCount();
+        for (Iterator<Bitmap> eldest = bitmaps.values().iterator(); bytes > maxBytes && eldest.hasNext(); ) {
+            Bitmap evicted = eldest.next();
+            if (evicted == bitmap)
+                break;
+            eldest.remove();
+            bytes -= evicted.getByteCount();
+        }
+    }
+
+    /**
+     * Verwirft das dekodierte Vorschaubild, z.B. nach {@link Attachments#delete}.
+     */
+    public static synchronized void remove(String key, String name) {
+        Bitmap removed = bitmaps.remove(cacheKey(key, name));
+        if (removed != null)
+            bytes -= removed.getByteCount();
+    }
+
+    /**
+     * Verwirft alle dekodierten Vorschaubilder von {@code key}, z.B. nach {@link DiaryEntry#delete()}.
+     */
+    public static synchronized void removeAll(String key) {
+        for (Iterator<Map.Entry<String, Bitmap>> entries = bitmaps.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<String, Bitmap> entry = entries.next();
+            if (entry.getKey().startsWith(key + "/")) {
+                bytes -= entry.getValue().getByteCount();
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Verwirft alle dekodierten Vorschaubilder, z.B. beim Sperren. Nicht recycelt, da sie noch angezeigt
+     * werden können; die Ansichten geben sie beim Sperren frei.
+     */
+    public static synchronized void clear() {
+        bitmaps.clear();
+        bytes = 0;
+        generation++;
+    }
+}
@@ -0,0 +1,64 @@
+package com.linkesoft.secretdiary.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Reproduzierbare Testdaten für die Benchmarks.
+ */
+final class BenchmarkData {
+
+    private static final String[] words = {"heute", "morgen", "Kaffee", "Arbeit", "Regen", "Sonne", "müde",
+            "glücklich", "Treffen", "Spaziergang", "Buch", "Abend", "und", "der", "die", "das", "ein", "😀"};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Fließtext mit Umlauten und Emoji, ungefähr {@code size} UTF-8 Bytes lang.
+     */
+    static String text(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size);
+        int bytes = 0;
+        while (bytes < size) {
+            String word = words[random.nextInt(words.length)];
+            text.append(word).append(random.nextInt(12) == 0 ? ".\n" : " ");
+            bytes += word.length() + 1;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Dateiname "yyyy-MM-dd 😀" des {@code n}-ten Tages ab 2000-01-01.
+     */
+    static String fileName(int n) {
+        return EpochDay.format(EpochDay.of(2000, 1, 1) + n) + " " + Mood.emoji((byte) (n % Mood.count));
+    }
+
+    /**
+     * Löscht {@code file} samt Inhalt, z.B. das Verzeichnis einer {@link DirectoryEnvironment}.
+     */
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Wiederverwendbarer Puffer, dessen Inhalt ohne Kopie gelesen werden kann.
+     */
+    static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
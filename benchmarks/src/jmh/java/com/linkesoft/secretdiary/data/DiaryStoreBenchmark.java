@@ -0,0 +1,91 @@
+package com.linkesoft.secretdiary.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speichern und Laden eines Eintrags über die echten {@link DiaryStore}-Implementierungen
+ * mit {@link JceKeyProvider}, also derselbe Weg wie {@code DiaryEntry.setText/getText} ohne Android.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiaryStoreBenchmark {
+
+    @Param({"files", "segments", "memory"})
+    public String backend;
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int entrySize;
+
+    private File dir;
+    private DiaryStore store;
+    private String text;
+    private String fileName;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("diarystore").toFile();
+        KeyProvider keys = new JceKeyProvider();
+        switch (backend) {
+            case "files":
+                store = new FileDiaryStore(dir, keys);
+                break;
+            case "segments":
+                store = new SegmentDiaryStore(dir, keys);
+                break;
+            default:
+                store = new MemoryDiaryStore(keys);
+        }
+        text = BenchmarkData.text(entrySize, 3);
+        fileName = BenchmarkData.fileName(0);
+        save();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long save() throws Exception {
+        try (DiaryStore.Output out = store.openOutput(fileName)) {
+            TextCodec.get().encode(text, out);
+            out.commit();
+            return out.contentHash();
+        }
+    }
+
+    @Benchmark
+    public StringBuilder load() throws Exception {
+        try (InputStream in = store.openInput(fileName)) {
+            return TextCodec.get().decode(in, new StringBuilder((int) store.length(fileName)));
+        }
+    }
+
+    // Segment-Speicher wächst bei jedem save(); zwischen den Iterationen aufräumen
+    @TearDown(Level.Iteration)
+    public void compact() throws IOException {
+        if (store instanceof SegmentDiaryStore)
+            ((SegmentDiaryStore) store).compact();
+    }
+}
@@ -0,0 +1,75 @@
+package com.linkesoft.secretdiary.data;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.StreamingAead;
+import com.google.crypto.tink.streamingaead.StreamingAeadConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ver- und Entschlüsseln eines Eintrags wie in {@code DiaryEntry.setText/getText}: TextCodec über
+ * Tink StreamingAead (AES256_GCM_HKDF_4KB, Dateiname als Associated Data), mit einem Software-Schlüssel
+ * statt des Android Keystores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EntryCryptoBenchmark {
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int entrySize;
+
+    private final byte[] associatedData = "2021-05-01 😀".getBytes(StandardCharsets.UTF_8);
+    private StreamingAead streamingAead;
+    private String text;
+    private byte[] ciphertext;
+    private BenchmarkData.Buffer buffer;
+
+    @Setup
+    public void setup() throws Exception {
+        StreamingAeadConfig.register();
+        streamingAead = KeysetHandle.generateNew(KeyTemplates.get("AES256_GCM_HKDF_4KB")).getPrimitive(StreamingAead.class);
+        text = BenchmarkData.text(entrySize, 42);
+        buffer = new BenchmarkData.Buffer(entrySize + entrySize / 8 + 1024);
+        try (OutputStream out = streamingAead.newEncryptingStream(buffer, associatedData)) {
+            TextCodec.get().encode(text, out);
+        }
+        ciphertext = buffer.toByteArray();
+    }
+
+    @Benchmark
+    public int encrypt() throws Exception {
+        buffer.reset();
+        try (OutputStream out = streamingAead.newEncryptingStream(buffer, associatedData)) {
+            TextCodec.get().encode(text, out);
+        }
+        return buffer.size();
+    }
+
+    @Benchmark
+    public StringBuilder decrypt() throws Exception {
+        try (InputStream in = streamingAead.newDecryptingStream(new ByteArrayInputStream(ciphertext), associatedData)) {
+            return TextCodec.get().decode(in, new StringBuilder(ciphertext.length));
+        }
+    }
+
+    // Vergleich beim Autosave (isModified), bevor überhaupt verschlüsselt wird
+    @Benchmark
+    public long fingerprint() {
+        return Fingerprint.of(text);
+    }
+}
@@ -0,0 +1,51 @@
+package com.linkesoft.secretdiary.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsen der Dateinamen "yyyy-MM-dd 😀" in {@code DiaryEntry(String fileName)} und Formatieren der Schlüssel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EntryNameBenchmark {
+
+    private final String[] fileNames = new String[1024];
+    private final char[] key = new char[EpochDay.keyLength];
+    private int next;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < fileNames.length; i++)
+            fileNames[i] = BenchmarkData.fileName(i * 7);
+    }
+
+    private String nextFileName() {
+        return fileNames[next++ & (fileNames.length - 1)];
+    }
+
+    // pro Datei bei refresh() und beim Laden des Manifests
+    @Benchmark
+    public DiaryEntry newEntry() {
+        return new DiaryEntry(nextFileName());
+    }
+
+    @Benchmark
+    public String key() {
+        return new DiaryEntry(nextFileName()).key();
+    }
+
+    @Benchmark
+    public char[] formatKeyTo() {
+        EpochDay.formatTo(EpochDay.parse(nextFileName(), 0), key, 0);
+        return key;
+    }
+}
@@ -0,0 +1,93 @@
+package com.linkesoft.secretdiary.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kaltstart der Liste: vollständiger Abgleich mit dem Verzeichnis in {@link Diary#refresh()}
+ * gegenüber dem Lesen aus dem gemappten {@link EntryManifest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RefreshBenchmark {
+
+    private static final int pageSize = 100;
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int diarySize;
+
+    private File root;
+    private DirectoryEnvironment environment;
+    private File manifestFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("diary").toFile();
+        environment = new DirectoryEnvironment(root, new JceKeyProvider());
+        File dir = environment.filesDir();
+        for (int i = 0; i < diarySize; i++) {
+            File file = new File(dir, BenchmarkData.fileName(i));
+            if (!file.createNewFile())
+                throw new IOException("Could not create " + file);
+        }
+        // Manifest wie von der App geschrieben, danach beiseite, damit refresh() das Verzeichnis liest
+        Diary.configure(environment);
+        Diary.refresh();
+        Diary.saveManifest();
+        manifestFile = new File(root, "manifest");
+        if (!new File(environment.dataDir(), "manifest").renameTo(manifestFile))
+            throw new IOException("Could not move manifest");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(root);
+    }
+
+    // ohne geladene Einträge, wie beim ersten Start ohne Manifest
+    @Setup(Level.Invocation)
+    public void resetDiary() {
+        Diary.configure(environment);
+    }
+
+    // Verzeichnis lesen, jeden Namen parsen und stat, Einträge und Metadaten aufbauen
+    @Benchmark
+    public ChangeSet refresh() {
+        return Diary.refresh();
+    }
+
+    // erste Seite der Liste direkt aus dem Manifest
+    @Benchmark
+    public void manifestFirstPage(Blackhole blackhole) {
+        EntryManifest manifest = EntryManifest.open(manifestFile);
+        int to = Math.min(manifest.size(), pageSize);
+        for (int position = 0; position < to; position++) {
+            int index = manifest.size() - 1 - position;
+            blackhole.consume(manifest.epochDay(index));
+            blackhole.consume(manifest.mood(index));
+        }
+    }
+
+    // Übernahme aller Metadaten aus dem Manifest (Hintergrund nach dem Start)
+    @Benchmark
+    public EntryMetadataStore manifestLoad() {
+        EntryMetadataStore metadata = new EntryMetadataStore();
+        EntryManifest.open(manifestFile).loadInto(metadata);
+        return metadata;
+    }
+}
@@ -0,0 +1,75 @@
+package com.linkesoft.secretdiary.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signieren und Prüfen mit {@link EntrySigner} (SHA256withECDSA, vorbereitete Signature-Objekte) sowie die
+ * Signatur-Datei eines gespeicherten Eintrags wie beim Export, mit einem Software-EC-Schlüssel (P-256)
+ * aus {@link JceKeyProvider} statt des Android Keystores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignatureBenchmark {
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int entrySize;
+
+    private File root;
+    private byte[] data;
+    private byte[] signatureBytes;
+    private DiaryEntry entry;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("signature").toFile();
+        KeyProvider keys = new JceKeyProvider();
+        Diary.configure(new DirectoryEnvironment(root, keys), new MemoryDiaryStore(keys));
+        String text = BenchmarkData.text(entrySize, 7);
+        data = text.getBytes(StandardCharsets.UTF_8);
+        String fileName = BenchmarkData.fileName(0);
+        try (DiaryStore.Output out = Diary.store().openOutput(fileName)) {
+            TextCodec.get().encode(text, out);
+            out.commit();
+        }
+        Diary.refresh();
+        entry = Diary.entry(new DiaryEntry(fileName).key());
+        EntrySigner.prepare();
+        signatureBytes = sign();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(root);
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        return EntrySigner.sign(data);
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        return EntrySigner.verify(data, signatureBytes);
+    }
+
+    // entschlüsseln und dabei blockweise signieren, Signatur ins Cache-Verzeichnis
+    @Benchmark
+    public File signatureFile() {
+        return entry.getSignatureFile();
+    }
+}
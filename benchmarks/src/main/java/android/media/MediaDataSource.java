@@ -0,0 +1,14 @@
+package android.media;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Ersatz für android.media.MediaDataSource, damit Attachments auf der JVM übersetzt; ohne MediaPlayer ungenutzt.
+ */
+public abstract class MediaDataSource implements Closeable {
+
+    public abstract int readAt(long position, byte[] buffer, int offset, int size) throws IOException;
+
+    public abstract long getSize() throws IOException;
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Ersatz für android.os.Build, für die Kopfzeile von Metrics.report(); auf der JVM gibt es kein SDK.
+ */
+public final class Build {
+
+    private Build() {
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = 0;
+
+        private VERSION() {
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Ersatz für android.os.Looper, nur damit {@link Handler} wie in der App angelegt werden kann.
+ */
+public final class Looper {
+
+    private static final Looper mainLooper = new Looper();
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return mainLooper;
+    }
+}